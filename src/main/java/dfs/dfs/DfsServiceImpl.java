@@ -1,41 +1,105 @@
 package dfs.dfs;
 
 import com.google.protobuf.ByteString;
+import dfs.extent.Chunker;
 import dfs.extent.ExtentServiceGrpc;
 import dfs.extent.ExtentServiceOuterClass;
 import dfs.lock.LockServiceGrpc;
 import dfs.lock.LockServiceOuterClass;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
 
-    private final ExtentServiceGrpc.ExtentServiceBlockingStub extent;
+    private final ExtentRing ring;
     private final LockClient lockClient;
     private final Runnable shutdownCb;
+    private final FileCache cache;
+    private final WriteBack writeBack;
+    private final ConcurrentMap<String, CompletableFuture<ExtentServiceOuterClass.GetResponse>> reading = new ConcurrentHashMap<>();
+    private final Replication replication;
+
+    // For work that may wait on the lock service, kept off gRPC's callback threads.
+    private static final ExecutorService BLOCKING = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dfs-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
 
     public DfsServiceImpl(ExtentServiceGrpc.ExtentServiceBlockingStub extent,
+                          ExtentServiceGrpc.ExtentServiceStub extentAsync,
                           LockClient lockClient,
                           Runnable shutdownCb) {
-        this.extent = extent;
+        this(extent, extentAsync, lockClient, shutdownCb, FileCache.DEFAULT_MAX_BYTES);
+    }
+
+    // cacheBytes bounds the contents of files cached under this node's locks; 0 turns it off.
+    public DfsServiceImpl(ExtentServiceGrpc.ExtentServiceBlockingStub extent,
+                          ExtentServiceGrpc.ExtentServiceStub extentAsync,
+                          LockClient lockClient,
+                          Runnable shutdownCb,
+                          long cacheBytes) {
+        this(ExtentRing.single(extent, extentAsync), lockClient, shutdownCb, cacheBytes, 0);
+    }
+
+    // writeBackBytes bounds the whole-file writes acknowledged before they reach the extent
+    // service (see WriteBack); 0 writes everything through. A write is only buffered if it
+    // replaces a file this node has cached, so that it never changes what a listing shows.
+    // Buffered writes are lost if this node dies before writing them out, or if its lease on the
+    // file lapses first.
+    DfsServiceImpl(ExtentRing ring, LockClient lockClient, Runnable shutdownCb, long cacheBytes, long writeBackBytes) {
+        this.ring = ring;
         this.lockClient = lockClient;
         this.shutdownCb = shutdownCb;
+        this.cache = new FileCache(cacheBytes);
+        this.writeBack = writeBackBytes > 0 ? new WriteBack(writeBackBytes) : null;
+        this.replication = new Replication(ring, lockClient, this::flush);
+        lockClient.beforeRelease(this::beforeRelease);
+        if (writeBack != null) {
+            Thread t = new Thread(this::flusherLoop, "dfs-write-back");
+            t.setDaemon(true);
+            t.start();
+        }
+        if (ring.size() > 1) {
+            Thread t = new Thread(replication::repairLoop, "dfs-repair");
+            t.setDaemon(true);
+            t.start();
+        }
     }
 
     private static boolean isDir(String name) { return name != null && name.endsWith("/"); }
 
     private void acquire(String id) { lockClient.acquire(id); }
+    private void acquireShared(String id) { lockClient.acquire(id, LockServiceOuterClass.LockMode.SHARED); }
     private void release(String id) { lockClient.release(id); }
 
-    private List<String> parseDirListing(byte[] data) {
-        String text = new String(data, StandardCharsets.UTF_8);
-        if (text.isEmpty()) return List.of();
-        return Arrays.asList(text.split("\n"));
-    }
-
     @Override
     public void stop(dfs.dfs.DfsServiceOuterClass.StopRequest request,
                      StreamObserver<dfs.dfs.DfsServiceOuterClass.StopResponse> responseObserver) {
@@ -56,26 +120,110 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
             return;
         }
 
-        acquire(dirName);
+        acquireShared(dirName);
         try {
-            var resp = extent.get(ExtentServiceOuterClass.GetRequest.newBuilder()
-                    .setFileName(dirName).build());
-
-            if (!resp.hasFileData()) {
-                responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.DirResponse.newBuilder()
-                        .setSuccess(false).build());
-            } else {
-                var list = parseDirListing(resp.getFileData().toByteArray());
-                var b = dfs.dfs.DfsServiceOuterClass.DirResponse.newBuilder()
-                        .setSuccess(true).addAllDirList(list);
-                responseObserver.onNext(b.build());
-            }
+            responseObserver.onNext(list(dirName, request.getPageToken(), Math.max(request.getLimit(), 0)));
             responseObserver.onCompleted();
         } finally {
             release(dirName);
         }
     }
 
+    // A directory as the union of what every extent node has in it: all of it with limit 0,
+    // otherwise the first limit names after token. Names are "x", or "x/" for a directory, as
+    // in the extent service's index, so the last name of a page is also the next page's token.
+    private dfs.dfs.DfsServiceOuterClass.DirResponse list(String dirName, String token, int limit) {
+        var b = dfs.dfs.DfsServiceOuterClass.DirResponse.newBuilder();
+        TreeSet<String> names = new TreeSet<>();
+        boolean more = false;
+        // A node that cannot be reached is left out: every file is on another one too, or lost anyway.
+        for (Listing l : ring.onEach(ring.nodes(), n -> list(n, dirName, token, limit))) {
+            if (l == null) continue;
+            b.setSuccess(true);
+            names.addAll(l.names);
+            more |= l.more;
+        }
+        String last = null;
+        for (String name : names) {
+            if (limit > 0 && b.getDirListCount() == limit) {
+                more = true;
+                break;
+            }
+            b.addDirList(name);
+            last = name;
+        }
+        if (limit > 0 && more && last != null) b.setNextPageToken(last);
+        return b.build();
+    }
+
+    record Listing(List<String> names, boolean more) { }
+
+    // Up to limit names (0: all) after token from one node, null if it has no such directory.
+    // The extent service caps its own pages, so pages are fetched until limit is reached.
+    static Listing list(ExtentRing.Node n, String dirName, String token, int limit) {
+        List<String> names = new ArrayList<>();
+        do {
+            var resp = n.blocking.list(ExtentServiceOuterClass.ListRequest.newBuilder()
+                    .setDirectoryName(dirName).setPageToken(token)
+                    .setLimit(limit == 0 ? 0 : limit - names.size()).build());
+            if (!resp.getSuccess()) return null;
+            for (var e : resp.getEntriesList()) names.add(dirName(e));
+            token = resp.getNextPageToken();
+        } while (!token.isEmpty() && (limit == 0 || names.size() < limit));
+        return new Listing(names, !token.isEmpty());
+    }
+
+    // Streams the directory as the extent nodes list it, one node after another, so the first
+    // entries go out before a large directory has been read. The shared lock is held until the
+    // stream ends. A file is sent by its primary replica only, and by any node the ring does not
+    // place it on (a copy not yet moved by rebalance); a directory the first time it is seen.
+    @Override
+    public void dirStream(dfs.dfs.DfsServiceOuterClass.DirRequest request,
+                          StreamObserver<dfs.dfs.DfsServiceOuterClass.DirResponse> responseObserver) {
+        String dirName = request.getDirectoryName();
+        if (!isDir(dirName) || request.getLimit() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("directoryName of a directory and a non-negative limit are required").asRuntimeException());
+            return;
+        }
+        acquireShared(dirName);
+        var req = ExtentServiceOuterClass.ListRequest.newBuilder()
+                .setDirectoryName(dirName)
+                .setLimit(request.getLimit())
+                .build();
+        ExtentRing.Node[] current = new ExtentRing.Node[1];
+        Set<String> dirsSent = ConcurrentHashMap.newKeySet();
+        Function<ExtentServiceOuterClass.ListResponse, dfs.dfs.DfsServiceOuterClass.DirResponse> map = resp -> {
+            var b = dfs.dfs.DfsServiceOuterClass.DirResponse.newBuilder().setSuccess(resp.getSuccess());
+            for (var e : resp.getEntriesList()) {
+                String name = dirName(e);
+                if (ring.size() == 1) {
+                    b.addDirList(name);
+                } else if (e.getDirectory()) {
+                    if (dirsSent.add(name)) b.addDirList(name);
+                } else {
+                    var reps = ring.replicas(dirName + name);
+                    if (reps.get(0) == current[0] || !reps.contains(current[0])) b.addDirList(name);
+                }
+            }
+            return ring.size() > 1 && b.getDirListCount() == 0 ? null : b.build();
+        };
+        List<Consumer<Relay<ExtentServiceOuterClass.ListRequest, ExtentServiceOuterClass.ListResponse, dfs.dfs.DfsServiceOuterClass.DirResponse>>> calls = new ArrayList<>();
+        for (ExtentRing.Node n : ring.nodes()) {
+            calls.add(relay -> {
+                current[0] = n;
+                n.async.listStream(req, relay);
+            });
+        }
+        var relay = new Relay<>(responseObserver, dirName, map, calls.subList(1, calls.size()));
+        calls.get(0).accept(relay);
+    }
+
+    private static String dirName(ExtentServiceOuterClass.DirEntry e) {
+        return e.getDirectory() ? e.getName() + "/" : e.getName();
+    }
+
+    // Directories exist on every extent node, so mkdir creates the directory on all of them that
+    // can be reached; a write creates it on the others as needed.
     @Override
     public void mkdir(dfs.dfs.DfsServiceOuterClass.MkdirRequest request,
                       StreamObserver<dfs.dfs.DfsServiceOuterClass.MkdirResponse> responseObserver) {
@@ -93,7 +241,8 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
                     .setFileName(dirName)
                     .setFileData(ByteString.copyFrom(new byte[]{1}))
                     .build();
-            boolean ok = extent.put(put).getSuccess();
+            var results = ring.onEach(ring.nodes(), n -> n.blocking.put(put).getSuccess());
+            boolean ok = results.contains(true) && !results.contains(false);
             responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.MkdirResponse.newBuilder()
                     .setSuccess(ok).build());
             responseObserver.onCompleted();
@@ -102,6 +251,8 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
         }
     }
 
+    // With several extent nodes the directory must be empty on all of them before it is removed
+    // from any, since each only sees its own part of it.
     @Override
     public void rmdir(dfs.dfs.DfsServiceOuterClass.RmdirRequest request,
                       StreamObserver<dfs.dfs.DfsServiceOuterClass.RmdirResponse> responseObserver) {
@@ -115,10 +266,13 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
 
         acquire(dirName);
         try {
-            var put = ExtentServiceOuterClass.PutRequest.newBuilder()
-                    .setFileName(dirName)
-                    .build();
-            boolean ok = extent.put(put).getSuccess();
+            boolean ok = false;
+            if (ring.size() == 1 || list(dirName, "", 1).getDirListCount() == 0) {
+                var put = ExtentServiceOuterClass.PutRequest.newBuilder()
+                        .setFileName(dirName)
+                        .build();
+                ok = ring.onEach(ring.nodes(), n -> n.blocking.put(put).getSuccess()).contains(true);
+            }
             responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.RmdirResponse.newBuilder()
                     .setSuccess(ok).build());
             responseObserver.onCompleted();
@@ -137,12 +291,25 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
             return;
         }
 
-        acquire(fileName);
+        acquireShared(fileName);
         try {
-            var resp = extent.get(ExtentServiceOuterClass.GetRequest.newBuilder()
-                    .setFileName(fileName).build());
             var b = dfs.dfs.DfsServiceOuterClass.GetResponse.newBuilder();
-            if (resp.hasFileData()) b.setFileData(resp.getFileData());
+            ByteString data = writeBack == null ? null : writeBack.get(fileName);
+            if (data == null) data = cached(fileName);
+            if (data != null && request.getOffset() >= 0 && request.getLength() >= 0) {
+                int pos = (int) Math.min(request.getOffset(), data.size());
+                int end = request.getLength() == 0 || request.getLength() > data.size() - pos ? data.size() : pos + (int) request.getLength();
+                b.setFileSize(data.size()).setFileData(data.substring(pos, end));
+            } else {
+                var resp = request.getOffset() == 0 && request.getLength() == 0 ? readWhole(fileName)
+                        : read(ExtentServiceOuterClass.GetRequest.newBuilder()
+                                .setFileName(fileName)
+                                .setOffset(request.getOffset())
+                                .setLength(request.getLength())
+                                .build());
+                b.setFileSize(resp.getFileSize());
+                if (resp.hasFileData()) b.setFileData(resp.getFileData());
+            }
             responseObserver.onNext(b.build());
             responseObserver.onCompleted();
         } finally {
@@ -150,6 +317,57 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
         }
     }
 
+    // name's cached content if the lease behind the caller's grant still holds. Once it may not,
+    // nothing cached under that lock group's grants is trusted any more.
+    private ByteString cached(String name) {
+        if (lockClient.leaseFresh(name)) return cache.get(name);
+        cache.invalidateIf(n -> lockClient.sameGroup(n, name));
+        return null;
+    }
+
+    // Reads a whole file into the cache under the caller's shared lock. Concurrent misses on the
+    // same file share one extent read, so a crowd released by one grant costs one read rather
+    // than one each: a caller that finds the read in progress holds the lock while the reader
+    // still does, so no write can fall between them.
+    private ExtentServiceOuterClass.GetResponse readWhole(String fileName) {
+        var mine = new CompletableFuture<ExtentServiceOuterClass.GetResponse>();
+        var running = reading.putIfAbsent(fileName, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try {
+            var resp = read(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName(fileName).build());
+            if (resp.hasFileData()) cache.put(fileName, resp.getFileData());
+            mine.complete(resp);
+            return resp;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            reading.remove(fileName, mine);
+        }
+    }
+
+    // Reads from the fastest replica that answers, hedged onto the next if it is slow to (see
+    // ExtentRing.hedged). If it has no such file and the ring leaves out some nodes, the file may
+    // still be where an older ring put it, so those are asked too.
+    private ExtentServiceOuterClass.GetResponse read(ExtentServiceOuterClass.GetRequest req) {
+        String fileName = req.getFileName();
+        ExtentServiceOuterClass.GetResponse resp = ring.hedged(ring.readOrder(fileName), (n, o) -> n.async.get(req, o));
+        replication.seen(resp.getVersion());
+        if (resp.hasFileData() || !ring.partial()) return resp;
+        var on = replication.others(fileName);
+        if (on.isEmpty()) return resp;
+        for (var r : ring.onEach(on, o -> o.blocking.get(req))) {
+            if (r != null && r.hasFileData()) return r;
+        }
+        return resp;
+    }
+
     @Override
     public void put(dfs.dfs.DfsServiceOuterClass.PutRequest request,
                     StreamObserver<dfs.dfs.DfsServiceOuterClass.PutResponse> responseObserver) {
@@ -163,19 +381,221 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
 
         acquire(fileName);
         try {
-            var put = ExtentServiceOuterClass.PutRequest.newBuilder()
-                    .setFileName(fileName)
-                    .setFileData(request.getFileData())
-                    .build();
-            boolean ok = extent.put(put).getSuccess();
+            ByteString data = request.getFileData();
+            boolean whole = !request.hasOffset() && !request.getAppend();
+            // Only buffered while the lease surely holds, since it must be written out before then.
+            if (whole && writeBack != null && lockClient.leaseFresh(fileName)
+                    && (writeBack.get(fileName) != null || cache.get(fileName) != null) && writeBack.put(fileName, data)) {
+                cache.put(fileName, data);
+                responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.PutResponse.newBuilder()
+                        .setSuccess(true).setFileSize(data.size()).build());
+                responseObserver.onCompleted();
+                return;
+            }
+            cache.invalidate(fileName);
+            ExtentServiceOuterClass.PutResponse resp;
+            if (whole) {
+                resp = writeWhole(fileName, data);
+                if (resp.getSuccess()) {
+                    if (writeBack != null) writeBack.discard(fileName);
+                    cache.put(fileName, data);
+                }
+            } else {
+                flush(fileName);
+                replication.placeForUpdate(fileName);
+                var put = ExtentServiceOuterClass.PutRequest.newBuilder()
+                        .setFileName(fileName)
+                        .setFileData(data)
+                        .setAppend(request.getAppend())
+                        .setVersion(replication.nextVersion());
+                if (request.hasOffset()) put.setOffset(request.getOffset());
+                var on = ring.upToDate(fileName);
+                resp = allOf(fileName, on, ring.onEach(on, n -> n.blocking.put(put.build())), false);
+            }
             responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.PutResponse.newBuilder()
-                    .setSuccess(ok).build());
+                    .setSuccess(resp.getSuccess()).setFileSize(resp.getFileSize()).build());
             responseObserver.onCompleted();
         } finally {
             release(fileName);
         }
     }
 
+    // Replaces the file on every replica, through the block protocol where a replica has it.
+    private ExtentServiceOuterClass.PutResponse writeWhole(String fileName, ByteString data) {
+        List<ByteString> blocks = ring.nodes().stream().anyMatch(n -> n.blocks) ? Chunker.split(data) : null;
+        long version = replication.nextVersion();
+        var put = ExtentServiceOuterClass.PutRequest.newBuilder().setFileName(fileName).setFileData(data).setVersion(version).build();
+        var on = ring.replicas(fileName);
+        return allOf(fileName, on, ring.onEach(on, n -> {
+            ExtentServiceOuterClass.PutResponse r = blocks != null ? putBlocks(n, fileName, blocks, version) : null;
+            return r != null ? r : n.blocking.put(put);
+        }), true);
+    }
+
+    // The answers of the nodes of on to a write of fileName as one: a success if all of them
+    // succeeded, with the first size given. A node that failed (null) or refused the write is
+    // marked dirty for the file; after a whole-file write the others are up to date again.
+    private ExtentServiceOuterClass.PutResponse allOf(String fileName, List<ExtentRing.Node> on,
+                                                      List<ExtentServiceOuterClass.PutResponse> results, boolean whole) {
+        var b = ExtentServiceOuterClass.PutResponse.newBuilder().setSuccess(true);
+        boolean sized = false;
+        for (int i = 0; i < on.size(); i++) {
+            var r = results.get(i);
+            if (r == null || !r.getSuccess()) {
+                b.setSuccess(false);
+                ring.markDirty(fileName, on.get(i));
+                continue;
+            }
+            if (whole) ring.markClean(fileName, on.get(i));
+            if (!sized) b.setFileSize(r.getFileSize());
+            sized = true;
+        }
+        return b.build();
+    }
+
+    // Writes out name's buffered content, if it has any. The caller holds name's lock, or
+    // LockClient is handing it back. A failed write leaves the content buffered and is thrown.
+    private void flush(String name) {
+        ByteString data = writeBack == null ? null : writeBack.get(name);
+        if (data == null) return;
+        if (!writeWhole(name, data).getSuccess()) {
+            throw Status.UNAVAILABLE.withDescription("write-back of " + name + " failed").asRuntimeException();
+        }
+        writeBack.remove(name, data);
+    }
+
+    // Writes out name's buffered content as flush does, but gives up once the lease behind this
+    // node's grant may have lapsed: past that the lock may be someone else's.
+    private void flushWithinLease(String name) {
+        long left = lockClient.leaseLeftMillis(name);
+        if (left <= 0) throw Status.DEADLINE_EXCEEDED.withDescription("lease on " + name + " may have lapsed").asRuntimeException();
+        var ctx = Context.current().withDeadlineAfter(left, TimeUnit.MILLISECONDS, DEADLINES);
+        try {
+            ctx.run(() -> flush(name));
+        } finally {
+            ctx.cancel(null);
+        }
+    }
+
+    // Before the lock on name goes back: buffered content is written out off the releaser thread,
+    // and the grant is kept if that fails, so it is tried again rather than lost. Once the lock may
+    // be another node's, though, content still unwritten is stale and dropped.
+    private CompletableFuture<Boolean> beforeRelease(String name, boolean lost) {
+        cache.invalidate(name);
+        if (writeBack == null || writeBack.get(name) == null) return CompletableFuture.completedFuture(true);
+        if (lost) {
+            System.err.printf("Dropping unwritten content of %s: the lease on it lapsed%n", name);
+            writeBack.discard(name);
+            return CompletableFuture.completedFuture(true);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                flushWithinLease(name);
+                return true;
+            } catch (RuntimeException e) {
+                System.err.printf("Keeping the lock on %s to write it out later: %s%n", name, e);
+                return false;
+            }
+        }, BLOCKING);
+    }
+
+    // Writes out files dirty for longer than WriteBack.FLUSH_DELAY_MILLIS whose locks this node
+    // holds unused; a file in use is tried again next round, and written out on release anyway.
+    private void flusherLoop() {
+        while (true) {
+            try {
+                Thread.sleep(WriteBack.FLUSH_DELAY_MILLIS / 4);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (String name : writeBack.due(false)) {
+                // Only takes grants whose lease surely holds; an expired one is dropped, and its
+                // content with it, when LockClient hands it back.
+                if (!lockClient.tryAcquireCached(name)) continue;
+                try {
+                    flushWithinLease(name);
+                } catch (RuntimeException ignored) {
+                } finally {
+                    release(name);
+                }
+            }
+        }
+    }
+
+    // Writes out everything buffered, for before this node stops. Only files whose exclusive
+    // grant is cached here and idle are written, since waiting for a lock could hold up the stop;
+    // the others are in a handler's hands or under a lease that may have lapsed, and are left.
+    void flushAll() {
+        if (writeBack == null) return;
+        for (String name : writeBack.due(true)) {
+            if (!lockClient.tryAcquireCached(name)) {
+                System.err.printf("Leaving unwritten content of %s: its lock is not free here%n", name);
+                continue;
+            }
+            try {
+                flush(name);
+            } catch (RuntimeException e) {
+                System.err.printf("Dropping unwritten content of %s: %s%n", name, e);
+            } finally {
+                release(name);
+            }
+        }
+    }
+
+    // Replaces a file on node n through the block protocol, sending only the blocks n does not
+    // have yet. Null if n is not a block store.
+    private ExtentServiceOuterClass.PutResponse putBlocks(ExtentRing.Node n, String fileName, List<ByteString> blocks, long version) {
+        if (!n.blocks) return null;
+        List<ByteString> hashes = new ArrayList<>(blocks.size());
+        for (ByteString b : blocks) hashes.add(Chunker.hash(b));
+        List<Boolean> present;
+        try {
+            present = n.blocking.hasBlocks(ExtentServiceOuterClass.HasBlocksRequest.newBuilder()
+                    .addAllHashes(hashes).build()).getPresentList();
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() != Status.Code.UNIMPLEMENTED) throw e;
+            n.blocks = false;
+            return null;
+        }
+        Set<ByteString> send = new HashSet<>();
+        for (int i = 0; i < hashes.size(); i++) if (!present.get(i)) send.add(hashes.get(i));
+        // A block the server had may be gone by the time the manifest arrives: send those once more.
+        for (int attempt = 0; ; attempt++) {
+            if (!send.isEmpty()) sendBlocks(n, blocks, hashes, send);
+            var resp = n.blocking.putManifest(ExtentServiceOuterClass.PutManifestRequest.newBuilder()
+                    .setFileName(fileName).addAllHashes(hashes).setVersion(version).build());
+            if (resp.getSuccess() || resp.getMissingCount() == 0 || attempt == 1) {
+                return ExtentServiceOuterClass.PutResponse.newBuilder()
+                        .setSuccess(resp.getSuccess()).setFileSize(resp.getFileSize()).build();
+            }
+            send = new HashSet<>(resp.getMissingList());
+        }
+    }
+
+    private static void sendBlocks(ExtentRing.Node n, List<ByteString> blocks, List<ByteString> hashes, Set<ByteString> send) {
+        var done = new CompletableFuture<Void>();
+        var call = n.async.putBlocks(new StreamObserver<>() {
+            @Override public void onNext(ExtentServiceOuterClass.PutBlocksResponse r) { }
+            @Override public void onError(Throwable t) { done.completeExceptionally(t); }
+            @Override public void onCompleted() { done.complete(null); }
+        });
+        Set<ByteString> sent = new HashSet<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (send.contains(hashes.get(i)) && sent.add(hashes.get(i))) {
+                call.onNext(ExtentServiceOuterClass.BlockData.newBuilder().setData(blocks.get(i)).build());
+            }
+        }
+        call.onCompleted();
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    // With a ring that leaves out some nodes, a file is deleted from all of them, so that no
+    // copy an older ring left behind comes back through read's fallback. A node that cannot be
+    // reached is marked dirty for the file, so that the repair deletes it there later.
     @Override
     public void delete(dfs.dfs.DfsServiceOuterClass.DeleteRequest request,
                        StreamObserver<dfs.dfs.DfsServiceOuterClass.DeleteResponse> responseObserver) {
@@ -189,10 +609,18 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
 
         acquire(fileName);
         try {
+            cache.invalidate(fileName);
+            if (writeBack != null) writeBack.discard(fileName);
             var put = ExtentServiceOuterClass.PutRequest.newBuilder()
                     .setFileName(fileName)
                     .build();
-            boolean ok = extent.put(put).getSuccess();
+            var on = ring.partial() ? ring.nodes() : ring.replicas(fileName);
+            var results = ring.onEach(on, n -> n.blocking.put(put).getSuccess());
+            for (int i = 0; i < on.size(); i++) {
+                if (results.get(i) == null) ring.markDirty(fileName, on.get(i));
+                else ring.markClean(fileName, on.get(i));
+            }
+            boolean ok = results.contains(true);
             responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.DeleteResponse.newBuilder()
                     .setSuccess(ok).build());
             responseObserver.onCompleted();
@@ -200,4 +628,298 @@ public class DfsServiceImpl extends DfsServiceGrpc.DfsServiceImplBase {
             release(fileName);
         }
     }
-}
\ No newline at end of file
+
+    // Moves every file to the nodes the ring places it on, each under its exclusive lock: for
+    // after a node has been added. Until then reads find files where an older ring put them.
+    @Override
+    public void rebalance(dfs.dfs.DfsServiceOuterClass.RebalanceRequest request,
+                          StreamObserver<dfs.dfs.DfsServiceOuterClass.RebalanceResponse> responseObserver) {
+        long moved = replication.rebalance();
+        responseObserver.onNext(dfs.dfs.DfsServiceOuterClass.RebalanceResponse.newBuilder()
+                .setSuccess(true).setFilesMoved(moved).build());
+        responseObserver.onCompleted();
+    }
+
+    // Relays the chosen replica's chunks under the shared lock. With a ring that leaves out some
+    // nodes the file is looked for first, since it may be where an older ring put it.
+    @Override
+    public void getStream(dfs.dfs.DfsServiceOuterClass.GetRequest request,
+                          StreamObserver<dfs.dfs.DfsServiceOuterClass.GetChunk> responseObserver) {
+        String fileName = request.getFileName();
+        if (fileName.isEmpty() || isDir(fileName)) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName of a file is required").asRuntimeException());
+            return;
+        }
+        acquireShared(fileName);
+        ExtentRing.Node from;
+        try {
+            flush(fileName);
+            from = streamSource(fileName);
+        } catch (RuntimeException e) {
+            release(fileName);
+            throw e;
+        }
+        var req = ExtentServiceOuterClass.GetRequest.newBuilder()
+                .setFileName(fileName)
+                .setOffset(request.getOffset())
+                .setLength(request.getLength())
+                .build();
+        from.async.getStream(req, new Relay<>(responseObserver, fileName,
+                chunk -> dfs.dfs.DfsServiceOuterClass.GetChunk.newBuilder().setData(chunk.getData()).build()));
+    }
+
+    private ExtentRing.Node streamSource(String fileName) {
+        var order = ring.readOrder(fileName);
+        if (!ring.partial() || replication.version(order.get(0), fileName) >= 0) return order.get(0);
+        for (ExtentRing.Node n : replication.others(fileName)) if (replication.version(n, fileName) >= 0) return n;
+        return order.get(0);
+    }
+
+    // Relays server streams from the extent service to the caller, mapping each message (to
+    // nothing, if map returns null), and releases the lock on id (taken by the caller) once when
+    // it ends either way. The calls in rest are started one at a time as the one before ends,
+    // each with this as its observer. The next message is requested from the extent service
+    // only once the caller's stream has room again, so a transfer holds about one message on
+    // this node however long it is.
+    private final class Relay<Q, I, O> implements ClientResponseObserver<Q, I> {
+        private final ServerCallStreamObserver<O> out;
+        private final String id;
+        private final Function<I, O> map;
+        private final Deque<Consumer<Relay<Q, I, O>>> rest;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile ClientCallStreamObserver<Q> call;
+        private volatile boolean cancelled = false;
+        private boolean started = false;
+        private boolean wanted = false;
+
+        Relay(StreamObserver<O> out, String id, Function<I, O> map) {
+            this(out, id, map, List.of());
+        }
+
+        Relay(StreamObserver<O> out, String id, Function<I, O> map, List<Consumer<Relay<Q, I, O>>> rest) {
+            this.out = (ServerCallStreamObserver<O>) out;
+            this.id = id;
+            this.map = map;
+            this.rest = new ArrayDeque<>(rest);
+        }
+
+        private void done() {
+            if (released.compareAndSet(false, true)) release(id);
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<Q> call) {
+            this.call = call;
+            call.disableAutoRequestWithInitial(1);
+            if (started) return;
+            started = true;
+            out.setOnReadyHandler(this::pull);
+            out.setOnCancelHandler(() -> {
+                cancelled = true;
+                this.call.cancel("caller cancelled", null);
+                done();
+            });
+        }
+
+        private synchronized void pull() {
+            if (wanted && out.isReady()) {
+                wanted = false;
+                call.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(I message) {
+            O o = map.apply(message);
+            if (o != null) out.onNext(o);
+            synchronized (this) { wanted = true; }
+            pull();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done();
+            out.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            var next = rest.poll();
+            if (next != null && !cancelled) {
+                synchronized (this) { wanted = false; }
+                next.accept(this);
+                return;
+            }
+            done();
+            out.onCompleted();
+        }
+    }
+
+    // Relays the caller's chunks to every replica under the exclusive lock, which is taken when
+    // the first chunk names the file. The caller's next chunk is requested only once every
+    // replica's stream has room again. The put succeeds if it does on every replica.
+    @Override
+    public StreamObserver<dfs.dfs.DfsServiceOuterClass.PutChunk> putStream(
+            StreamObserver<dfs.dfs.DfsServiceOuterClass.PutResponse> responseObserver) {
+        var in = (ServerCallStreamObserver<dfs.dfs.DfsServiceOuterClass.PutResponse>) responseObserver;
+        in.disableAutoRequest();
+        in.request(1);
+        return new PutPipe(in);
+    }
+
+    // The first chunk is handled on a BLOCKING thread, since taking the lock may wait on other
+    // nodes; no further chunk is requested until it is done, but the caller's end may arrive
+    // meanwhile and is handled after it.
+    private final class PutPipe implements StreamObserver<dfs.dfs.DfsServiceOuterClass.PutChunk> {
+        private final ServerCallStreamObserver<dfs.dfs.DfsServiceOuterClass.PutResponse> caller;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // Filled while the first chunk is handled, but iterated by transport threads meanwhile.
+        private final List<ClientCallStreamObserver<ExtentServiceOuterClass.PutChunk>> calls = new CopyOnWriteArrayList<>();
+        private final List<ExtentServiceOuterClass.PutResponse> responses = new ArrayList<>();
+        private final AtomicInteger open = new AtomicInteger();
+        private CompletableFuture<Void> opening;
+        private String fileName;
+        private boolean whole;
+        private volatile boolean started = false;
+        private volatile Throwable failed;
+        private boolean wanted = false;
+
+        PutPipe(ServerCallStreamObserver<dfs.dfs.DfsServiceOuterClass.PutResponse> caller) {
+            this.caller = caller;
+            caller.setOnCancelHandler(() -> {
+                if (started) for (var c : calls) c.cancel("caller cancelled", null);
+            });
+        }
+
+        @Override
+        public void onNext(dfs.dfs.DfsServiceOuterClass.PutChunk chunk) {
+            if (finished.get()) return;
+            if (opening == null) {
+                opening = CompletableFuture.runAsync(() -> open(chunk), BLOCKING);
+                return;
+            }
+            send(ExtentServiceOuterClass.PutChunk.newBuilder().setData(chunk.getData()).build());
+        }
+
+        private void open(dfs.dfs.DfsServiceOuterClass.PutChunk chunk) {
+            String name = chunk.getFileName();
+            if (name.isEmpty() || isDir(name)) {
+                finish(false);
+                return;
+            }
+            acquire(name);
+            cache.invalidate(name);
+            fileName = name;
+            try {
+                flush(name);
+                if (chunk.getAppend() || chunk.hasOffset()) replication.placeForUpdate(name);
+            } catch (RuntimeException e) {
+                finish(true);
+                return;
+            }
+            // A whole file goes to every replica and brings those marked dirty up to date; a
+            // partial write only to the replicas that are.
+            whole = !chunk.getAppend() && !chunk.hasOffset();
+            var reps = whole ? ring.replicas(name) : ring.upToDate(name);
+            open.set(reps.size());
+            for (ExtentRing.Node n : reps) start(n);
+            started = true;
+            // A replica that failed, or a caller that left, while the calls were being started
+            // may have missed some of them.
+            if (failed != null || caller.isCancelled()) {
+                for (var c : calls) c.cancel("put abandoned", failed);
+                return;
+            }
+            var b = ExtentServiceOuterClass.PutChunk.newBuilder().setData(chunk.getData())
+                    .setFileName(name).setAppend(chunk.getAppend()).setVersion(replication.nextVersion());
+            if (chunk.hasOffset()) b.setOffset(chunk.getOffset());
+            send(b.build());
+        }
+
+        private void send(ExtentServiceOuterClass.PutChunk msg) {
+            for (var c : calls) c.onNext(msg);
+            synchronized (this) { wanted = true; }
+            pull();
+        }
+
+        private void start(ExtentRing.Node n) {
+            n.async.putStream(new ClientResponseObserver<ExtentServiceOuterClass.PutChunk, ExtentServiceOuterClass.PutResponse>() {
+                private ExtentServiceOuterClass.PutResponse resp;
+
+                @Override
+                public void beforeStart(ClientCallStreamObserver<ExtentServiceOuterClass.PutChunk> c) {
+                    calls.add(c);
+                    c.setOnReadyHandler(PutPipe.this::pull);
+                }
+
+                @Override
+                public void onNext(ExtentServiceOuterClass.PutResponse r) { resp = r; }
+
+                // The put has failed: the other replicas' calls are cancelled rather than left
+                // waiting for chunks, since pull would never find this one ready again.
+                @Override
+                public void onError(Throwable t) {
+                    failed = t;
+                    for (var c : calls) c.cancel("replica failed", t);
+                    ended(n, null);
+                }
+
+                @Override
+                public void onCompleted() { ended(n, resp); }
+            });
+        }
+
+        // n's stream is over; resp is its answer, null if there is none. A replica that did not
+        // take the write is marked dirty for the file.
+        private void ended(ExtentRing.Node n, ExtentServiceOuterClass.PutResponse resp) {
+            if (resp == null || !resp.getSuccess()) ring.markDirty(fileName, n);
+            else if (whole) ring.markClean(fileName, n);
+            synchronized (responses) { responses.add(resp); }
+            if (open.decrementAndGet() == 0) finish(true);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            afterOpen(() -> {
+                if (started) for (var c : calls) c.onError(t);
+            });
+        }
+
+        @Override
+        public void onCompleted() {
+            afterOpen(() -> {
+                if (started) for (var c : calls) c.onCompleted();
+                else finish(false);
+            });
+        }
+
+        private void afterOpen(Runnable r) {
+            if (opening == null) r.run();
+            else opening.whenComplete((v, t) -> r.run());
+        }
+
+        private synchronized void pull() {
+            if (!wanted || !started) return;
+            for (var c : calls) if (!c.isReady()) return;
+            wanted = false;
+            caller.request(1);
+        }
+
+        private void finish(boolean locked) {
+            if (!finished.compareAndSet(false, true)) return;
+            if (locked) release(fileName);
+            var b = dfs.dfs.DfsServiceOuterClass.PutResponse.newBuilder();
+            synchronized (responses) {
+                if (!responses.isEmpty() && responses.size() == calls.size() && !responses.contains(null)) {
+                    b.setSuccess(responses.stream().allMatch(ExtentServiceOuterClass.PutResponse::getSuccess))
+                            .setFileSize(responses.get(0).getFileSize());
+                }
+            }
+            try {
+                caller.onNext(b.build());
+                caller.onCompleted();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+}
@@ -1,58 +1,86 @@
 package dfs.dfs;
 
 import dfs.extent.ExtentServiceGrpc;
-import dfs.lock.LockServiceGrpc;
+import dfs.transport.TransportConfig;
 import io.grpc.ManagedChannel;
-import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class DfsServiceServer {
 
     private final int port;
     private final String extentAddr;
     private final String lockAddr;
+    private final long cacheBytes;
+    private final int replicas;
     private Server server;
-    private ManagedChannel extentCh, lockCh;
+    private ExtentRing ring;
+    private DfsServiceImpl impl;
 
     public DfsServiceServer(int port, String extentAddr, String lockAddr) {
+        this(port, extentAddr, lockAddr, FileCache.DEFAULT_MAX_BYTES);
+    }
+
+    public DfsServiceServer(int port, String extentAddr, String lockAddr, long cacheBytes) {
+        this(port, extentAddr, lockAddr, cacheBytes, 1);
+    }
+
+    // cacheBytes bounds the file contents cached under this node's locks; 0 turns it off.
+    // extentAddr lists one or more extent servers, comma-separated, each file stored on
+    // replicas of them (see ExtentRing); as many replicas as servers mirrors every file on all.
+    public DfsServiceServer(int port, String extentAddr, String lockAddr, long cacheBytes, int replicas) {
         this.port = port;
         this.extentAddr = extentAddr;
         this.lockAddr = lockAddr;
+        this.cacheBytes = cacheBytes;
+        this.replicas = replicas;
     }
 
     public void start() throws Exception {
-        extentCh = buildChannel(extentAddr);
-        lockCh   = buildChannel(lockAddr);
-
-        var extentStub = ExtentServiceGrpc.newBlockingStub(extentCh);
-        var lockStub = LockServiceGrpc.newBlockingStub(lockCh);
+        // Handlers block on lock waits and extent calls; on virtual threads (the default here) a
+        // parked request costs a stack on the heap rather than a platform thread, so contention
+        // on a hot lock cannot grow the server to thousands of threads.
+        var transport = TransportConfig.load("dfs", "virtual");
+        List<ExtentRing.Node> nodes = new ArrayList<>();
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (String addr : extentAddr.split(",")) {
+            var ch = transport.channels(addr.trim(), transport.extentChannels());
+            channels.add(ch);
+            nodes.add(new ExtentRing.Node(addr.trim(), ExtentServiceGrpc.newBlockingStub(ch), ExtentServiceGrpc.newStub(ch)));
+        }
+        // With several replicas a read that runs past this percentile of its replica's recent
+        // latencies is sent to the next one as well; -Ddfs.hedgePercentile=0 turns that off.
+        ring = new ExtentRing(nodes, channels, replicas, Integer.getInteger("dfs.hedgePercentile", ExtentRing.DEFAULT_HEDGE_PERCENTILE));
 
         String ownerId = OwnerIdUtil.buildOwnerId(port);
-        var lockClient = new LockClient(lockStub, ownerId);
+        var lockClient = new LockClient(LockGroups.parse(lockAddr), ownerId, transport);
 
         Runnable shutdownCb = () -> {
             System.out.println("Stopping DFS Server.");
             if (server != null) server.shutdown();
+            impl.flushAll();
             lockClient.stop();
         };
 
-        var impl = new DfsServiceImpl(extentStub, lockClient, shutdownCb);
+        // -Ddfs.writeBackMB=N acknowledges whole-file overwrites once up to N MB of them are
+        // buffered here, writing them out in the background and before their locks go back.
+        impl = new DfsServiceImpl(ring, lockClient, shutdownCb, cacheBytes, Long.getLong("dfs.writeBackMB", 0) << 20);
 
-        server = ServerBuilder.forPort(port)
+        server = transport.server(port)
                 .addService(impl)
                 .addService(new LockCacheServiceImpl(lockClient))
                 .build()
                 .start();
 
         System.out.printf("DFS Server started on port %d (Extent %s, Lock %s, OwnerId %s)%n",
-                port, extentAddr, lockAddr, ownerId);
+                port, ring, lockAddr, ownerId);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             if (server != null) server.shutdown();
-            if (extentCh != null) extentCh.shutdownNow();
-            if (lockCh != null) lockCh.shutdownNow();
+            impl.flushAll();
+            if (ring != null) ring.shutdown();
             lockClient.stop();
         }));
     }
@@ -61,26 +89,18 @@ public class DfsServiceServer {
         if (server != null) server.awaitTermination();
     }
 
-    private static ManagedChannel buildChannel(String hostPort) {
-        String[] hp = hostPort.split(":", 2);
-        String host = hp[0];
-        int port = Integer.parseInt(hp[1]);
-        return io.grpc.ManagedChannelBuilder
-                .forAddress(host, port)
-                .usePlaintext()
-                .build();
-    }
-
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.err.println("Usage: java dfs.dfs.DfsServiceServer <port> <extentHost:port> <lockHost:port>");
+            System.err.println("Usage: java dfs.dfs.DfsServiceServer <port> <extentHost:port[,extentHost:port...]> <lockHost:port[,replica...][;group...]> [cacheMB] [replicas]");
             System.exit(1);
         }
         int port = Integer.parseInt(args[0]);
         String extent = args[1];
         String lock = args[2];
+        long cacheBytes = args.length > 3 ? Long.parseLong(args[3]) << 20 : FileCache.DEFAULT_MAX_BYTES;
+        int replicas = args.length > 4 ? Integer.parseInt(args[4]) : 1;
 
-        DfsServiceServer srv = new DfsServiceServer(port, extent, lock);
+        DfsServiceServer srv = new DfsServiceServer(port, extent, lock, cacheBytes, replicas);
         srv.start();
         srv.blockUntilShutdown();
     }
@@ -0,0 +1,339 @@
+package dfs.dfs;
+
+import dfs.extent.ExtentServiceGrpc;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// The extent servers a DFS node stores files on. A file lives on the first `replicas` distinct
+// nodes clockwise from its name's hash on a ring of VNODES points per node, so adding a node
+// moves only the files whose points it takes over. Directories are real directories on every
+// node. Reads go to the replica with the lowest recent latency, and to the next one as well
+// if the first is slow to answer (see hedged); writes go to all of them. A node that missed a
+// write of a file is marked dirty for it and left out of its reads until it has been repaired.
+class ExtentRing {
+
+    static final int VNODES = 128;
+    // Latency samples are folded in with this weight; every EXPLORE-th read tries a random
+    // replica instead of the fastest, so a node that was slow once gets measured again.
+    static final double EWMA_WEIGHT = 0.2;
+    static final int EXPLORE = 16;
+    // A node's hedge threshold is the chosen percentile of its last WINDOW read latencies,
+    // recomputed every RECOMPUTE samples; before the first RECOMPUTE, HEDGE_DEFAULT_NANOS. It is
+    // never below HEDGE_MIN_NANOS, so that a fast node is not hedged on scheduling noise.
+    static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    static final int WINDOW = 128;
+    static final int RECOMPUTE = 16;
+    static final long HEDGE_DEFAULT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    static final long HEDGE_MIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    // What a read from a node that could not be reached counts as in its average latency.
+    static final long UNREACHABLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // How long a hedged read may take over all its replicas, unless the caller's deadline is sooner.
+    static final long READ_DEADLINE_MILLIS = 10_000;
+
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "extent-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static final class Node {
+        final String addr;
+        final ExtentServiceGrpc.ExtentServiceBlockingStub blocking;
+        final ExtentServiceGrpc.ExtentServiceStub async;
+        // Whether the node may be a block store; cleared the first time it says it is not.
+        volatile boolean blocks = true;
+        volatile double latencyNanos = 0;
+        private final long[] recent = new long[WINDOW];
+        private int samples = 0;
+        private volatile long hedgeAfterNanos = HEDGE_DEFAULT_NANOS;
+
+        Node(String addr, ExtentServiceGrpc.ExtentServiceBlockingStub blocking, ExtentServiceGrpc.ExtentServiceStub async) {
+            this.addr = addr;
+            this.blocking = blocking;
+            this.async = async;
+        }
+
+        // A read that took nanos; percentile is the hedge percentile, 0 if there is none.
+        void sample(long nanos, int percentile) {
+            penalize(nanos);
+            if (percentile == 0) return;
+            synchronized (recent) {
+                recent[samples++ % WINDOW] = nanos;
+                if (samples % RECOMPUTE != 0) return;
+                long[] sorted = Arrays.copyOf(recent, Math.min(samples, WINDOW));
+                Arrays.sort(sorted);
+                hedgeAfterNanos = Math.max(HEDGE_MIN_NANOS, sorted[(sorted.length - 1) * percentile / 100]);
+            }
+        }
+
+        // Counts towards the node's average latency only: a failure or a read cut short by a
+        // hedge says the node is slow, but not how slow its reads are.
+        void penalize(long nanos) {
+            double l = latencyNanos;
+            latencyNanos = l == 0 ? nanos : l + EWMA_WEIGHT * (nanos - l);
+        }
+
+        long hedgeAfterNanos() { return hedgeAfterNanos; }
+
+        @Override
+        public String toString() { return addr; }
+    }
+
+    // Runs the fan-out of a write to several nodes; each call blocks on its own node.
+    private static final ExecutorService FAN_OUT = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final List<Node> nodes;
+    private final List<ManagedChannel> channels;
+    private final int replicas;
+    private final int hedgePercentile;
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+    // Per file, the nodes that may hold an outdated copy of it, or one that should be gone.
+    private final ConcurrentMap<String, Set<Node>> dirty = new ConcurrentHashMap<>();
+
+    // hedgePercentile is the percentile of a replica's latency after which a read goes to the
+    // next replica too; 0 turns hedging off, leaving the next replica for when one fails.
+    ExtentRing(List<Node> nodes, List<ManagedChannel> channels, int replicas, int hedgePercentile) {
+        this.nodes = List.copyOf(nodes);
+        this.channels = List.copyOf(channels);
+        this.replicas = Math.max(1, Math.min(replicas, nodes.size()));
+        this.hedgePercentile = Math.max(0, Math.min(hedgePercentile, 100));
+        for (Node n : nodes) {
+            for (int v = 0; v < VNODES; v++) ring.put(hash(n.addr + "#" + v), n);
+        }
+    }
+
+    // One extent server reached through the caller's stubs.
+    static ExtentRing single(ExtentServiceGrpc.ExtentServiceBlockingStub blocking, ExtentServiceGrpc.ExtentServiceStub async) {
+        return new ExtentRing(List.of(new Node("extent", blocking, async)), List.of(), 1, 0);
+    }
+
+    List<Node> nodes() { return nodes; }
+
+    int size() { return nodes.size(); }
+
+    // Whether some node holds none of the replicas of a given file, so a file placed by an
+    // older ring may sit where the current one does not look.
+    boolean partial() { return replicas < nodes.size(); }
+
+    // The nodes a file is stored on, its primary first.
+    List<Node> replicas(String name) {
+        if (nodes.size() == 1) return nodes;
+        List<Node> out = new ArrayList<>(replicas);
+        for (Node n : ring.tailMap(hash(name)).values()) {
+            if (out.size() == replicas) return out;
+            if (!out.contains(n)) out.add(n);
+        }
+        for (Node n : ring.values()) {
+            if (out.size() == replicas) return out;
+            if (!out.contains(n)) out.add(n);
+        }
+        return out;
+    }
+
+    // The replicas of a file not marked dirty for it; all of them if every one is.
+    List<Node> upToDate(String name) {
+        List<Node> reps = replicas(name);
+        Set<Node> d = dirty.get(name);
+        if (d == null) return reps;
+        List<Node> out = new ArrayList<>(reps);
+        out.removeAll(d);
+        return out.isEmpty() ? reps : out;
+    }
+
+    void markDirty(String name, Node n) {
+        if (nodes.size() > 1) dirty.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet()).add(n);
+    }
+
+    void markClean(String name, Node n) {
+        dirty.computeIfPresent(name, (k, d) -> {
+            d.remove(n);
+            return d.isEmpty() ? null : d;
+        });
+    }
+
+    Set<Node> dirty(String name) {
+        Set<Node> d = dirty.get(name);
+        return d == null ? Set.of() : Set.copyOf(d);
+    }
+
+    List<String> dirtyFiles() { return new ArrayList<>(dirty.keySet()); }
+
+    // The up-to-date replicas of a file in the order to read from them: fastest first.
+    List<Node> readOrder(String name) {
+        List<Node> reps = upToDate(name);
+        if (reps.size() == 1) return reps;
+        List<Node> out = new ArrayList<>(reps);
+        var rnd = ThreadLocalRandom.current();
+        if (rnd.nextInt(EXPLORE) == 0) {
+            Node n = out.remove(rnd.nextInt(out.size()));
+            out.sort(Comparator.comparingDouble(x -> x.latencyNanos));
+            out.add(0, n);
+        } else {
+            out.sort(Comparator.comparingDouble(x -> x.latencyNanos));
+        }
+        return out;
+    }
+
+    // Runs f on every node of on, in parallel if there are several, and returns the results in
+    // the same order. A node whose call fails has null in its place and the others' results
+    // stand; only if every call fails is the first failure thrown.
+    <T> List<T> onEach(List<Node> on, Function<Node, T> f) {
+        if (on.size() == 1) return Collections.singletonList(f.apply(on.get(0)));
+        List<CompletableFuture<T>> calls = new ArrayList<>(on.size());
+        for (Node n : on) calls.add(CompletableFuture.supplyAsync(() -> f.apply(n), FAN_OUT));
+        List<T> out = new ArrayList<>(on.size());
+        RuntimeException failed = null;
+        int ok = 0;
+        for (var c : calls) {
+            try {
+                out.add(c.join());
+                ok++;
+            } catch (CompletionException e) {
+                if (failed == null) failed = e.getCause() instanceof RuntimeException re ? re : e;
+                out.add(null);
+            }
+        }
+        if (ok == 0 && failed != null) throw failed;
+        return out;
+    }
+
+    // Reads from the nodes of order: from the first, then from the next as well whenever the
+    // last one started has run for longer than its node's hedge threshold, or one has failed as
+    // unreachable. The first answer wins and the calls still running are cancelled. Any other
+    // failure is thrown, and so is the last one if every node was unreachable. The calls run
+    // under a deadline of READ_DEADLINE_MILLIS (or the caller's, if sooner), and DEADLINE_EXCEEDED
+    // is thrown if none has answered by then. call starts the read on a node with the given
+    // observer.
+    <T> T hedged(List<Node> order, BiConsumer<Node, StreamObserver<T>> call) {
+        var ctx = Context.current().withDeadlineAfter(READ_DEADLINE_MILLIS, TimeUnit.MILLISECONDS, DEADLINES);
+        long deadline = System.nanoTime() + ctx.getDeadline().timeRemaining(TimeUnit.NANOSECONDS);
+        List<CompletableFuture<T>> calls = new ArrayList<>(order.size());
+        long[] started = new long[order.size()];
+        boolean[] failed = new boolean[order.size()];
+        RuntimeException failure = null;
+        boolean more = true;
+        try {
+            while (true) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw Status.DEADLINE_EXCEEDED.withDescription("no replica answered in time").withCause(failure).asRuntimeException();
+                }
+                if (more && calls.size() < order.size()) {
+                    int i = calls.size();
+                    var f = new CompletableFuture<T>();
+                    calls.add(f);
+                    started[i] = System.nanoTime();
+                    ctx.run(() -> call.accept(order.get(i), observer(f)));
+                }
+                more = false;
+                var live = calls.stream().filter(f -> !f.isDone()).toArray(CompletableFuture[]::new);
+                if (live.length > 0) {
+                    int last = calls.size() - 1;
+                    boolean hedge = hedgePercentile > 0 && calls.size() < order.size();
+                    try {
+                        if (hedge) {
+                            long wait = order.get(last).hedgeAfterNanos() - (System.nanoTime() - started[last]);
+                            CompletableFuture.anyOf(live).get(Math.max(Math.min(wait, left), 0), TimeUnit.NANOSECONDS);
+                        } else {
+                            CompletableFuture.anyOf(live).get(left, TimeUnit.NANOSECONDS);
+                        }
+                    } catch (TimeoutException e) {
+                        more = true;
+                        continue;
+                    } catch (ExecutionException ignored) {
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw Status.CANCELLED.withDescription("interrupted").withCause(e).asRuntimeException();
+                    }
+                }
+                for (int i = 0; i < calls.size(); i++) {
+                    var f = calls.get(i);
+                    if (!f.isDone() || failed[i]) continue;
+                    if (!f.isCompletedExceptionally()) {
+                        long now = System.nanoTime();
+                        order.get(i).sample(now - started[i], hedgePercentile);
+                        for (int j = 0; j < calls.size(); j++) {
+                            if (!calls.get(j).isDone()) order.get(j).penalize(now - started[j]);
+                        }
+                        return f.join();
+                    }
+                    failed[i] = true;
+                    try {
+                        f.join();
+                    } catch (CompletionException e) {
+                        failure = e.getCause() instanceof RuntimeException re ? re : e;
+                    }
+                    if (!unreachable(failure)) throw failure;
+                    order.get(i).penalize(UNREACHABLE_NANOS);
+                    more = true;
+                }
+                if (calls.size() == order.size() && calls.stream().allMatch(CompletableFuture::isDone)) throw failure;
+            }
+        } finally {
+            ctx.cancel(null);
+        }
+    }
+
+    private static <T> StreamObserver<T> observer(CompletableFuture<T> f) {
+        return new StreamObserver<>() {
+            private T value;
+
+            @Override public void onNext(T t) { value = t; }
+            @Override public void onError(Throwable t) { f.completeExceptionally(t); }
+            @Override public void onCompleted() { f.complete(value); }
+        };
+    }
+
+    // Whether a read that failed with t is worth retrying on another replica.
+    static boolean unreachable(RuntimeException t) {
+        if (!(t instanceof StatusRuntimeException s)) return false;
+        var code = s.getStatus().getCode();
+        return code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED;
+    }
+
+    void shutdown() {
+        for (ManagedChannel ch : channels) ch.shutdownNow();
+    }
+
+    static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(d).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nodes + (nodes.size() > 1 ? " x" + replicas : "");
+    }
+}
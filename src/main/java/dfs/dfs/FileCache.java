@@ -0,0 +1,85 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// Contents of whole files read or written on this node, served for as long as this node keeps
+// its grant on the file's lock. The grant is what makes an entry valid: nobody else can write
+// the file until it is revoked, so the DfsServiceImpl invalidates a file before LockClient
+// hands its lock back (see LockClient.beforeRelease). Entries are evicted least-recently-used once
+// more than maxBytes are held; a file larger than maxBytes / MAX_FILE_FRACTION is not kept, so
+// one large read cannot flush the rest. An entry is only served while the lease behind the grant
+// is fresh, since a lapsed lease loses the grant before this node hears it was revoked.
+class FileCache {
+
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+    static final int MAX_FILE_FRACTION = 8;
+
+    private final long maxBytes;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final LinkedHashMap<String, ByteString> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    FileCache(long maxBytes) { this.maxBytes = maxBytes; }
+
+    // The file's content, or null if it is not cached. The caller holds the file's lock.
+    ByteString get(String name) {
+        mu.lock();
+        try {
+            return files.get(name);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // data is the whole of the file as of now; the caller holds the file's lock.
+    void put(String name, ByteString data) {
+        if (data.size() > maxBytes / MAX_FILE_FRACTION) {
+            invalidate(name);
+            return;
+        }
+        mu.lock();
+        try {
+            ByteString old = files.put(name, data);
+            if (old != null) bytes -= old.size();
+            bytes += data.size();
+            Iterator<Map.Entry<String, ByteString>> it = files.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().size();
+                it.remove();
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    void invalidateIf(Predicate<String> name) {
+        mu.lock();
+        try {
+            Iterator<Map.Entry<String, ByteString>> it = files.entrySet().iterator();
+            while (it.hasNext()) {
+                var e = it.next();
+                if (!name.test(e.getKey())) continue;
+                bytes -= e.getValue().size();
+                it.remove();
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    void invalidate(String name) {
+        mu.lock();
+        try {
+            ByteString old = files.remove(name);
+            if (old != null) bytes -= old.size();
+        } finally {
+            mu.unlock();
+        }
+    }
+}
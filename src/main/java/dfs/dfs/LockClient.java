@@ -1,89 +1,367 @@
 package dfs.dfs;
 
 import dfs.lock.LockServiceGrpc;
+import dfs.transport.TransportConfig;
 import dfs.lock.LockServiceOuterClass;
+import dfs.lock.LockServiceOuterClass.LockMode;
+import io.grpc.stub.StreamObserver;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 public class LockClient {
     public enum State { None, Free, Locked, Acquiring, Releasing }
 
+    static final long WAIT_MILLIS = 10_000;
+    static final long RPC_SLACK_MILLIS = 5_000;
+    static final long RPC_RETRY_BACKOFF_MILLIS = 100;
+    static final int MAX_BATCH = 128;
+    static final long KEEPALIVE_MILLIS = 5_000;
+    static final long SWEEP_MILLIS = 30_000;
+    // Share of the lease time kept back when judging from this side whether a lease still holds.
+    static final long LEASE_MARGIN_PERCENT = 20;
+
+    private static final CompletableFuture<Boolean> GO = CompletableFuture.completedFuture(true);
+
     static class Entry {
         final ReentrantLock mu = new ReentrantLock();
         final Condition cv = mu.newCondition();
         State state = State.None;
-        int waiters = 0;
+        int waiters = 0;       // Threads parked on cv; the sweeper leaves such an entry alone
+        boolean dead = false;  // Retired by the sweeper; whoever still holds a reference must look again
+        long used;             // sweepGen of the last lockEntry()
         boolean revoked = false;
+        boolean lost = false;  // The grant was dropped for a lapsed lease or a failover
         long lastSeq = -1;
+        LockMode granted = null;
+        int readers = 0;
+        boolean writer = false;
+    }
+
+    static class Miss {
+        final String id;
+        final long seq;
+        final LockMode mode;
+        final CompletableFuture<Boolean> granted = new CompletableFuture<>();
+        Miss(String id, long seq, LockMode mode) { this.id = id; this.seq = seq; this.mode = mode; }
     }
 
     private final Map<String, Entry> table = new ConcurrentHashMap<>();
-    private final LockServiceGrpc.LockServiceBlockingStub lockStub;
+    private final LockGroups groups;
     private final String ownerId;
     private final AtomicLong nextSeq = new AtomicLong(1);
     private final BlockingQueue<String> toRelease = new LinkedBlockingQueue<>();
-    private final Thread releaserThread;
+    final BlockingQueue<Miss> misses = new LinkedBlockingQueue<>();
+    final ReentrantLock batching = new ReentrantLock();
+    private final Thread releaserThread, sweeperThread;
+    private final List<Thread> keepAliveThreads = new ArrayList<>();
+    private volatile long keepAliveMillis = KEEPALIVE_MILLIS;
+    private volatile long leaseMillis = 3 * KEEPALIVE_MILLIS;
+    private final AtomicLongArray renewed;    // Per group: when the last keep-alive that got an answer was sent
+    private final AtomicIntegerArray lapsed;  // Per group: set once the group's grants were dropped for a lapse
     private volatile boolean running = true;
+    private volatile long sweepGen = 0;
+    private volatile ReleaseHook beforeRelease = (id, lost) -> GO;
+
+    // Runs for each lock this node is about to hand back to the lock service, before it is sent,
+    // while nobody on this node holds it; whatever was cached under the lock must go. lost says
+    // the lease behind the grant may have lapsed, so that the lock service may have given the lock
+    // to another node already. The lock goes back once the future completes with true; with false,
+    // or if it has not completed while the lease surely holds, the grant is kept and the hook runs
+    // again a little later.
+    public interface ReleaseHook {
+        CompletableFuture<Boolean> beforeRelease(String id, boolean lost);
+    }
 
     public LockClient(LockServiceGrpc.LockServiceBlockingStub lockStub, String ownerId) {
-        this.lockStub = lockStub;
+        this(new LockGroups(lockStub), ownerId);
+    }
+
+    // groups: the replicas of each lock group (see LockGroups.parse); lock ids are hashed across groups.
+    public LockClient(List<List<String>> groups, String ownerId) {
+        this(groups, ownerId, TransportConfig.load("dfs", "default"));
+    }
+
+    // As above, with channels to the lock replicas opened as transport says.
+    public LockClient(List<List<String>> groups, String ownerId, TransportConfig transport) {
+        this(new LockGroups(groups, transport), ownerId);
+    }
+
+    private LockClient(LockGroups groups, String ownerId) {
+        this.groups = groups;
         this.ownerId = ownerId;
+        this.renewed = new AtomicLongArray(groups.size());
+        this.lapsed = new AtomicIntegerArray(groups.size());
+        for (int g = 0; g < groups.size(); g++) renewed.set(g, System.nanoTime());
         this.releaserThread = new Thread(this::releaserLoop, "lock-releaser");
         this.releaserThread.setDaemon(true);
         this.releaserThread.start();
+        this.sweeperThread = new Thread(this::sweeperLoop, "lock-sweeper");
+        this.sweeperThread.setDaemon(true);
+        this.sweeperThread.start();
+        for (int g = 0; g < groups.size(); g++) {
+            int group = g;
+            Thread t = new Thread(() -> keepAliveLoop(group), "lock-keepalive-" + g);
+            t.setDaemon(true);
+            t.start();
+            keepAliveThreads.add(t);
+        }
     }
 
     private Entry e(String id) { return table.computeIfAbsent(id, k -> new Entry()); }
 
-    public void acquire(String id) {
-        Entry e = e(id);
-        e.mu.lock();
-        try {
-            while (true) {
-                if (e.state == State.Locked || e.state == State.Free) {
-                    e.state = State.Locked;
-                    return;
+    // Returns the entry for id with e.mu held, stepping over an entry the sweeper retired meanwhile.
+    private Entry lockEntry(String id) {
+        while (true) {
+            Entry e = e(id);
+            e.mu.lock();
+            if (!e.dead) {
+                e.used = sweepGen;
+                return e;
+            }
+            e.mu.unlock();
+        }
+    }
+
+    public int entryCount() { return table.size(); }
+
+    public void beforeRelease(ReleaseHook hook) { this.beforeRelease = hook; }
+
+    // A release hook that always lets the lock go.
+    public void onRelease(Consumer<String> cb) {
+        beforeRelease((id, lost) -> {
+            cb.accept(id);
+            return GO;
+        });
+    }
+
+    // Every SWEEP_MILLIS: entries untouched since the previous pass are retired if nothing is
+    // cached for them (None), or have their cached grant handed back if it sits unused (Free),
+    // so both this table and the server's follow the working set rather than history.
+    private void sweeperLoop() {
+        while (running) {
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            long gen = sweepGen++;
+            for (Map.Entry<String, Entry> en : table.entrySet()) {
+                Entry e = en.getValue();
+                if (e.used >= gen || !e.mu.tryLock()) continue;
+                try {
+                    if (e.used >= gen || e.dead || e.waiters > 0 || e.revoked) continue;
+                    if (e.state == State.None) {
+                        e.dead = true;
+                        table.remove(en.getKey(), e);
+                    } else if (e.state == State.Free) {
+                        e.state = State.Releasing;
+                        toRelease.offer(en.getKey());
+                    }
+                } finally {
+                    e.mu.unlock();
                 }
+            }
+        }
+    }
+
+    public void acquire(String id) { acquire(id, LockMode.EXCLUSIVE); }
 
-                if (e.state == State.None || e.state == State.Acquiring) {
+    // Shared grants are cached like exclusive ones; an exclusive grant also serves shared requests.
+    // A revoked entry is not handed out again locally, so a busy node cannot starve remote waiters.
+    public void acquire(String id, LockMode mode) {
+        boolean shared = mode == LockMode.SHARED;
+        Entry e = lockEntry(id);
+        try {
+            while (true) {
+                if (e.granted != null && !e.revoked && !fresh(groups.partition(id))) revoke(id, e);
+                if ((e.state == State.Free || e.state == State.Locked) && !e.revoked) {
+                    if (covers(e.granted, mode)) {
+                        if (shared && !e.writer) {
+                            e.readers++;
+                            e.state = State.Locked;
+                            return;
+                        }
+                        if (!shared && !e.writer && e.readers == 0) {
+                            e.writer = true;
+                            e.state = State.Locked;
+                            return;
+                        }
+                    } else if (e.state == State.Free) {
+                        // Cached shared grant, exclusive wanted: hand it back and ask again.
+                        e.state = State.Releasing;
+                        toRelease.offer(id);
+                    }
+                } else if (e.state == State.None) {
                     long seq = nextSeq.getAndIncrement();
                     e.lastSeq = seq;
                     e.state = State.Acquiring;
 
                     e.mu.unlock();
-                    boolean ok = rpcAcquire(id, seq);
+                    Boolean ok = coalescedAcquire(id, seq, mode);
                     e.mu.lock();
 
-                    if (ok) {
+                    if (ok == Boolean.TRUE) {
+                        e.granted = mode;
                         e.state = State.Locked;
+                        if (shared) e.readers++; else e.writer = true;
+                        e.cv.signalAll();
                         return;
                     }
+                    e.state = State.None;
+                    e.cv.signalAll();
+                    if (ok == Boolean.FALSE) continue;
+                    e.waiters++;
+                    try { e.cv.await(RPC_RETRY_BACKOFF_MILLIS, TimeUnit.MILLISECONDS); }
+                    catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+                    finally { e.waiters--; }
+                    continue;
                 }
 
+                e.waiters++;
                 try { e.cv.await(); }
                 catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+                finally { e.waiters--; }
             }
         } finally {
             e.mu.unlock();
         }
     }
 
+    // Takes several locks in lockId order. Ids nobody on this node holds yet are fetched in
+    // one batchAcquire first, so a cold multi-path operation costs a single round-trip.
+    public void acquireAll(Collection<String> ids, LockMode mode) {
+        List<String> sorted = new ArrayList<>(new TreeSet<>(ids));
+        prefetch(sorted, mode);
+        for (String id : sorted) acquire(id, mode);
+    }
+
+    // Takes id exclusively only if this node holds an exclusive grant for it that nobody here is
+    // using, nobody has asked back and whose lease surely still holds; never calls the lock service.
+    public boolean tryAcquireCached(String id) {
+        Entry e = lockEntry(id);
+        try {
+            if (e.state != State.Free || e.revoked || e.granted != LockMode.EXCLUSIVE) return false;
+            if (!fresh(groups.partition(id))) return false;
+            e.writer = true;
+            e.state = State.Locked;
+            return true;
+        } finally {
+            e.mu.unlock();
+        }
+    }
+
+    public void releaseAll(Collection<String> ids) {
+        for (String id : new TreeSet<>(ids)) release(id);
+    }
+
+    private void prefetch(List<String> ids, LockMode mode) {
+        List<Miss> batch = new ArrayList<>();
+        for (String id : ids) {
+            Entry e = lockEntry(id);
+            try {
+                if (e.state == State.None) {
+                    long seq = nextSeq.getAndIncrement();
+                    e.lastSeq = seq;
+                    e.state = State.Acquiring;
+                    batch.add(new Miss(id, seq, mode));
+                }
+            } finally {
+                e.mu.unlock();
+            }
+        }
+        if (batch.isEmpty()) return;
+
+        boolean[] ok = rpcBatchAcquire(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            String id = batch.get(i).id;
+            Entry e = lockEntry(id);
+            try {
+                if (ok != null && ok[i]) {
+                    e.granted = mode;
+                    if (e.revoked) {
+                        e.state = State.Releasing;
+                        toRelease.offer(id);
+                    } else {
+                        e.state = State.Free;
+                    }
+                } else {
+                    e.state = State.None;
+                }
+                e.cv.signalAll();
+            } finally {
+                e.mu.unlock();
+            }
+        }
+    }
+
+    // Concurrent misses are coalesced: a thread that finds nobody sending a batch sends everything
+    // queued so far, its own miss included, in one batchAcquire, and keeps going while more
+    // queue up meanwhile. A miss that turns out to be alone, or that the batch could not grant
+    // right away, falls through to a long-poll acquireWait on its own thread.
+    private Boolean coalescedAcquire(String id, long seq, LockMode mode) {
+        Miss m = new Miss(id, seq, mode);
+        misses.offer(m);
+        while (!misses.isEmpty() && batching.tryLock()) {
+            try {
+                List<Miss> batch = new ArrayList<>();
+                misses.drainTo(batch, MAX_BATCH);
+                if (batch.size() == 1) {
+                    batch.get(0).granted.complete(false);
+                } else if (!batch.isEmpty()) {
+                    boolean[] ok = rpcBatchAcquire(batch);
+                    for (int i = 0; i < batch.size(); i++) batch.get(i).granted.complete(ok[i]);
+                }
+            } finally {
+                batching.unlock();
+            }
+        }
+        try {
+            if (m.granted.get()) return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception ex) {
+        }
+        return rpcAcquireWait(id, seq, mode);
+    }
+
+    private static boolean covers(LockMode granted, LockMode wanted) {
+        return granted == LockMode.EXCLUSIVE || (granted != null && granted == wanted);
+    }
+
     public void release(String id) {
-        Entry e = e(id);
-        e.mu.lock();
+        Entry e = lockEntry(id);
         try {
             if (e.state == State.Locked) {
-                if (e.revoked) {
-                    e.state = State.Releasing;
-                    toRelease.offer(id);
-                } else {
-                    e.state = State.Free;
+                if (e.writer) e.writer = false;
+                else if (e.readers > 0) e.readers--;
+                if (!e.writer && e.readers == 0) {
+                    if (e.revoked) {
+                        e.state = State.Releasing;
+                        toRelease.offer(id);
+                    } else {
+                        e.state = State.Free;
+                    }
                 }
                 e.cv.signalAll();
             }
@@ -93,25 +371,53 @@ public class LockClient {
     }
 
     public void onRevoke(String id) {
-        Entry e = e(id);
-        e.mu.lock();
+        Entry e = lockEntry(id);
         try {
-            e.revoked = true;
-
-            if (e.state == State.Free) {
-                e.state = State.Releasing;
-                toRelease.offer(id);
-            }
-
-            e.cv.signalAll();
+            revoke(id, e);
         } finally {
             e.mu.unlock();
         }
     }
 
+    // Caller holds e.mu.
+    private void revoke(String id, Entry e) {
+        e.revoked = true;
+
+        // None: a long-poll grant landed after this side gave up waiting for it.
+        if (e.state == State.Free || e.state == State.None) {
+            e.state = State.Releasing;
+            toRelease.offer(id);
+        }
+
+        e.cv.signalAll();
+    }
+
+    // Whether lock group g surely still has our lease: a keep-alive sent less than the lease
+    // time (less LEASE_MARGIN_PERCENT) ago was answered. The group measures the lease from when
+    // that keep-alive arrived, so this side gives up first.
+    private boolean fresh(int g) { return leaseLeftNanos(g) > 0; }
+
+    // Whether the lease behind this node's grant on id surely still holds. If not, the group's
+    // grants are dropped as for a lapse the keep-alive noticed.
+    public boolean leaseFresh(String id) {
+        int g = groups.partition(id);
+        if (fresh(g)) return true;
+        checkLapse(g);
+        return false;
+    }
+
+    // How much longer the lease behind this node's grant on id surely holds; 0 once it may have lapsed.
+    public long leaseLeftMillis(String id) { return TimeUnit.NANOSECONDS.toMillis(leaseLeftNanos(groups.partition(id))); }
+
+    private long leaseLeftNanos(int g) {
+        long age = System.nanoTime() - renewed.get(g);
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(leaseMillis * (100 - LEASE_MARGIN_PERCENT) / 100) - age, 0);
+    }
+
+    public boolean sameGroup(String a, String b) { return groups.partition(a) == groups.partition(b); }
+
     public void onRetry(String id, long seq) {
-        Entry e = e(id);
-        e.mu.lock();
+        Entry e = lockEntry(id);
         try {
             e.cv.signalAll();
         } finally {
@@ -122,22 +428,148 @@ public class LockClient {
     public void stop() {
         running = false;
         releaserThread.interrupt();
+        sweeperThread.interrupt();
+        keepAliveThreads.forEach(Thread::interrupt);
+        groups.close();
     }
 
-    private boolean rpcAcquire(String id, long seq) {
+    // Keeps one keep-alive stream open to the leader of lock group g. A changed lease epoch means
+    // the group let our lease lapse (or failed over) and reclaimed everything, so every cached
+    // grant of that group is dropped. So are they once no keep-alive got through for so long that
+    // the lease may have lapsed unseen, e.g. while the group is unreachable.
+    private void keepAliveLoop(int g) {
+        var ping = LockServiceOuterClass.KeepAliveRequest.newBuilder().setOwnerId(ownerId).build();
+        long[] epoch = {0};
+        while (running) {
+            checkLapse(g);
+            CountDownLatch closed = new CountDownLatch(1);
+            var used = groups.stub(g);
+            var sent = new ConcurrentLinkedQueue<Long>();
+            try {
+                StreamObserver<LockServiceOuterClass.KeepAliveRequest> out = LockServiceGrpc.newStub(used.getChannel()).keepAlive(new StreamObserver<>() {
+                    @Override
+                    public void onNext(LockServiceOuterClass.KeepAliveResponse resp) {
+                        Long at = sent.poll();
+                        keepAliveMillis = Math.max(100, resp.getLeaseMillis() / 3);
+                        leaseMillis = resp.getLeaseMillis();
+                        long prev = epoch[0];
+                        epoch[0] = resp.getEpoch();
+                        if (prev != 0 && prev != epoch[0]) dropGrants(g);
+                        if (at != null) {
+                            renewed.set(g, at);
+                            lapsed.set(g, 0);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        groups.failed(g, used, t);
+                        closed.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() { closed.countDown(); }
+                });
+                while (running && closed.getCount() > 0) {
+                    sent.add(System.nanoTime());
+                    out.onNext(ping);
+                    closed.await(keepAliveMillis, TimeUnit.MILLISECONDS);
+                    checkLapse(g);
+                }
+                if (closed.getCount() > 0) out.onCompleted();
+                else Thread.sleep(RPC_RETRY_BACKOFF_MILLIS);
+            } catch (InterruptedException ie) {
+                break;
+            } catch (RuntimeException e) {
+                try { Thread.sleep(RPC_RETRY_BACKOFF_MILLIS); }
+                catch (InterruptedException ie) { break; }
+            }
+        }
+    }
+
+    private void checkLapse(int g) {
+        if (!fresh(g) && lapsed.compareAndSet(g, 0, 1)) dropGrants(g);
+    }
+
+    private void dropGrants(int g) {
+        for (Map.Entry<String, Entry> en : table.entrySet()) {
+            if (groups.partition(en.getKey()) != g) continue;
+            Entry e = en.getValue();
+            e.mu.lock();
+            try {
+                if (e.dead || e.granted == null) continue;
+                e.lost = true;
+                revoke(en.getKey(), e);
+            } finally {
+                e.mu.unlock();
+            }
+        }
+    }
+
+    // TRUE when granted, FALSE when the server-side wait ran out, null when the call failed.
+    private Boolean rpcAcquireWait(String id, long seq, LockMode mode) {
         try {
-            var resp = lockStub.acquire(LockServiceOuterClass.AcquireRequest.newBuilder()
-                    .setLockId(id).setOwnerId(ownerId).setSequence(seq).build());
+            var req = LockServiceOuterClass.AcquireRequest.newBuilder()
+                    .setLockId(id).setOwnerId(ownerId).setSequence(seq)
+                    .setWaitMillis(WAIT_MILLIS).setMode(mode).build();
+            var resp = groups.call(groups.partition(id),
+                    s -> s.withDeadlineAfter(WAIT_MILLIS + RPC_SLACK_MILLIS, TimeUnit.MILLISECONDS).acquireWait(req));
             return resp.getSuccess();
         } catch (Exception e) {
-            return false;
+            return null;
+        }
+    }
+
+    // One batchAcquire per lock group the batch touches; a group that fails reports all false.
+    private boolean[] rpcBatchAcquire(List<Miss> batch) {
+        boolean[] ok = new boolean[batch.size()];
+        for (List<Integer> idx : byGroup(batch.size(), i -> batch.get(i).id)) {
+            try {
+                var b = LockServiceOuterClass.BatchAcquireRequest.newBuilder();
+                for (int i : idx) {
+                    Miss m = batch.get(i);
+                    b.addRequests(LockServiceOuterClass.AcquireRequest.newBuilder()
+                            .setLockId(m.id).setOwnerId(ownerId).setSequence(m.seq).setMode(m.mode));
+                }
+                var req = b.build();
+                var resp = groups.call(groups.partition(batch.get(idx.get(0)).id),
+                        s -> s.withDeadlineAfter(RPC_SLACK_MILLIS, TimeUnit.MILLISECONDS).batchAcquire(req));
+                for (int j = 0; j < idx.size() && j < resp.getResponsesCount(); j++) {
+                    ok[idx.get(j)] = resp.getResponses(j).getSuccess();
+                }
+            } catch (Exception e) {
+            }
         }
+        return ok;
+    }
+
+    private void rpcBatchRelease(List<String> ids) {
+        for (List<Integer> idx : byGroup(ids.size(), ids::get)) {
+            try {
+                var b = LockServiceOuterClass.BatchReleaseRequest.newBuilder();
+                for (int i : idx) {
+                    b.addRequests(LockServiceOuterClass.ReleaseRequest.newBuilder().setLockId(ids.get(i)).setOwnerId(ownerId));
+                }
+                var req = b.build();
+                groups.call(groups.partition(ids.get(idx.get(0))), s -> s.batchRelease(req));
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    // Positions 0..n-1 split by the lock group of id(i), in order, empty groups left out.
+    private List<List<Integer>> byGroup(int n, IntFunction<String> id) {
+        List<List<Integer>> out = new ArrayList<>();
+        for (int g = 0; g < groups.size(); g++) out.add(new ArrayList<>());
+        for (int i = 0; i < n; i++) out.get(groups.partition(id.apply(i))).add(i);
+        out.removeIf(List::isEmpty);
+        return out;
     }
 
     private void rpcRelease(String id, long seq) {
         try {
-            lockStub.release(LockServiceOuterClass.ReleaseRequest.newBuilder()
-                    .setLockId(id).setOwnerId(ownerId).build());
+            var req = LockServiceOuterClass.ReleaseRequest.newBuilder().setLockId(id).setOwnerId(ownerId).build();
+            groups.call(groups.partition(id), s -> s.release(req));
         } catch (Exception e) {
         }
     }
@@ -145,31 +577,74 @@ public class LockClient {
     private void releaserLoop() {
         while (running) {
             try {
-                String id = toRelease.take();
-                Entry e = e(id);
+                List<String> ids = new ArrayList<>();
+                ids.add(toRelease.take());
+                toRelease.drainTo(ids, MAX_BATCH - 1);
+                List<String> ready = handOver(ids);
 
-                long seq;
-                e.mu.lock();
-                try {
-                    seq = e.lastSeq;
-                } finally {
-                    e.mu.unlock();
+                if (ready.size() == 1) {
+                    String id = ready.get(0);
+                    long seq;
+                    Entry e = lockEntry(id);
+                    try {
+                        seq = e.lastSeq;
+                    } finally {
+                        e.mu.unlock();
+                    }
+                    rpcRelease(id, seq);
+                } else if (!ready.isEmpty()) {
+                    rpcBatchRelease(ready);
                 }
 
-                rpcRelease(id, seq);
-
-                e.mu.lock();
-                try {
-                    e.revoked = false;
-                    e.state = State.None;
-                    e.cv.signalAll();
-                } finally {
-                    e.mu.unlock();
+                for (String id : ready) {
+                    Entry e = lockEntry(id);
+                    try {
+                        e.revoked = false;
+                        e.lost = false;
+                        e.granted = null;
+                        e.state = State.None;
+                        e.cv.signalAll();
+                    } finally {
+                        e.mu.unlock();
+                    }
                 }
 
+                if (ready.size() < ids.size()) {
+                    // The rest stay Releasing, so nobody here takes them meanwhile.
+                    Thread.sleep(RPC_RETRY_BACKOFF_MILLIS);
+                    for (String id : ids) if (!ready.contains(id)) toRelease.offer(id);
+                }
             } catch (InterruptedException ie) {
                 break;
             }
         }
     }
+
+    // Runs the release hook for each of ids at once and returns the ids it let go, waiting for
+    // each no longer than its lease surely holds.
+    private List<String> handOver(List<String> ids) throws InterruptedException {
+        List<CompletableFuture<Boolean>> hooks = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            boolean lost;
+            Entry e = lockEntry(id);
+            try {
+                lost = e.lost || !fresh(groups.partition(id));
+            } finally {
+                e.mu.unlock();
+            }
+            try {
+                hooks.add(beforeRelease.beforeRelease(id, lost));
+            } catch (RuntimeException ex) {
+                hooks.add(CompletableFuture.failedFuture(ex));
+            }
+        }
+        List<String> ready = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                if (hooks.get(i).get(leaseLeftNanos(groups.partition(ids.get(i))), TimeUnit.NANOSECONDS)) ready.add(ids.get(i));
+            } catch (ExecutionException | TimeoutException ex) {
+            }
+        }
+        return ready;
+    }
 }
\ No newline at end of file
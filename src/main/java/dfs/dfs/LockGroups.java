@@ -0,0 +1,121 @@
+package dfs.dfs;
+
+import dfs.lock.LockServiceGrpc;
+import dfs.lock.LockServiceImpl;
+import dfs.transport.TransportConfig;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// The lock service as a DFS node sees it: one or more lock groups, each owning the lock ids
+// that hash to it, each a set of replicas of which one leads. Calls go to the replica last
+// known to lead; a follower's redirect moves the group to the leader it names, a dead or
+// not-yet-ready replica moves it on to the next one.
+class LockGroups {
+
+    static final int MAX_ATTEMPTS = 20;
+    static final long REDIRECT_BACKOFF_MILLIS = 50;
+
+    static class Group {
+        final List<String> replicas;
+        volatile String target;
+        volatile LockServiceGrpc.LockServiceBlockingStub stub;
+        Group(List<String> replicas) { this.replicas = replicas; }
+    }
+
+    private final List<Group> groups = new ArrayList<>();
+    private final TransportConfig transport;
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    // "h:p,h:p,h:p;h:p,h:p,h:p" - groups separated by ';', the replicas of a group by ','.
+    static List<List<String>> parse(String spec) {
+        List<List<String>> out = new ArrayList<>();
+        for (String g : spec.split(";")) {
+            if (!g.isBlank()) out.add(List.of(g.trim().split("\\s*,\\s*")));
+        }
+        return out;
+    }
+
+    LockGroups(List<List<String>> spec, TransportConfig transport) {
+        this.transport = transport;
+        for (List<String> replicas : spec) {
+            Group g = new Group(List.copyOf(replicas));
+            g.target = replicas.get(0);
+            g.stub = LockServiceGrpc.newBlockingStub(channel(g.target));
+            groups.add(g);
+        }
+    }
+
+    // A single group pinned to the caller's stub; redirects are not followed.
+    LockGroups(LockServiceGrpc.LockServiceBlockingStub stub) {
+        this.transport = null;
+        Group g = new Group(List.of());
+        g.stub = stub;
+        groups.add(g);
+    }
+
+    private ManagedChannel channel(String hostPort) {
+        return channels.computeIfAbsent(hostPort, transport::channel);
+    }
+
+    int size() { return groups.size(); }
+
+    int partition(String id) {
+        int h = id.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), groups.size());
+    }
+
+    LockServiceGrpc.LockServiceBlockingStub stub(int g) { return groups.get(g).stub; }
+
+    // Runs f against the group's current leader, following redirects for a while before giving up.
+    <T> T call(int g, Function<LockServiceGrpc.LockServiceBlockingStub, T> f) {
+        for (int attempt = 1; ; attempt++) {
+            var used = stub(g);
+            try {
+                return f.apply(used);
+            } catch (StatusRuntimeException e) {
+                if (attempt >= MAX_ATTEMPTS || !failed(g, used, e)) throw e;
+            }
+        }
+    }
+
+    // Points the group elsewhere after a call on `used` failed. Returns false if the error is
+    // not about reaching the leader, i.e. retrying elsewhere would not help.
+    boolean failed(int g, LockServiceGrpc.LockServiceBlockingStub used, Throwable t) {
+        Group grp = groups.get(g);
+        if (grp.replicas.isEmpty() || Status.fromThrowable(t).getCode() != Status.Code.UNAVAILABLE) return false;
+        Metadata md = Status.trailersFromThrowable(t);
+        String leader = md == null ? null : md.get(LockServiceImpl.LEADER_HEADER);
+        synchronized (grp) {
+            if (grp.stub == used) {
+                String next = leader;
+                if (next == null) {
+                    int i = grp.replicas.indexOf(grp.target);
+                    next = grp.replicas.get((i + 1) % grp.replicas.size());
+                }
+                grp.target = next;
+                grp.stub = LockServiceGrpc.newBlockingStub(channel(next));
+            }
+        }
+        if (leader == null) {
+            try {
+                Thread.sleep(REDIRECT_BACKOFF_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void close() {
+        for (ManagedChannel ch : channels.values()) ch.shutdownNow();
+    }
+}
@@ -0,0 +1,268 @@
+package dfs.dfs;
+
+import dfs.extent.ExtentServiceOuterClass;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Keeps the copies of each file on the ring's nodes in step for DfsServiceImpl: the clock that
+// versions its writes, the repair of replicas marked dirty, and the moves that follow a change
+// of the ring. Files are repaired and moved under their exclusive lock, after flush has written
+// out what this node buffered for them.
+final class Replication {
+
+    // How often files with a replica marked dirty are repaired.
+    static final long REPAIR_MILLIS = 1_000;
+
+    private final ExtentRing ring;
+    private final LockClient lockClient;
+    private final Consumer<String> flush;
+    private final AtomicLong clock = new AtomicLong();
+
+    Replication(ExtentRing ring, LockClient lockClient, Consumer<String> flush) {
+        this.ring = ring;
+        this.lockClient = lockClient;
+        this.flush = flush;
+    }
+
+    // Versions for writes: this node's clock in milliseconds, but past every version it issued
+    // or read before. Successive writes of a file, each under its exclusive lock, thus get
+    // increasing versions as long as the DFS nodes' clocks are closer together than the time
+    // between their writes.
+    long nextVersion() { return clock.updateAndGet(v -> Math.max(v + 1, System.currentTimeMillis())); }
+
+    void seen(long version) { clock.accumulateAndGet(version, Math::max); }
+
+    // The nodes that are not replicas of fileName, less those marked dirty for it.
+    List<ExtentRing.Node> others(String fileName) {
+        List<ExtentRing.Node> out = new ArrayList<>(ring.nodes());
+        out.removeAll(ring.replicas(fileName));
+        out.removeAll(ring.dirty(fileName));
+        return out;
+    }
+
+    // Brings the replicas marked dirty for a file back up to date, each file under its exclusive
+    // lock; what cannot be repaired yet stays dirty and is tried again next round. The marks live
+    // in this node's memory only, so a restart forgets the failures it saw before.
+    void repairLoop() {
+        while (true) {
+            try {
+                Thread.sleep(REPAIR_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (String name : ring.dirtyFiles()) {
+                try {
+                    lockClient.acquire(name);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                try {
+                    flush.accept(name);
+                    settle(name, null);
+                } catch (RuntimeException e) {
+                    System.err.printf("Repair of %s failed: %s%n", name, e);
+                } finally {
+                    lockClient.release(name);
+                }
+            }
+        }
+    }
+
+    // Moves every file to the nodes the ring places it on; returns how many were copied or
+    // removed. A node that cannot be listed keeps its copies until the next rebalance.
+    long rebalance() {
+        long moved = 0;
+        for (ExtentRing.Node n : ring.nodes()) {
+            try {
+                moved += rebalance(n, "/");
+            } catch (StatusRuntimeException e) {
+                System.err.printf("Rebalance skipped %s: %s%n", n, e.getStatus());
+            }
+        }
+        return moved;
+    }
+
+    // Settles the files under dir on node n that n is not a replica of, or is the primary of
+    // (to fill in replicas that lack them); returns how many were copied or removed.
+    private long rebalance(ExtentRing.Node n, String dir) {
+        DfsServiceImpl.Listing l = DfsServiceImpl.list(n, dir, "", 0);
+        if (l == null) return 0;
+        long moved = 0;
+        for (String name : l.names()) {
+            if (name.endsWith("/")) {
+                moved += rebalance(n, dir + name);
+                continue;
+            }
+            String fileName = dir + name;
+            var reps = ring.replicas(fileName);
+            if (reps.contains(n) && (reps.get(0) != n || reps.size() == 1)) continue;
+            lockClient.acquire(fileName);
+            try {
+                flush.accept(fileName);
+                if (settle(fileName, n)) moved++;
+            } finally {
+                lockClient.release(fileName);
+            }
+        }
+        return moved;
+    }
+
+    // Before an offset or append write: a replica marked dirty for the file is brought up to
+    // date first, and if the primary has no such file but another node does, the file is moved
+    // where the ring places it, so the write lands on its content.
+    void placeForUpdate(String fileName) {
+        if (!ring.dirty(fileName).isEmpty()) settle(fileName, null);
+        if (!ring.partial()) return;
+        var primary = ring.replicas(fileName).get(0);
+        if (version(primary, fileName) >= 0) return;
+        for (ExtentRing.Node n : others(fileName)) {
+            if (version(n, fileName) >= 0) {
+                settle(fileName, n);
+                return;
+            }
+        }
+    }
+
+    // Under the file's exclusive lock: makes every replica hold the newest copy among the
+    // replicas, from (if not null) and the nodes marked dirty for the file, and removes the file
+    // from from and the dirty nodes that are not replicas once a replica has that copy. Copies on
+    // dirty nodes only count if no other node was asked; and if none of those that were has the
+    // file, it was deleted and is removed everywhere. Nodes that cannot be reached stay (or are
+    // marked) dirty, so the repair loop comes back. Returns whether anything was copied or removed.
+    private boolean settle(String fileName, ExtentRing.Node from) {
+        var reps = ring.replicas(fileName);
+        var dirty = ring.dirty(fileName);
+        List<ExtentRing.Node> on = new ArrayList<>(reps);
+        if (from != null && !on.contains(from)) on.add(from);
+        for (ExtentRing.Node n : dirty) if (!on.contains(n)) on.add(n);
+        var versions = ring.onEach(on, n -> version(n, fileName));
+        boolean trusted = on.stream().anyMatch(n -> !dirty.contains(n));
+        ExtentRing.Node source = null;
+        long newest = -1;
+        for (int i = 0; i < on.size(); i++) {
+            Long v = versions.get(i);
+            if (trusted && dirty.contains(on.get(i))) continue;
+            if (v == null) {
+                if (trusted) return false;  // Its copy may be the newest: wait until it answers
+                continue;
+            }
+            if (v > newest) {
+                newest = v;
+                source = on.get(i);
+            }
+        }
+        boolean moved = false, placed = false;
+        for (int i = 0; i < on.size(); i++) {
+            var n = on.get(i);
+            Long v = versions.get(i);
+            if (v == null) {
+                ring.markDirty(fileName, n);
+            } else if (!reps.contains(n) || source == null) {
+                continue;
+            } else if (v != newest) {
+                try {
+                    copy(source, n, fileName, newest);
+                    moved = true;
+                    ring.markClean(fileName, n);
+                    placed = true;
+                } catch (StatusRuntimeException e) {
+                    ring.markDirty(fileName, n);
+                }
+            } else {
+                ring.markClean(fileName, n);
+                placed = true;
+            }
+        }
+        for (int i = 0; i < on.size(); i++) {
+            var n = on.get(i);
+            Long v = versions.get(i);
+            if (v == null || reps.contains(n) && source != null) continue;
+            if (v >= 0 && source != null && !placed) continue;
+            if (v >= 0) {
+                if (!remove(n, fileName)) {
+                    ring.markDirty(fileName, n);
+                    continue;
+                }
+                moved = true;
+            }
+            ring.markClean(fileName, n);
+        }
+        return moved;
+    }
+
+    // Deletes the file on n; false if n could not be reached.
+    private static boolean remove(ExtentRing.Node n, String fileName) {
+        try {
+            n.blocking.put(ExtentServiceOuterClass.PutRequest.newBuilder().setFileName(fileName).build());
+            return true;
+        } catch (StatusRuntimeException e) {
+            return false;
+        }
+    }
+
+    // The version of the file on n, -1 if n has no such file; a node that cannot tell throws.
+    long version(ExtentRing.Node n, String fileName) {
+        var st = n.blocking.stat(ExtentServiceOuterClass.StatRequest.newBuilder().setFileName(fileName).build());
+        if (!st.getExists()) return -1;
+        seen(st.getVersion());
+        return st.getVersion();
+    }
+
+    // Streams the file from one node into a replacement of it on another, at the given version.
+    private static void copy(ExtentRing.Node from, ExtentRing.Node to, String fileName, long version) {
+        var done = new CompletableFuture<ExtentServiceOuterClass.PutResponse>();
+        var ready = new Semaphore(0);
+        var out = (ClientCallStreamObserver<ExtentServiceOuterClass.PutChunk>) to.async.putStream(
+                new ClientResponseObserver<ExtentServiceOuterClass.PutChunk, ExtentServiceOuterClass.PutResponse>() {
+                    private ExtentServiceOuterClass.PutResponse resp;
+
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<ExtentServiceOuterClass.PutChunk> c) {
+                        c.setOnReadyHandler(ready::release);
+                    }
+
+                    @Override public void onNext(ExtentServiceOuterClass.PutResponse r) { resp = r; }
+                    @Override public void onError(Throwable t) { done.completeExceptionally(t); }
+                    @Override public void onCompleted() { done.complete(resp); }
+                });
+        try {
+            var first = ExtentServiceOuterClass.PutChunk.newBuilder().setFileName(fileName).setVersion(version);
+            Iterator<ExtentServiceOuterClass.GetChunk> it = from.blocking.getStream(
+                    ExtentServiceOuterClass.GetRequest.newBuilder().setFileName(fileName).build());
+            boolean named = false;
+            while (it.hasNext()) {
+                var chunk = it.next();
+                while (!out.isReady() && !done.isDone()) ready.tryAcquire(100, TimeUnit.MILLISECONDS);
+                out.onNext((named ? ExtentServiceOuterClass.PutChunk.newBuilder() : first).setData(chunk.getData()).build());
+                named = true;
+            }
+            if (!named) out.onNext(first.build());
+            out.onCompleted();
+        } catch (RuntimeException | InterruptedException e) {
+            out.onError(e);
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw Status.INTERNAL.withDescription("copy of " + fileName + " to " + to + " failed").withCause(e).asRuntimeException();
+        }
+        ExtentServiceOuterClass.PutResponse resp;
+        try {
+            resp = done.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+        if (resp == null || !resp.getSuccess()) {
+            throw Status.INTERNAL.withDescription("copy of " + fileName + " to " + to + " failed").asRuntimeException();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Whole-file writes this node has acknowledged but not yet written to the extent service. Like
+// FileCache entries they are only valid under this node's exclusive grant on the file's lock, so
+// the DfsServiceImpl writes a file out before LockClient hands its lock back, and in the
+// background once it has been dirty for FLUSH_DELAY_MILLIS. Repeated writes of a file in between
+// cost one extent write. Entries are kept in the order files first became dirty; at most maxBytes
+// are held, beyond which writes go to the extent service directly.
+class WriteBack {
+
+    static final long FLUSH_DELAY_MILLIS = 1_000;
+
+    private record Dirty(ByteString data, long since) { }
+
+    private final long maxBytes;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final LinkedHashMap<String, Dirty> files = new LinkedHashMap<>();
+    private long bytes = 0;
+
+    WriteBack(long maxBytes) { this.maxBytes = maxBytes; }
+
+    // data is the whole of the file as of now; the caller holds the file's exclusive lock.
+    // False if there is no room, in which case nothing changes.
+    boolean put(String name, ByteString data) {
+        mu.lock();
+        try {
+            Dirty old = files.get(name);
+            long after = bytes - (old == null ? 0 : old.data.size()) + data.size();
+            if (after > maxBytes) return false;
+            files.put(name, new Dirty(data, old == null ? System.nanoTime() : old.since));
+            bytes = after;
+            return true;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // The file's unwritten content, or null if it has none.
+    ByteString get(String name) {
+        mu.lock();
+        try {
+            Dirty d = files.get(name);
+            return d == null ? null : d.data;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Forgets name's content if it is still data, i.e. once data has been written out.
+    void remove(String name, ByteString data) {
+        mu.lock();
+        try {
+            Dirty d = files.get(name);
+            if (d != null && d.data == data) {
+                files.remove(name);
+                bytes -= data.size();
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Forgets name's content, which a newer write or a delete has made moot.
+    void discard(String name) {
+        mu.lock();
+        try {
+            Dirty d = files.remove(name);
+            if (d != null) bytes -= d.data.size();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Files dirty for longer than FLUSH_DELAY_MILLIS, or all of them with all set.
+    List<String> due(boolean all) {
+        long cutoff = System.nanoTime() - FLUSH_DELAY_MILLIS * 1_000_000;
+        List<String> out = new ArrayList<>();
+        mu.lock();
+        try {
+            for (var en : files.entrySet()) {
+                if (!all && en.getValue().since - cutoff > 0) break;
+                out.add(en.getKey());
+            }
+        } finally {
+            mu.unlock();
+        }
+        return out;
+    }
+}
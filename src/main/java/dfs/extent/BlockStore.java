@@ -0,0 +1,489 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The content-addressed store. A DFS file is a manifest listing the SHA-256 hashes of its
+// blocks (see Chunker); the blocks live once each under BLOCKS_DIR, named by hash. Every
+// manifest entry, open Reader and uncommitted Writer holds a reference on its block, and a
+// block is deleted when its last reference goes. Counts live in memory only: they are rebuilt
+// from the manifests on startup, which also drops blocks a crash left unreferenced.
+//
+// Blocks reach the disk and their directory before a manifest naming them is published, so a
+// crash never leaves a manifest pointing at a block that is not there.
+class BlockStore implements ExtentStore {
+
+    static final String BLOCKS_DIR = ".extent-blocks";
+    private static final int MAGIC = 0x45584d31; // "EXM1"
+    private static final int HASH_BYTES = 32;
+    private static final int STRIPES = 256;
+    private static final HexFormat HEX = HexFormat.of();
+
+    // Block lengths and their running end offsets, in file order; the version is the manifest
+    // file's modification time.
+    private record Manifest(ByteString[] hashes, long[] ends, long version) {
+        static final Manifest EMPTY = new Manifest(new ByteString[0], new long[0], 0);
+        long size() { return ends.length == 0 ? 0 : ends[ends.length - 1]; }
+        long start(int i) { return i == 0 ? 0 : ends[i - 1]; }
+        int length(int i) { return (int) (ends[i] - start(i)); }
+        // Index of the block holding pos, or the block count if pos is at or past the end.
+        int blockAt(long pos) {
+            int i = Arrays.binarySearch(ends, pos);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+    }
+
+    private final Path blocksDir;
+    private final MappedFiles mapped;
+    private final FileSync sync;
+    // Reference counts by block hash. A block uploaded ahead of its manifest sits at 0.
+    private final ReentrantLock mu = new ReentrantLock();
+    private final Map<ByteString, Integer> refs = new HashMap<>();
+    // Held from reading a manifest until its blocks are pinned or it is replaced, so a reader
+    // never pins the blocks of a manifest a commit has already released.
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    BlockStore(Path root, MappedFiles mapped, FileSync sync) throws IOException {
+        this.blocksDir = root.resolve(BLOCKS_DIR);
+        this.mapped = mapped;
+        this.sync = sync;
+        for (int i = 0; i < 256; i++) Files.createDirectories(blocksDir.resolve(HEX.toHexDigits((byte) i)));
+        recount(root);
+    }
+
+    private void recount(Path root) throws IOException {
+        try (var files = Files.walk(root)) {
+            files.filter(f -> !f.startsWith(blocksDir) && Files.isRegularFile(f)).forEach(f -> {
+                try {
+                    for (ByteString h : readManifest(f).hashes()) refs.merge(h, 1, Integer::sum);
+                } catch (IOException e) {
+                    System.err.println("Extent: skipping " + f + ": " + e.getMessage());
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Set<ByteString> found = new HashSet<>();
+        int dropped = 0;
+        try (var files = Files.walk(blocksDir)) {
+            for (Path f : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                ByteString h;
+                try {
+                    h = UnsafeByteOperations.unsafeWrap(HEX.parseHex(f.getFileName().toString()));
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (refs.containsKey(h)) {
+                    found.add(h);
+                } else {
+                    Files.deleteIfExists(f);
+                    dropped++;
+                }
+            }
+        }
+        int missing = refs.size() - found.size();
+        refs.keySet().retainAll(found);
+        System.out.printf("Extent: %d blocks referenced, %d unreferenced removed%s%n", refs.size(), dropped,
+                missing > 0 ? ", " + missing + " MISSING" : "");
+    }
+
+    private Path blockPath(ByteString hash) {
+        String hex = HEX.formatHex(hash.toByteArray());
+        return blocksDir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private ReentrantLock stripe(Path real) {
+        return stripes[Math.floorMod(real.hashCode(), STRIPES)];
+    }
+
+    // ---- Reference counts ----
+
+    private void pin(ByteString[] hashes) throws IOException {
+        mu.lock();
+        try {
+            for (int i = 0; i < hashes.length; i++) {
+                Integer c = refs.get(hashes[i]);
+                if (c == null) {
+                    for (int j = 0; j < i; j++) releaseLocked(hashes[j]);
+                    throw new NoSuchFileException(blockPath(hashes[i]).toString(), null, "missing block");
+                }
+                refs.put(hashes[i], c + 1);
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    private void release(List<ByteString> hashes) {
+        mu.lock();
+        try {
+            for (ByteString h : hashes) releaseLocked(h);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    private void releaseLocked(ByteString h) {
+        Integer c = refs.get(h);
+        if (c == null) return;
+        if (c > 1) {
+            refs.put(h, c - 1);
+            return;
+        }
+        refs.remove(h);
+        Path p = blockPath(h);
+        if (mapped != null) mapped.invalidate(p);
+        try { Files.deleteIfExists(p); } catch (IOException ignored) {}
+    }
+
+    // Stores a block unless it is already here and adds ref references to it. Directories of
+    // newly written blocks go into touched, to be synced before anything names the block.
+    private ByteString store(ByteString block, int ref, Set<Path> touched) throws IOException {
+        ByteString h = Chunker.hash(block);
+        mu.lock();
+        try {
+            Integer c = refs.get(h);
+            if (c != null) {
+                refs.put(h, c + ref);
+                return h;
+            }
+        } finally {
+            mu.unlock();
+        }
+        Path p = blockPath(h);
+        Path tmp = FileStore.tempFor(p);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            FileStore.write(ch, block, 0);
+            if (sync.durable()) ch.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        mu.lock();
+        try {
+            Integer c = refs.get(h);
+            if (c != null) {
+                // Another writer stored it meanwhile.
+                refs.put(h, c + ref);
+                Files.deleteIfExists(tmp);
+            } else {
+                Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE);
+                refs.put(h, ref);
+                touched.add(p.getParent());
+            }
+        } finally {
+            mu.unlock();
+        }
+        return h;
+    }
+
+    void syncDirs(Set<Path> dirs) throws IOException {
+        if (!sync.durable()) return;
+        for (Path d : dirs) FileSync.syncDir(d);
+        dirs.clear();
+    }
+
+    private ByteString readBlock(ByteString hash, int blockLen, int off, int len) throws IOException {
+        Path p = blockPath(hash);
+        if (mapped != null && blockLen >= MappedFiles.MIN_MAPPED_FILE) return mapped.readImmutable(p, blockLen, off, len);
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            return FileStore.readRange(null, null, ch, blockLen, off, len);
+        }
+    }
+
+    // ---- Manifests ----
+
+    private static Manifest readManifest(Path real) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(real));
+        if (b.remaining() < 8 || b.getInt() != MAGIC) throw new IOException("not a block manifest");
+        int n = b.getInt();
+        if (b.remaining() != n * (long) (HASH_BYTES + 4)) throw new IOException("truncated block manifest");
+        var hashes = new ByteString[n];
+        var ends = new long[n];
+        long end = 0;
+        for (int i = 0; i < n; i++) {
+            hashes[i] = ByteString.copyFrom(b, HASH_BYTES);
+            end += b.getInt();
+            ends[i] = end;
+        }
+        return new Manifest(hashes, ends, Files.getLastModifiedTime(real).toMillis());
+    }
+
+    private static ByteString encode(List<ByteString> hashes, List<Integer> lengths) {
+        ByteBuffer b = ByteBuffer.allocate(8 + hashes.size() * (HASH_BYTES + 4));
+        b.putInt(MAGIC).putInt(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            hashes.get(i).copyTo(b);
+            b.putInt(lengths.get(i));
+        }
+        b.flip();
+        return UnsafeByteOperations.unsafeWrap(b);
+    }
+
+    // Reads the manifest at real and pins its blocks; null if there is no file.
+    private Manifest openManifest(Path real) throws IOException {
+        var l = stripe(real);
+        l.lock();
+        try {
+            if (!Files.isRegularFile(real)) return null;
+            Manifest m = readManifest(real);
+            pin(m.hashes());
+            return m;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    // Publishes a manifest whose entries already hold a reference each, then drops the
+    // references of the manifest it replaced.
+    private void publish(Path real, List<ByteString> hashes, List<Integer> lengths, Set<Path> touched, long version) throws IOException {
+        syncDirs(touched);
+        if (real.getParent() != null) Files.createDirectories(real.getParent());
+        Path tmp = FileStore.tempFor(real);
+        Manifest old = null;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            FileStore.write(ch, encode(hashes, lengths), 0);
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(version));
+            var l = stripe(real);
+            l.lock();
+            try {
+                if (Files.isRegularFile(real)) {
+                    try { old = readManifest(real); } catch (IOException ignored) {}
+                }
+                sync.replace(ch, tmp, real);
+            } finally {
+                l.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (old != null) release(Arrays.asList(old.hashes()));
+    }
+
+    // ---- ExtentStore ----
+
+    @Override
+    public Reader open(Path real) throws IOException {
+        Manifest m = openManifest(real);
+        if (m == null) throw new NoSuchFileException(real.toString());
+        return new Reader() {
+            private boolean closed = false;
+
+            @Override public long size() { return m.size(); }
+
+            @Override public long version() { return m.version(); }
+
+            @Override
+            public ByteString read(long pos, int len) throws IOException {
+                ByteString out = ByteString.EMPTY;
+                for (int i = m.blockAt(pos); len > 0; i++) {
+                    int off = (int) (pos - m.start(i));
+                    int n = Math.min(len, m.length(i) - off);
+                    out = out.concat(readBlock(m.hashes()[i], m.length(i), off, n));
+                    pos += n;
+                    len -= n;
+                }
+                return out;
+            }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                release(Arrays.asList(m.hashes()));
+            }
+        };
+    }
+
+    @Override
+    public Writer create(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+        return new BlockWriter(real, inPlace, append, offset);
+    }
+
+    @Override
+    public boolean delete(Path real) throws IOException {
+        Manifest old;
+        var l = stripe(real);
+        l.lock();
+        try {
+            if (!Files.isRegularFile(real)) return false;
+            try { old = readManifest(real); } catch (IOException e) { old = Manifest.EMPTY; }
+            Files.delete(real);
+            sync.deleted(real);
+        } finally {
+            l.unlock();
+        }
+        release(Arrays.asList(old.hashes()));
+        return true;
+    }
+
+    @Override
+    public List<String> list(Path dir) throws IOException {
+        return FileStore.listRegularFiles(dir);
+    }
+
+    // ---- Block protocol: the client splits, asks which blocks are here and sends the rest ----
+
+    List<Boolean> has(List<ByteString> hashes) {
+        List<Boolean> out = new ArrayList<>(hashes.size());
+        mu.lock();
+        try {
+            for (ByteString h : hashes) out.add(refs.containsKey(h));
+        } finally {
+            mu.unlock();
+        }
+        return out;
+    }
+
+    // Stores a block ahead of a manifest; syncDirs(touched) before acknowledging it. Until a
+    // manifest names it the block is unreferenced, and goes the next time the store starts.
+    ByteString putBlock(ByteString block, Set<Path> touched) throws IOException {
+        return store(block, 0, touched);
+    }
+
+    // Replaces the file at real with the given blocks, as version. Returns the hashes that are not
+    // here, in which case nothing was written, or an empty list and the new file size in size[0].
+    List<ByteString> putManifest(Path real, List<ByteString> hashes, long[] size, long version) throws IOException {
+        List<ByteString> missing = new ArrayList<>();
+        mu.lock();
+        try {
+            for (ByteString h : hashes) if (!refs.containsKey(h)) missing.add(h);
+            if (!missing.isEmpty()) return missing;
+            for (ByteString h : hashes) refs.merge(h, 1, Integer::sum);
+        } finally {
+            mu.unlock();
+        }
+        boolean published = false;
+        try {
+            List<Integer> lengths = new ArrayList<>(hashes.size());
+            long total = 0;
+            for (ByteString h : hashes) {
+                long n = Files.size(blockPath(h));
+                lengths.add((int) n);
+                total += n;
+            }
+            publish(real, hashes, lengths, new HashSet<>(), version);
+            published = true;
+            size[0] = total;
+            return missing;
+        } finally {
+            if (!published) release(hashes);
+        }
+    }
+
+    // A write in progress: new content goes through a Chunker and every block is stored (or
+    // found) as soon as it is cut. An in-place write starts from the blocks of the current file:
+    // those wholly before the write are kept, the rest is re-split from the start of the first
+    // one it touches until a cut lands on an old block boundary, after which the old blocks are
+    // kept again. The new manifest replaces the old one on commit.
+    private final class BlockWriter implements Writer {
+        private final Path real;
+        private final Manifest base;
+        private final Chunker chunker = new Chunker();
+        private final List<ByteString> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final Set<Path> touched = new HashSet<>();
+        // Position in the new file of the next byte fed to the chunker.
+        private long pos;
+        private boolean committed = false;
+
+        BlockWriter(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+            this.real = real;
+            Manifest m = inPlace ? openManifest(real) : null;
+            this.base = m != null ? m : Manifest.EMPTY;
+            try {
+                long at = !inPlace ? 0 : append ? base.size() : offset;
+                int k = base.blockAt(Math.min(at, base.size()));
+                keep(0, k);
+                pos = base.start(Math.min(k, base.ends().length));
+                if (k < base.ends().length) {
+                    feed(readBlock(base.hashes()[k], base.length(k), 0, (int) (at - pos)));
+                } else if (at > pos) {
+                    // A write past the end leaves a hole of zeros, as on a plain file.
+                    byte[] zeros = new byte[Chunker.MAX_BLOCK];
+                    while (pos < at) feed(UnsafeByteOperations.unsafeWrap(zeros, 0, (int) Math.min(zeros.length, at - pos)));
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // Takes references on old blocks [from, to) and appends them to the new file.
+        private void keep(int from, int to) throws IOException {
+            if (from >= to) return;
+            pin(Arrays.copyOfRange(base.hashes(), from, to));
+            for (int i = from; i < to; i++) {
+                hashes.add(base.hashes()[i]);
+                lengths.add(base.length(i));
+            }
+            pos = base.ends()[to - 1];
+        }
+
+        private void feed(ByteString data) throws IOException {
+            pos += data.size();
+            for (ByteString b : chunker.add(data)) add(b);
+        }
+
+        private void add(ByteString block) throws IOException {
+            hashes.add(store(block, 1, touched));
+            lengths.add(block.size());
+        }
+
+        @Override
+        public void write(ByteString data) throws IOException {
+            feed(data);
+        }
+
+        @Override
+        public long commit(long version) throws IOException {
+            // Re-split the old bytes after the write until the cuts line up with the old ones.
+            int n = base.ends().length;
+            for (int i = base.blockAt(pos); i < n; i++) {
+                long start = base.start(i);
+                if (pos == start && chunker.pendingBytes() == 0) {
+                    keep(i, n);
+                    break;
+                }
+                int off = (int) (pos - start);
+                feed(readBlock(base.hashes()[i], base.length(i), off, base.length(i) - off));
+            }
+            ByteString last = chunker.finish();
+            if (!last.isEmpty()) add(last);
+            publish(real, hashes, lengths, touched, version);
+            committed = true;
+            return pos;
+        }
+
+        @Override
+        public void close() {
+            if (!committed) release(hashes);
+            committed = true;
+            release(Arrays.asList(base.hashes()));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits a byte stream into content-defined blocks for the block store. A block ends where a
+// gear hash over the last 64 bytes has its top bits clear (or at MAX_BLOCK), so an insert or
+// delete in a file only changes the blocks around it and the rest still match the blocks of
+// the other copies. The hash restarts at every cut, so two streams that share a cut point
+// split identically from there on. Clients that skip blocks the server has must split with
+// this class, or their hashes will not match.
+public final class Chunker {
+
+    public static final int MIN_BLOCK = 16 * 1024;
+    public static final int MAX_BLOCK = 256 * 1024;
+    // 16 bits: a cut every 64KiB past MIN_BLOCK on average.
+    private static final long MASK = 0xFFFFL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long x = 0x5DEECE66DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private ByteString pending = ByteString.EMPTY;
+    private int count = 0;
+    private long h = 0;
+    private final byte[] scratch = new byte[8192];
+
+    // Adds data to the stream and returns the blocks it completed, in order.
+    public List<ByteString> add(ByteString data) {
+        List<ByteString> out = new ArrayList<>();
+        for (ByteBuffer b : data.asReadOnlyByteBufferList()) {
+            int start = b.position();
+            while (b.hasRemaining()) {
+                int at = b.position();
+                int n = Math.min(scratch.length, b.remaining());
+                b.get(scratch, 0, n);
+                int i = 0;
+                while (i < n) {
+                    if (count < MIN_BLOCK - 64) {
+                        // The hash only reaches back 64 bytes, so nothing before that matters.
+                        int skip = Math.min(n - i, MIN_BLOCK - 64 - count);
+                        count += skip;
+                        i += skip;
+                        continue;
+                    }
+                    int from = i;
+                    long g = h;
+                    if (count < MIN_BLOCK) {
+                        for (int e = i + Math.min(n - i, MIN_BLOCK - count); i < e; i++) g = (g << 1) + GEAR[scratch[i] & 0xff];
+                        h = g;
+                        count += i - from;
+                        continue;
+                    }
+                    boolean cut = false;
+                    for (int e = i + Math.min(n - i, MAX_BLOCK - count); i < e && !cut; i++) {
+                        g = (g << 1) + GEAR[scratch[i] & 0xff];
+                        cut = (g & MASK) == 0;
+                    }
+                    h = g;
+                    count += i - from;
+                    if (cut || count == MAX_BLOCK) {
+                        int end = at + i;
+                        out.add(pending.concat(slice(b, start, end)));
+                        pending = ByteString.EMPTY;
+                        count = 0;
+                        h = 0;
+                        start = end;
+                    }
+                }
+            }
+            if (b.position() > start) pending = pending.concat(slice(b, start, b.position()));
+        }
+        return out;
+    }
+
+    // Ends the stream: the last, short block, or empty if the stream ended on a cut.
+    public ByteString finish() {
+        ByteString last = pending;
+        pending = ByteString.EMPTY;
+        count = 0;
+        h = 0;
+        return last;
+    }
+
+    // Bytes added since the last cut.
+    public int pendingBytes() { return count; }
+
+    public static List<ByteString> split(ByteString data) {
+        var c = new Chunker();
+        List<ByteString> blocks = c.add(data);
+        ByteString last = c.finish();
+        if (!last.isEmpty()) blocks.add(last);
+        return blocks;
+    }
+
+    // SHA-256 of a block: its name in the store.
+    public static ByteString hash(ByteString block) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (ByteBuffer b : block.asReadOnlyByteBufferList()) md.update(b);
+        return UnsafeByteOperations.unsafeWrap(md.digest());
+    }
+
+    private static ByteString slice(ByteBuffer b, int from, int to) {
+        return UnsafeByteOperations.unsafeWrap(b.duplicate().position(from).limit(to).slice());
+    }
+}
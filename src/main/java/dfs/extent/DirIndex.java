@@ -0,0 +1,180 @@
+package dfs.extent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sorted listings of recently listed directories, so a listing is a walk over an in-memory set
+// instead of a directory scan and a stat per entry. A directory is scanned the first time it is
+// listed and kept up to date from then on by the service's put, delete, mkdir and rmdir.
+// Directories are dropped least-recently-listed first once more than maxEntries names are held.
+// Entries are names, with a trailing "/" for directories.
+//
+// Updates to a directory wait while it is being loaded (ConcurrentHashMap.computeIfPresent
+// blocks on the same bin), so none is lost to the scan. Changes to one name must not race each
+// other, which the DFS's exclusive locks already ensure.
+class DirIndex {
+
+    static final long DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    private static final class Dir {
+        final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+        volatile long lastUsed;
+    }
+
+    private final Path root;
+    private final ExtentStore store;
+    private final long maxEntries;
+    private final ConcurrentMap<Path, Dir> dirs = new ConcurrentHashMap<>();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    DirIndex(Path root, ExtentStore store, long maxEntries) {
+        this.root = root;
+        this.store = store;
+        this.maxEntries = maxEntries;
+    }
+
+    // The sorted entries of dir, or null if it is not a directory. The set is live: iterating it
+    // while it changes is safe and sees some of the changes.
+    NavigableSet<String> list(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return null;
+        Dir d;
+        try {
+            d = dirs.computeIfAbsent(dir, this::load);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        d.lastUsed = clock.incrementAndGet();
+        if (entries.get() > maxEntries) evict(d);
+        return d.names;
+    }
+
+    // dir's entries if it is indexed, without loading it otherwise.
+    NavigableSet<String> cached(Path dir) {
+        Dir d = dirs.get(dir);
+        if (d == null) return null;
+        d.lastUsed = clock.incrementAndGet();
+        return d.names;
+    }
+
+    private Dir load(Path dir) {
+        Dir d = new Dir();
+        try (var it = scan(dir, store)) {
+            while (it.hasNext()) d.names.add(it.next());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        entries.addAndGet(d.names.size());
+        return d;
+    }
+
+    // The entries of dir, read lazily from the directory in its own order.
+    static Scan scan(Path dir, ExtentStore store) throws IOException {
+        return new Scan(dir, store);
+    }
+
+    static final class Scan implements Iterator<String>, Closeable {
+        private final Path dir;
+        private final ExtentStore store;
+        private final DirectoryStream<Path> ds;
+        private Iterator<Path> it;
+        private Iterator<String> rest;
+        private String next;
+
+        private Scan(Path dir, ExtentStore store) throws IOException {
+            this.dir = dir;
+            this.store = store;
+            this.ds = Files.newDirectoryStream(dir);
+            this.it = ds.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && it != null && it.hasNext()) {
+                    Path child = it.next();
+                    String name = child.getFileName().toString();
+                    if (name.startsWith(ExtentServiceImpl.RESERVED_PREFIX)) continue;
+                    if (Files.isDirectory(child)) next = name + "/";
+                    else if (store.filesOnDisk() && Files.isRegularFile(child)) next = name;
+                }
+                if (next == null && it != null) {
+                    it = null;
+                    rest = store.filesOnDisk() ? Collections.emptyIterator() : store.list(dir).iterator();
+                }
+                if (next == null && rest.hasNext()) next = rest.next();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String n = next;
+            next = null;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            try { ds.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void evict(Dir keep) {
+        List<Path> order = new ArrayList<>(dirs.keySet());
+        order.sort((a, b) -> Long.compare(lastUsed(a), lastUsed(b)));
+        for (Path p : order) {
+            if (entries.get() <= maxEntries) return;
+            Dir d = dirs.get(p);
+            if (d == null || d == keep) continue;
+            if (dirs.remove(p, d)) entries.addAndGet(-d.names.size());
+        }
+    }
+
+    private long lastUsed(Path p) {
+        Dir d = dirs.get(p);
+        return d == null ? Long.MAX_VALUE : d.lastUsed;
+    }
+
+    // real now exists, and so does every directory above it.
+    void added(Path real, boolean directory) {
+        String suffix = directory ? "/" : "";
+        for (Path p = real; p.getParent() != null && p.startsWith(root) && !p.equals(root); p = p.getParent()) {
+            String name = p.getFileName() + suffix;
+            dirs.computeIfPresent(p.getParent(), (k, d) -> {
+                if (d.names.add(name)) entries.incrementAndGet();
+                return d;
+            });
+            suffix = "/";
+        }
+    }
+
+    void removed(Path real, boolean directory) {
+        String name = real.getFileName() + (directory ? "/" : "");
+        dirs.computeIfPresent(real.getParent(), (k, d) -> {
+            if (d.names.remove(name)) entries.decrementAndGet();
+            return d;
+        });
+        if (directory) {
+            Dir d = dirs.remove(real);
+            if (d != null) entries.addAndGet(-d.names.size());
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package dfs.extent;
+
+// When a put is acknowledged relative to the disk. Files are replaced atomically (temp file,
+// then rename) in every mode. NONE leaves flushing to the OS, FSYNC syncs each put on its own
+// and GROUP syncs together every put that arrives while the previous batch is being synced.
+public enum Durability { NONE, FSYNC, GROUP }
@@ -1,29 +1,86 @@
 package dfs.extent;
 
+import com.google.protobuf.ByteString;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
 
+import dfs.extent.ExtentServiceOuterClass.BlockData;
+import dfs.extent.ExtentServiceOuterClass.DirEntry;
+import dfs.extent.ExtentServiceOuterClass.GetChunk;
 import dfs.extent.ExtentServiceOuterClass.GetRequest;
 import dfs.extent.ExtentServiceOuterClass.GetResponse;
+import dfs.extent.ExtentServiceOuterClass.HasBlocksRequest;
+import dfs.extent.ExtentServiceOuterClass.HasBlocksResponse;
+import dfs.extent.ExtentServiceOuterClass.ListRequest;
+import dfs.extent.ExtentServiceOuterClass.ListResponse;
+import dfs.extent.ExtentServiceOuterClass.PutBlocksResponse;
+import dfs.extent.ExtentServiceOuterClass.PutChunk;
+import dfs.extent.ExtentServiceOuterClass.PutManifestRequest;
+import dfs.extent.ExtentServiceOuterClass.PutManifestResponse;
 import dfs.extent.ExtentServiceOuterClass.PutRequest;
 import dfs.extent.ExtentServiceOuterClass.PutResponse;
+import dfs.extent.ExtentServiceOuterClass.StatRequest;
+import dfs.extent.ExtentServiceOuterClass.StatResponse;
 import dfs.extent.ExtentServiceOuterClass.StopRequest;
 import dfs.extent.ExtentServiceOuterClass.StopResponse;
 
 public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
 
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final long DEFAULT_MAP_CACHE_BYTES = 1L << 30;
+    static final int MAX_LIST_PAGE = 4096;
+    // Names the service keeps for itself under the root; listings skip them and DFS names
+    // cannot reach them.
+    static final String RESERVED_PREFIX = ".extent-";
+    // Replacements are written under this name next to their target.
+    static final String TMP_PREFIX = RESERVED_PREFIX + "tmp.";
+
     private final Path rootPath;
     private final Runnable shutdownCallback;
+    private final ExtentStore store;
+    private final DirIndex dirIndex;
+
+    public ExtentServiceImpl(Path rootPath, Runnable shutdownCallback) throws IOException {
+        this(rootPath, shutdownCallback, DEFAULT_MAP_CACHE_BYTES, Durability.GROUP, StorageEngine.FILES);
+    }
 
-    public ExtentServiceImpl(Path rootPath, Runnable shutdownCallback) {
+    // mapCacheBytes bounds the file mappings reads are served from; 0 reads into the heap instead.
+    public ExtentServiceImpl(Path rootPath, Runnable shutdownCallback, long mapCacheBytes, Durability durability,
+                             StorageEngine engine) throws IOException {
         this.rootPath = rootPath.normalize().toAbsolutePath();
         this.shutdownCallback = shutdownCallback;
+        removeStaleTemps();
+        MappedFiles mapped = mapCacheBytes > 0 ? new MappedFiles(mapCacheBytes) : null;
+        FileSync sync = new FileSync(durability);
+        this.store = switch (engine) {
+            case FILES -> new FileStore(mapped, sync);
+            case BLOCKS -> new BlockStore(this.rootPath, mapped, sync);
+            case SEGMENTS -> new SegmentStore(this.rootPath, mapped, sync);
+        };
+        this.dirIndex = new DirIndex(this.rootPath, store, DirIndex.DEFAULT_MAX_ENTRIES);
+    }
+
+    // Temp files left by puts that were cut short by a crash.
+    private void removeStaleTemps() {
+        try (var files = Files.walk(rootPath)) {
+            files.filter(f -> f.getFileName().toString().startsWith(TMP_PREFIX)).forEach(f -> {
+                try { Files.deleteIfExists(f); } catch (IOException ignored) {}
+            });
+        } catch (IOException | UncheckedIOException ignored) {
+        }
     }
     // ---- Helpers ----
     private static boolean isDirectoryName(String dfsName) {
@@ -38,24 +95,17 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
         if (!p.startsWith(rootPath)) {
             return rootPath.resolve("_denied_").resolve("x");
         }
+        for (Path part : rootPath.relativize(p)) {
+            if (part.toString().startsWith(RESERVED_PREFIX)) return rootPath.resolve("_denied_").resolve("x");
+        }
         return p;
     }
 
     private byte[] dirListingBytes(Path dir) throws IOException {
-        if (!Files.exists(dir) || !Files.isDirectory(dir)) {
+        NavigableSet<String> names = dirIndex.list(dir);
+        if (names == null) {
             return null;
         }
-        List<String> names = new ArrayList<>();
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
-            for (Path child : ds) {
-                String name = child.getFileName().toString();
-                if (Files.isDirectory(child)) {
-                    names.add(name + "/");
-                } else {
-                    names.add(name);
-                }
-            }
-        }
 
         String joined = String.join("\n", names);
         return joined.getBytes(StandardCharsets.UTF_8);
@@ -77,6 +127,10 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
             responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName is required").asRuntimeException());
             return;
         }
+        if (request.getOffset() < 0 || request.getLength() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("offset and length must not be negative").asRuntimeException());
+            return;
+        }
 
         Path real = mapToRealPath(dfsName);
         try {
@@ -92,9 +146,17 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
                 responseObserver.onCompleted();
                 return;
             } else {
-                if (Files.exists(real) && Files.isRegularFile(real)) {
-                    byte[] data = Files.readAllBytes(real);
-                    b.setFileData(com.google.protobuf.ByteString.copyFrom(data));
+                try (var r = store.open(real)) {
+                    long size = r.size();
+                    long pos = Math.min(request.getOffset(), size);
+                    long end = request.getLength() == 0 || request.getLength() > size - pos ? size : pos + request.getLength();
+                    if (end - pos > Integer.MAX_VALUE) {
+                        responseObserver.onError(Status.OUT_OF_RANGE
+                                .withDescription("range of " + (end - pos) + " bytes is too large for get, use getStream").asRuntimeException());
+                        return;
+                    }
+                    b.setFileData(r.read(pos, (int) (end - pos))).setFileSize(size).setVersion(r.version());
+                } catch (NoSuchFileException ignored) {
                 }
 
                 responseObserver.onNext(b.build());
@@ -102,9 +164,29 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
                 return;
             }
         } catch (Exception e) {
-            responseObserver.onNext(GetResponse.newBuilder().build());
-            responseObserver.onCompleted();
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    @Override
+    public void stat(StatRequest request, StreamObserver<StatResponse> responseObserver) {
+        String dfsName = request.getFileName();
+        if (dfsName == null || dfsName.isEmpty()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName is required").asRuntimeException());
+            return;
         }
+        StatResponse.Builder b = StatResponse.newBuilder();
+        if (!isDirectoryName(dfsName)) {
+            try (var r = store.open(mapToRealPath(dfsName))) {
+                b.setExists(true).setFileSize(r.size()).setVersion(r.version());
+            } catch (NoSuchFileException ignored) {
+            } catch (Exception e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+        }
+        responseObserver.onNext(b.build());
+        responseObserver.onCompleted();
     }
 
     @Override
@@ -116,9 +198,15 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
             responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName is required").asRuntimeException());
             return;
         }
+        if (request.getOffset() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("offset must not be negative").asRuntimeException());
+            return;
+        }
 
         Path real = mapToRealPath(dfsName);
         boolean success = false;
+        long fileSize = 0;
+        long version = version(request.getVersion());
 
         try {
             if (isDirectoryName(dfsName)) {
@@ -127,13 +215,15 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
 
                     Files.createDirectories(real);
                     success = Files.isDirectory(real);
+                    if (success) dirIndex.added(real, true);
                 } else {
 
                     if (Files.exists(real) && Files.isDirectory(real)) {
                         try (DirectoryStream<Path> ds = Files.newDirectoryStream(real)) {
-                            if (!ds.iterator().hasNext()) {
+                            if (!ds.iterator().hasNext() && store.list(real).isEmpty()) {
                                 Files.delete(real);
                                 success = !Files.exists(real);
+                                if (success) dirIndex.removed(real, true);
                             } else {
                                 success = false;
                             }
@@ -144,24 +234,361 @@ public class ExtentServiceImpl extends ExtentServiceGrpc.ExtentServiceImplBase {
                 }
             } else {
                 if (hasData) {
-                    if (real.getParent() != null) Files.createDirectories(real.getParent());
-                    byte[] data = request.getFileData().toByteArray();
-                    Files.write(real, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                    success = Files.exists(real) && Files.isRegularFile(real);
-                } else {
-                    if (Files.exists(real) && Files.isRegularFile(real)) {
-                        Files.delete(real);
-                        success = !Files.exists(real);
-                    } else {
-                        success = false;
+                    try (var w = store.create(real, request.hasOffset() || request.getAppend(),
+                            request.getAppend(), request.getOffset())) {
+                        w.write(request.getFileData());
+                        fileSize = w.commit(version);
+                        success = true;
                     }
+                    dirIndex.added(real, false);
+                } else {
+                    success = store.delete(real);
+                    if (success) dirIndex.removed(real, false);
                 }
             }
         } catch (IOException e) {
             success = false;
         }
 
-        responseObserver.onNext(PutResponse.newBuilder().setSuccess(success).build());
+        responseObserver.onNext(PutResponse.newBuilder().setSuccess(success).setFileSize(fileSize).setVersion(version).build());
+        responseObserver.onCompleted();
+    }
+
+    // A write's version: as the client gave it, or else the time now.
+    private static long version(long requested) {
+        return requested > 0 ? requested : System.currentTimeMillis();
+    }
+
+    @Override
+    public void list(ListRequest request, StreamObserver<ListResponse> responseObserver) {
+        String dfsName = request.getDirectoryName();
+        if (!isDirectoryName(dfsName) || request.getLimit() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("directoryName of a directory and a non-negative limit are required").asRuntimeException());
+            return;
+        }
+        var b = ListResponse.newBuilder();
+        try {
+            NavigableSet<String> names = dirIndex.list(mapToRealPath(dfsName));
+            if (names != null) {
+                b.setSuccess(true);
+                int limit = request.getLimit() == 0 ? MAX_LIST_PAGE : Math.min(request.getLimit(), MAX_LIST_PAGE);
+                String last = null;
+                int n = 0;
+                for (String name : request.getPageToken().isEmpty() ? names : names.tailSet(request.getPageToken(), false)) {
+                    if (n++ == limit) {
+                        b.setNextPageToken(last);
+                        break;
+                    }
+                    b.addEntries(entry(name));
+                    last = name;
+                }
+            }
+        } catch (IOException e) {
+            b.clear();
+        }
+        responseObserver.onNext(b.build());
+        responseObserver.onCompleted();
+    }
+
+    // An index name ("x" or "x/") as an entry.
+    private static DirEntry entry(String name) {
+        boolean dir = name.endsWith("/");
+        return DirEntry.newBuilder().setName(dir ? name.substring(0, name.length() - 1) : name).setDirectory(dir).build();
+    }
+
+    // Served from the index if the directory is in it, and otherwise straight from the directory
+    // without loading it, so neither the first entry nor the memory held waits on its size.
+    @Override
+    public void listStream(ListRequest request, StreamObserver<ListResponse> responseObserver) {
+        String dfsName = request.getDirectoryName();
+        if (!isDirectoryName(dfsName) || request.getLimit() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("directoryName of a directory and a non-negative limit are required").asRuntimeException());
+            return;
+        }
+        Path real = mapToRealPath(dfsName);
+        if (!Files.isDirectory(real)) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription(dfsName).asRuntimeException());
+            return;
+        }
+        var cached = dirIndex.cached(real);
+        Iterator<String> names = cached != null ? cached.iterator() : null;
+        DirIndex.Scan scan = null;
+        if (names == null) {
+            try {
+                names = scan = DirIndex.scan(real, store);
+            } catch (IOException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+        }
+        var out = (ServerCallStreamObserver<ListResponse>) responseObserver;
+        int limit = request.getLimit() == 0 ? MAX_LIST_PAGE : Math.min(request.getLimit(), MAX_LIST_PAGE);
+        var sender = new ListSender(names, scan, limit, out);
+        out.setOnCancelHandler(sender::close);
+        out.setOnReadyHandler(sender);
+        sender.run();
+    }
+
+    // Sends a directory's entries limit at a time while the caller's stream is ready; like
+    // ChunkSender, it only runs on the call's serialized executor.
+    private static final class ListSender implements Runnable {
+        private final Iterator<String> names;
+        private final Closeable resource;
+        private final int limit;
+        private final ServerCallStreamObserver<ListResponse> out;
+        private boolean done = false;
+
+        ListSender(Iterator<String> names, Closeable resource, int limit, ServerCallStreamObserver<ListResponse> out) {
+            this.names = names;
+            this.resource = resource;
+            this.limit = limit;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            if (done) return;
+            try {
+                while (out.isReady()) {
+                    var b = ListResponse.newBuilder().setSuccess(true);
+                    while (b.getEntriesCount() < limit && names.hasNext()) b.addEntries(entry(names.next()));
+                    if (b.getEntriesCount() > 0) out.onNext(b.build());
+                    if (!names.hasNext()) {
+                        close();
+                        out.onCompleted();
+                        return;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                close();
+                out.onError(Status.INTERNAL.withDescription(e.getCause().getMessage()).asRuntimeException());
+            }
+        }
+
+        void close() {
+            done = true;
+            if (resource != null) {
+                try { resource.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    @Override
+    public void getStream(GetRequest request, StreamObserver<GetChunk> responseObserver) {
+        String dfsName = request.getFileName();
+        if (dfsName == null || dfsName.isEmpty() || isDirectoryName(dfsName)) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName of a file is required").asRuntimeException());
+            return;
+        }
+        if (request.getOffset() < 0 || request.getLength() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("offset and length must not be negative").asRuntimeException());
+            return;
+        }
+
+        Path real = mapToRealPath(dfsName);
+        ExtentStore.Reader r;
+        try {
+            r = store.open(real);
+        } catch (NoSuchFileException e) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription(dfsName).asRuntimeException());
+            return;
+        } catch (IOException e) {
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+
+        var out = (ServerCallStreamObserver<GetChunk>) responseObserver;
+        long size = r.size();
+        long pos = Math.min(request.getOffset(), size);
+        long end = request.getLength() == 0 || request.getLength() > size - pos ? size : pos + request.getLength();
+        var sender = new ChunkSender(r, pos, end, out);
+        out.setOnCancelHandler(sender::close);
+        out.setOnReadyHandler(sender);
+        sender.run();
+    }
+
+    // Sends bytes [pos, end) of a file CHUNK_SIZE bytes at a time, and only while the caller's
+    // stream is ready, so a slow reader costs about one chunk of heap instead of the whole file.
+    // Runs on the call's serialized executor (the handler and then every onReady), never
+    // concurrently with itself.
+    private static final class ChunkSender implements Runnable {
+        private final ExtentStore.Reader r;
+        private final long end;
+        private final ServerCallStreamObserver<GetChunk> out;
+        private long pos;
+        private boolean done = false;
+
+        ChunkSender(ExtentStore.Reader r, long pos, long end, ServerCallStreamObserver<GetChunk> out) {
+            this.r = r;
+            this.pos = pos;
+            this.end = end;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            if (done) return;
+            try {
+                while (out.isReady()) {
+                    if (pos >= end) {
+                        close();
+                        out.onCompleted();
+                        return;
+                    }
+                    int n = (int) Math.min(CHUNK_SIZE, end - pos);
+                    out.onNext(GetChunk.newBuilder().setData(r.read(pos, n)).build());
+                    pos += n;
+                }
+            } catch (IOException e) {
+                close();
+                out.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+
+        void close() {
+            done = true;
+            r.close();
+        }
+    }
+
+    // The file is written as the chunks arrive; gRPC asks for the next chunk only once onNext
+    // returns, so at most one chunk is held here. A replacement only becomes visible once the
+    // stream completes.
+    @Override
+    public StreamObserver<PutChunk> putStream(StreamObserver<PutResponse> responseObserver) {
+        return new StreamObserver<>() {
+            private ExtentStore.Writer w;
+            private Path real;
+            private long version;
+            private boolean failed = false;
+
+            @Override
+            public void onNext(PutChunk chunk) {
+                if (failed) return;
+                try {
+                    if (w == null) {
+                        String dfsName = chunk.getFileName();
+                        if (dfsName.isEmpty() || isDirectoryName(dfsName) || chunk.getOffset() < 0) {
+                            failed = true;
+                            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName of a file and a non-negative offset are required").asRuntimeException());
+                            return;
+                        }
+                        real = mapToRealPath(dfsName);
+                        version = version(chunk.getVersion());
+                        w = store.create(real, chunk.hasOffset() || chunk.getAppend(),
+                                chunk.getAppend(), chunk.getOffset());
+                    }
+                    w.write(chunk.getData());
+                } catch (IOException e) {
+                    failed = true;
+                    if (w != null) w.close();
+                    responseObserver.onNext(PutResponse.newBuilder().setSuccess(false).build());
+                    responseObserver.onCompleted();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (w != null) w.close();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) return;
+                boolean success = false;
+                long fileSize = 0;
+                if (w != null) {
+                    try {
+                        fileSize = w.commit(version);
+                        success = true;
+                        dirIndex.added(real, false);
+                    } catch (IOException ignored) {
+                    } finally {
+                        w.close();
+                    }
+                }
+                responseObserver.onNext(PutResponse.newBuilder().setSuccess(success).setFileSize(fileSize).setVersion(version).build());
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    // ---- Block protocol (block store only) ----
+
+    private BlockStore blockStore(StreamObserver<?> responseObserver) {
+        if (store instanceof BlockStore bs) return bs;
+        responseObserver.onError(Status.UNIMPLEMENTED.withDescription("not a block store").asRuntimeException());
+        return null;
+    }
+
+    @Override
+    public void hasBlocks(HasBlocksRequest request, StreamObserver<HasBlocksResponse> responseObserver) {
+        BlockStore bs = blockStore(responseObserver);
+        if (bs == null) return;
+        responseObserver.onNext(HasBlocksResponse.newBuilder().addAllPresent(bs.has(request.getHashesList())).build());
+        responseObserver.onCompleted();
+    }
+
+    // Blocks are stored as they arrive, one held here at a time.
+    @Override
+    public StreamObserver<BlockData> putBlocks(StreamObserver<PutBlocksResponse> responseObserver) {
+        BlockStore bs = blockStore(responseObserver);
+        return new StreamObserver<>() {
+            private final List<ByteString> hashes = new ArrayList<>();
+            private final Set<Path> touched = new HashSet<>();
+            private boolean failed = bs == null;
+
+            @Override
+            public void onNext(BlockData block) {
+                if (failed) return;
+                try {
+                    hashes.add(bs.putBlock(block.getData(), touched));
+                } catch (IOException e) {
+                    failed = true;
+                    responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) return;
+                try {
+                    bs.syncDirs(touched);
+                } catch (IOException e) {
+                    responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                    return;
+                }
+                responseObserver.onNext(PutBlocksResponse.newBuilder().addAllHashes(hashes).build());
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    @Override
+    public void putManifest(PutManifestRequest request, StreamObserver<PutManifestResponse> responseObserver) {
+        BlockStore bs = blockStore(responseObserver);
+        if (bs == null) return;
+        String dfsName = request.getFileName();
+        if (dfsName.isEmpty() || isDirectoryName(dfsName)) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("fileName of a file is required").asRuntimeException());
+            return;
+        }
+        var b = PutManifestResponse.newBuilder();
+        try {
+            long[] size = new long[1];
+            long version = version(request.getVersion());
+            Path real = mapToRealPath(dfsName);
+            List<ByteString> missing = bs.putManifest(real, request.getHashesList(), size, version);
+            b.setSuccess(missing.isEmpty()).setFileSize(size[0]).setVersion(version).addAllMissing(missing);
+            if (missing.isEmpty()) dirIndex.added(real, false);
+        } catch (IOException e) {
+            b.setSuccess(false);
+        }
+        responseObserver.onNext(b.build());
         responseObserver.onCompleted();
     }
 }
@@ -1,7 +1,7 @@
 package dfs.extent;
 
+import dfs.transport.TransportConfig;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,21 +13,43 @@ public class ExtentServiceServer {
     private Server server;
     private final int port;
     private final Path extentRoot;
+    private final long mapCacheBytes;
+    private final Durability durability;
+    private final StorageEngine engine;
 
     public ExtentServiceServer(int port, String rootStr) {
+        this(port, rootStr, ExtentServiceImpl.DEFAULT_MAP_CACHE_BYTES);
+    }
+
+    // mapCacheBytes 0 serves reads from heap copies instead of file mappings.
+    public ExtentServiceServer(int port, String rootStr, long mapCacheBytes) {
+        this(port, rootStr, mapCacheBytes, Durability.GROUP);
+    }
+
+    public ExtentServiceServer(int port, String rootStr, long mapCacheBytes, Durability durability) {
+        this(port, rootStr, mapCacheBytes, durability, StorageEngine.FILES);
+    }
+
+    public ExtentServiceServer(int port, String rootStr, long mapCacheBytes, Durability durability, StorageEngine engine) {
         this.port = port;
+        this.mapCacheBytes = mapCacheBytes;
+        this.durability = durability;
+        this.engine = engine;
         this.extentRoot = Paths.get(rootStr).toAbsolutePath().normalize();
         try { Files.createDirectories(this.extentRoot); }
         catch (IOException e) { System.err.println("FATAL: " + e.getMessage()); System.exit(1); }
     }
 
     public void start() throws IOException {
-        ExtentServiceImpl service = new ExtentServiceImpl(extentRoot, this::stop);
-        server = ServerBuilder.forPort(port).addService(service).build().start();
-        System.out.println("Extent Service started on " + port + " root=" + extentRoot);
+        ExtentServiceImpl service = new ExtentServiceImpl(extentRoot, this::stop, mapCacheBytes, durability, engine);
+        server = TransportConfig.load("extent", "default").server(port).addService(service).build().start();
+        System.out.println("Extent Service started on " + server.getPort() + " root=" + extentRoot + " durability=" + durability + " engine=" + engine);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> { System.err.println("JVM shutdown"); stop(); }));
     }
 
+    // The port the server listens on: the one it was given, or the one picked for port 0.
+    public int getPort() { return server != null ? server.getPort() : port; }
+
     public void stop() {
         if (server != null) {
             System.out.println("Stopping Extent Service...");
@@ -54,12 +76,15 @@ public class ExtentServiceServer {
             finally { ch.shutdownNow(); }
             return;
         }
-        if (args.length != 2) {
-            System.err.println("Usage:\n  Start: java -jar <jar> <port> <extentRoot>\n   Stop: java -jar <jar> stop <host:port>");
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("Usage:\n  Start: java -jar <jar> <port> <extentRoot> [mapCacheMB] [none|fsync|group] [files|blocks|segments]\n   Stop: java -jar <jar> stop <host:port>");
             System.exit(1);
         }
         int port = Integer.parseInt(args[0]);
-        ExtentServiceServer srv = new ExtentServiceServer(port, args[1]);
+        long mapCacheBytes = args.length > 2 ? Long.parseLong(args[2]) << 20 : ExtentServiceImpl.DEFAULT_MAP_CACHE_BYTES;
+        Durability durability = args.length > 3 ? Durability.valueOf(args[3].toUpperCase()) : Durability.GROUP;
+        StorageEngine engine = args.length > 4 ? StorageEngine.valueOf(args[4].toUpperCase()) : StorageEngine.FILES;
+        ExtentServiceServer srv = new ExtentServiceServer(port, args[1], mapCacheBytes, durability, engine);
         srv.start();
         srv.blockUntilShutdown();
     }
@@ -0,0 +1,54 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// Where file contents live. Directories are always real directories under the extent root; the
+// store decides how the files in them are kept, read, written, removed and listed.
+interface ExtentStore {
+
+    // A file as it was when opened; replacing it meanwhile does not change what is read.
+    interface Reader extends Closeable {
+        long size();
+
+        // The version the file was last written with (see PutRequest.version).
+        long version();
+
+        // len bytes from pos; the range lies within size().
+        ByteString read(long pos, int len) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    // A write in progress, visible only once committed. close() discards an uncommitted one.
+    interface Writer extends Closeable {
+        void write(ByteString data) throws IOException;
+
+        // Publishes the write as durably as the service's Durability asks, as the file's new
+        // version; returns the file size.
+        long commit(long version) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    // NoSuchFileException if there is no file at real.
+    Reader open(Path real) throws IOException;
+
+    // Without inPlace the file is replaced; otherwise data goes at offset, or at the end on append.
+    Writer create(Path real, boolean inPlace, boolean append, long offset) throws IOException;
+
+    // False if there is no file at real.
+    boolean delete(Path real) throws IOException;
+
+    // Names of the files (not directories) in dir.
+    List<String> list(Path dir) throws IOException;
+
+    // Whether every file is a regular file at its path, so a directory scan already sees it.
+    default boolean filesOnDisk() { return true; }
+}
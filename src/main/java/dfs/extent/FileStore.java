@@ -0,0 +1,195 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The plain store: a DFS file is a regular file holding exactly its content. Its version is
+// its modification time, set to the version on every write.
+class FileStore implements ExtentStore {
+
+    private final MappedFiles mapped;
+    private final FileSync sync;
+
+    // mapped is null to read into the heap instead of through file mappings.
+    FileStore(MappedFiles mapped, FileSync sync) {
+        this.mapped = mapped;
+        this.sync = sync;
+    }
+
+    // The file's key for MappedFiles is taken before and after opening it; if they differ the
+    // file was replaced meanwhile and the open is repeated, so the key (and the version read
+    // with it) belongs to the open file.
+    @Override
+    public Reader open(Path real) throws IOException {
+        while (true) {
+            BasicFileAttributes before = attributes(real);
+            if (before == null || !before.isRegularFile()) throw new NoSuchFileException(real.toString());
+            FileChannel ch = FileChannel.open(real, StandardOpenOption.READ);
+            long size, version;
+            Object key;
+            try {
+                BasicFileAttributes after = attributes(real);
+                if (after == null || !Objects.equals(after.fileKey(), before.fileKey())) {
+                    ch.close();
+                    continue;
+                }
+                key = mapped == null ? null : after.fileKey();
+                size = ch.size();
+                version = after.lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+            return new Reader() {
+                @Override public long size() { return size; }
+                @Override public long version() { return version; }
+                @Override public ByteString read(long pos, int len) throws IOException { return readRange(mapped, key, ch, size, pos, len); }
+                @Override public void close() { try { ch.close(); } catch (IOException ignored) {} }
+            };
+        }
+    }
+
+    @Override
+    public Writer create(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+        return new PendingWrite(real, inPlace, append, offset);
+    }
+
+    @Override
+    public boolean delete(Path real) throws IOException {
+        if (!Files.isRegularFile(real)) return false;
+        invalidate(real);
+        Files.delete(real);
+        sync.deleted(real);
+        return !Files.exists(real);
+    }
+
+    @Override
+    public List<String> list(Path dir) throws IOException {
+        return listRegularFiles(dir);
+    }
+
+    static List<String> listRegularFiles(Path dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path child : ds) {
+                String name = child.getFileName().toString();
+                if (!name.startsWith(ExtentServiceImpl.RESERVED_PREFIX) && Files.isRegularFile(child)) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    // Drops the mapping of the file now at real, which is about to be replaced or deleted.
+    private void invalidate(Path real) {
+        if (mapped == null) return;
+        try {
+            Object key = fileKey(real);
+            if (key != null) mapped.invalidate(key);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // The identity of the file at p (its inode), or null where the file system has none.
+    static Object fileKey(Path p) throws IOException {
+        return Files.readAttributes(p, BasicFileAttributes.class).fileKey();
+    }
+
+    // Null if there is nothing at p.
+    private static BasicFileAttributes attributes(Path p) throws IOException {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // len bytes from pos, which lie within the first size bytes of the file open as ch; key is
+    // the file's key for mapped, null to read into the heap.
+    static ByteString readRange(MappedFiles mapped, Object key, FileChannel ch, long size, long pos, int len) throws IOException {
+        if (mapped != null && key != null && size >= MappedFiles.MIN_MAPPED_FILE) return mapped.read(key, ch, size, pos, len);
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining() && ch.read(buf, pos + buf.position()) >= 0) { }
+        buf.flip();
+        return UnsafeByteOperations.unsafeWrap(buf);
+    }
+
+    // Positional write of data at pos; returns the position just past it.
+    static long write(FileChannel ch, ByteString data, long pos) throws IOException {
+        for (ByteBuffer b : data.asReadOnlyByteBufferList()) {
+            while (b.hasRemaining()) pos += ch.write(b, pos);
+        }
+        return pos;
+    }
+
+    static Path tempFor(Path target) {
+        return target.resolveSibling(ExtentServiceImpl.TMP_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    // A replacement goes to a temp file next to its target and is renamed over it on commit, so
+    // neither a reader nor a crash ever sees a partly written file, and a mapping of the old
+    // file stays valid; that mapping is dropped before the rename. An offset or append write goes
+    // to the target itself, which only ever grows, so mappings of it stay valid as they are.
+    private final class PendingWrite implements Writer {
+        private final Path real, tmp;
+        private final FileChannel ch;
+        private final boolean created;
+        private long pos;
+
+        PendingWrite(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+            this.real = real;
+            if (real.getParent() != null) Files.createDirectories(real.getParent());
+            if (inPlace) {
+                tmp = null;
+                created = !Files.exists(real);
+                ch = FileChannel.open(real, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                pos = append ? ch.size() : offset;
+            } else {
+                tmp = tempFor(real);
+                created = true;
+                ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                pos = 0;
+            }
+        }
+
+        @Override
+        public void write(ByteString data) throws IOException {
+            pos = FileStore.write(ch, data, pos);
+        }
+
+        @Override
+        public long commit(long version) throws IOException {
+            long size = ch.size();
+            Files.setLastModifiedTime(tmp != null ? tmp : real, FileTime.fromMillis(version));
+            if (tmp != null) {
+                invalidate(real);
+                sync.replace(ch, tmp, real);
+            } else {
+                sync.inPlace(ch, real, created);
+            }
+            return size;
+        }
+
+        @Override
+        public void close() {
+            try { ch.close(); } catch (IOException ignored) {}
+            if (tmp != null) {
+                try { Files.deleteIfExists(tmp); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package dfs.extent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Publishes finished writes: syncs what the Durability mode asks for, renames a temp file over
+// its target and syncs the directory entry. In GROUP mode one flusher thread does this for a
+// whole batch: every file first, then every rename, then each directory once. On ext4 the first
+// sync commits the journal for all of them, so the batch costs a couple of journal commits
+// rather than two per put.
+class FileSync {
+
+    private record Pending(FileChannel ch, Path tmp, Path target, boolean syncDir, CompletableFuture<Void> done) {}
+
+    private final Durability mode;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    FileSync(Durability mode) {
+        this.mode = mode;
+        if (mode == Durability.GROUP) {
+            Thread t = new Thread(this::flusherLoop, "extent-sync");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // ch holds tmp's content; once this returns, target has that content (durably, per mode).
+    void replace(FileChannel ch, Path tmp, Path target) throws IOException {
+        publish(ch, tmp, target, true);
+    }
+
+    // ch was written in place; created says the file did not exist before, so its directory
+    // entry has to be made durable too.
+    void inPlace(FileChannel ch, Path target, boolean created) throws IOException {
+        publish(ch, null, target, created);
+    }
+
+    void deleted(Path target) throws IOException {
+        publish(null, null, target, true);
+    }
+
+    // Whether writes must reach the disk before they are published.
+    boolean durable() { return mode != Durability.NONE; }
+
+    private void publish(FileChannel ch, Path tmp, Path target, boolean syncDir) throws IOException {
+        switch (mode) {
+            case NONE -> {
+                if (tmp != null) move(tmp, target);
+            }
+            case FSYNC -> {
+                if (ch != null) ch.force(false);
+                if (tmp != null) move(tmp, target);
+                if (syncDir) syncDir(target.getParent());
+            }
+            case GROUP -> {
+                var p = new Pending(ch, tmp, target, syncDir, new CompletableFuture<>());
+                queue.add(p);
+                try {
+                    p.done().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for sync");
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        }
+    }
+
+    private static void move(Path tmp, Path target) throws IOException {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void syncDir(Path dir) throws IOException {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
+
+    private void flusherLoop() {
+        while (true) {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            List<Pending> ok = new ArrayList<>(batch.size());
+            for (Pending p : batch) {
+                try {
+                    if (p.ch() != null) p.ch().force(false);
+                    ok.add(p);
+                } catch (IOException e) {
+                    p.done().completeExceptionally(e);
+                }
+            }
+            Set<Path> dirs = new LinkedHashSet<>();
+            for (var it = ok.iterator(); it.hasNext(); ) {
+                Pending p = it.next();
+                try {
+                    if (p.tmp() != null) move(p.tmp(), p.target());
+                    if (p.syncDir()) dirs.add(p.target().getParent());
+                } catch (IOException e) {
+                    p.done().completeExceptionally(e);
+                    it.remove();
+                }
+            }
+            Map<Path, IOException> dirFailed = new HashMap<>();
+            for (Path dir : dirs) {
+                try {
+                    syncDir(dir);
+                } catch (IOException e) {
+                    dirFailed.put(dir, e);
+                }
+            }
+            for (Pending p : ok) {
+                IOException e = p.syncDir() ? dirFailed.get(p.target().getParent()) : null;
+                if (e != null) p.done().completeExceptionally(e);
+                else p.done().complete(null);
+            }
+        }
+    }
+}
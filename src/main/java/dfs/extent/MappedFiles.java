@@ -0,0 +1,126 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Read-only mappings of recently read files, so a get hands gRPC a ByteString over the page
+// cache instead of a heap copy of it. Files are mapped lazily in REGION_SIZE windows and
+// evicted least-recently-read first once more than maxBytes are mapped. An evicted mapping is
+// only dropped: the JDK unmaps it once unreachable, so a ByteString still queued for sending
+// stays valid.
+//
+// Mappings are keyed by file, not path: a caller names the file by its fileKey (inode) and hands
+// over the channel it has open on it, so a file replaced under the same path is a different
+// key and never mixes with the old one. Such a file may grow in place but never shrinks, so a
+// mapping stays within it. Only files that are never rewritten, like content-addressed blocks,
+// may be mapped by path. A replaced or deleted file should be invalidate()d to free its mapping.
+class MappedFiles {
+
+    static final int REGION_SIZE = 16 << 20;
+    // Below this a plain read is cheaper than a mapping and its page-granular footprint.
+    static final long MIN_MAPPED_FILE = 64 * 1024;
+
+    private static final class Mapped {
+        final long size;
+        final MappedByteBuffer[] regions;
+        long mappedBytes = 0;
+        Mapped(long size) {
+            this.size = size;
+            this.regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+        }
+    }
+
+    private final long maxBytes;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final LinkedHashMap<Object, Mapped> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+
+    private interface Mapper { MappedByteBuffer map(long start, long length) throws IOException; }
+
+    MappedFiles(long maxBytes) { this.maxBytes = maxBytes; }
+
+    // Bytes [pos, pos + len) of the file open as ch, known as key, that is at least size bytes
+    // long; the range must lie within size.
+    ByteString read(Object key, FileChannel ch, long size, long pos, int len) throws IOException {
+        return read(key, (start, length) -> ch.map(FileChannel.MapMode.READ_ONLY, start, length), size, pos, len);
+    }
+
+    // As above for a file whose content never changes while it exists, opened by path as needed.
+    ByteString readImmutable(Path file, long size, long pos, int len) throws IOException {
+        return read(file, (start, length) -> {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        }, size, pos, len);
+    }
+
+    private ByteString read(Object key, Mapper mapper, long size, long pos, int len) throws IOException {
+        ByteString out = ByteString.EMPTY;
+        while (len > 0) {
+            int r = (int) (pos / REGION_SIZE);
+            int off = (int) (pos % REGION_SIZE);
+            int n = Math.min(len, REGION_SIZE - off);
+            MappedByteBuffer region = region(key, mapper, size, r);
+            out = out.concat(UnsafeByteOperations.unsafeWrap(region.slice(off, n)));
+            pos += n;
+            len -= n;
+        }
+        return out;
+    }
+
+    void invalidate(Object key) {
+        mu.lock();
+        try {
+            Mapped m = files.remove(key);
+            if (m != null) mappedBytes -= m.mappedBytes;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // A file that grew since it was mapped is mapped afresh; one read at an older, smaller size
+    // is served from the larger mapping.
+    private MappedByteBuffer region(Object key, Mapper mapper, long size, int r) throws IOException {
+        mu.lock();
+        try {
+            Mapped m = files.get(key);
+            if (m == null || m.size < size) {
+                if (m != null) mappedBytes -= m.mappedBytes;
+                m = new Mapped(size);
+                files.put(key, m);
+            }
+            if (m.regions[r] == null) {
+                long start = (long) r * REGION_SIZE;
+                long length = Math.min(REGION_SIZE, m.size - start);
+                m.regions[r] = mapper.map(start, length);
+                m.mappedBytes += length;
+                mappedBytes += length;
+                evict(m);
+            }
+            return m.regions[r];
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Caller holds mu. The file just mapped is never evicted, even if it alone is over the limit.
+    private void evict(Mapped keep) {
+        Iterator<Map.Entry<Object, Mapped>> it = files.entrySet().iterator();
+        while (mappedBytes > maxBytes && it.hasNext()) {
+            Mapped m = it.next().getValue();
+            if (m == keep) continue;
+            mappedBytes -= m.mappedBytes;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// The packed store: files are records in append-only segment files under SEGMENTS_DIR, found
+// through an in-memory index from name to record, so a small file costs no inode, no directory
+// entry and no random write of its own. Small files are appended to the shared active segment,
+// which is rolled over at SEGMENT_SIZE; a file larger than PACK_LIMIT is written to a segment of
+// its own and renamed into place whole. A delete appends a tombstone.
+//
+// Every record carries a sequence number and the highest one for a name wins, so records can be
+// moved between segments and segments replayed in any order. On startup the index is rebuilt
+// by scanning every segment, and a torn record at the end of a segment is cut off. A background
+// compactor copies the live records out of sealed segments that are mostly dead and deletes
+// them. Tombstones are carried along while another segment might still hold an older record of
+// the same name.
+class SegmentStore implements ExtentStore {
+
+    static final String SEGMENTS_DIR = ".extent-segments";
+    static final int PACK_LIMIT = 64 * 1024;
+    static final long SEGMENT_SIZE = 64L << 20;
+    // A sealed segment is compacted once less than this share of it is live.
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+    private static final long COMPACT_MILLIS = 5_000;
+    // crc, type, seq, name length, data length, for a PUT the file's version; then the name and
+    // the data. The crc covers the rest of the record for packed records and is 0 for a file in
+    // its own segment. PUT0 is a put written before records carried a version, read as version 0.
+    private static final int HEADER = 4 + 1 + 8 + 4 + 8;
+    private static final byte PUT0 = 0, DELETE = 1, PUT = 2;
+    private static final int MAX_NAME = 4096;
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel ch;
+        long size, live = 0;
+        long minSeq = Long.MAX_VALUE;
+        // Set once size is final; a sealed segment is read through the map cache, keyed by the
+        // segment and mapped from ch, which stays open while the segment is pinned.
+        volatile boolean sealed = false;
+        int pins = 0;
+        // Records appended but not yet installed; the compactor leaves the segment alone until 0.
+        int unsettled = 0;
+        boolean deleted = false;
+
+        Segment(long id, Path path, FileChannel ch, long size) {
+            this.id = id;
+            this.path = path;
+            this.ch = ch;
+            this.size = size;
+        }
+    }
+
+    // A record: its data starts header bytes after start and is length bytes long.
+    private record Loc(Segment seg, long start, int header, long length, long seq, long version) {
+        long bytes() { return header + length; }
+    }
+
+    private record Record(byte type, long seq, String name, long start, int header, long length, long version) {
+        long end() { return start + header + length; }
+    }
+
+    private final Path root, dir;
+    private final MappedFiles mapped;
+    private final FileSync sync;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final TreeMap<String, Loc> index = new TreeMap<>();
+    private final Map<Long, Segment> segments = new HashMap<>();
+    private Segment active;
+    private long nextSegment = 0;
+    private long lastSeq = 0;
+
+    SegmentStore(Path root, MappedFiles mapped, FileSync sync) throws IOException {
+        this.root = root;
+        this.dir = root.resolve(SEGMENTS_DIR);
+        this.mapped = mapped;
+        this.sync = sync;
+        Files.createDirectories(dir);
+        recover();
+        mu.lock();
+        try {
+            roll();
+        } finally {
+            mu.unlock();
+        }
+        Thread t = new Thread(this::compactLoop, "extent-compactor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private String name(Path real) {
+        return root.relativize(real).toString();
+    }
+
+    // ---- Recovery ----
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String f = p.getFileName().toString();
+                // A large file being written when the server stopped.
+                if (f.startsWith(ExtentServiceImpl.TMP_PREFIX)) {
+                    Files.deleteIfExists(p);
+                    continue;
+                }
+                try {
+                    ids.add(Long.parseUnsignedLong(f, 16));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        ids.sort(null);
+        Map<String, Long> deletedSeq = new HashMap<>();
+        long truncated = 0;
+        for (long id : ids) {
+            Path p = segmentPath(id);
+            FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment s = new Segment(id, p, ch, ch.size());
+            long pos = 0;
+            Record r;
+            while (pos < s.size && (r = readRecord(ch, pos, s.size, true)) != null) {
+                s.minSeq = Math.min(s.minSeq, r.seq());
+                lastSeq = Math.max(lastSeq, r.seq());
+                Loc cur = index.get(r.name());
+                long curSeq = cur != null ? cur.seq() : deletedSeq.getOrDefault(r.name(), -1L);
+                if (r.seq() > curSeq) {
+                    if (cur != null) cur.seg().live -= cur.bytes();
+                    if (r.type() != DELETE) {
+                        Loc l = new Loc(s, r.start(), r.header(), r.length(), r.seq(), r.version());
+                        index.put(r.name(), l);
+                        s.live += l.bytes();
+                        deletedSeq.remove(r.name());
+                    } else {
+                        index.remove(r.name());
+                        deletedSeq.put(r.name(), r.seq());
+                    }
+                }
+                pos = r.end();
+            }
+            if (pos < s.size) {
+                truncated += s.size - pos;
+                ch.truncate(pos);
+                s.size = pos;
+            }
+            s.sealed = true;
+            segments.put(id, s);
+            nextSegment = Math.max(nextSegment, id + 1);
+        }
+        System.out.printf("Extent: %d files in %d segments%s%n", index.size(), segments.size(),
+                truncated > 0 ? ", " + truncated + " torn bytes cut" : "");
+    }
+
+    // The record at pos, or null if there is no whole, valid one before limit.
+    private static Record readRecord(FileChannel ch, long pos, long limit, boolean verify) throws IOException {
+        if (pos + HEADER > limit) return null;
+        ByteBuffer h = readFully(ch, pos, HEADER);
+        int crc = h.getInt();
+        byte type = h.get();
+        long seq = h.getLong();
+        int nameLen = h.getInt();
+        long dataLen = h.getLong();
+        if (type != PUT0 && type != DELETE && type != PUT || nameLen <= 0 || nameLen > MAX_NAME) return null;
+        int fixed = headerSize(type, 0);
+        if (dataLen < 0 || dataLen > limit - pos - fixed - nameLen) return null;
+        ByteBuffer v = type == PUT ? readFully(ch, pos + HEADER, 8) : null;
+        ByteBuffer name = readFully(ch, pos + fixed, nameLen);
+        if (verify && dataLen <= PACK_LIMIT) {
+            var c = new CRC32C();
+            c.update(h.array(), 4, HEADER - 4);
+            if (v != null) c.update(v.array());
+            c.update(name.array());
+            c.update(readFully(ch, pos + fixed + nameLen, (int) dataLen));
+            if ((int) c.getValue() != crc) return null;
+        }
+        return new Record(type, seq, new String(name.array(), StandardCharsets.UTF_8), pos, fixed + nameLen, dataLen,
+                v != null ? v.getLong(0) : 0);
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new EOFException();
+        }
+        return b.flip();
+    }
+
+    private static int headerSize(byte type, int nameLen) {
+        return HEADER + (type == PUT ? 8 : 0) + nameLen;
+    }
+
+    private static ByteBuffer header(byte type, long seq, byte[] name, ByteString data, long version, boolean withCrc) {
+        ByteBuffer h = ByteBuffer.allocate(headerSize(type, name.length));
+        h.putInt(0).put(type).putLong(seq).putInt(name.length).putLong(data.size());
+        if (type == PUT) h.putLong(version);
+        h.put(name);
+        if (withCrc) {
+            var c = new CRC32C();
+            c.update(h.array(), 4, h.capacity() - 4);
+            for (ByteBuffer b : data.asReadOnlyByteBufferList()) c.update(b);
+            h.putInt(0, (int) c.getValue());
+        }
+        return h.flip();
+    }
+
+    private Path segmentPath(long id) {
+        return dir.resolve(String.format("%016x", id));
+    }
+
+    // ---- Segments and the index; callers hold mu ----
+
+    private void roll() throws IOException {
+        if (active != null) active.sealed = true;
+        long id = nextSegment++;
+        Path p = segmentPath(id);
+        FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        if (sync.durable()) FileSync.syncDir(dir);
+        active = new Segment(id, p, ch, 0);
+        segments.put(id, active);
+    }
+
+    private Loc appendLocked(byte type, String name, ByteString data, long seq, long version) throws IOException {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        if (n.length > MAX_NAME) throw new IOException("name too long");
+        int head = headerSize(type, n.length);
+        long bytes = head + data.size();
+        if (active.size > 0 && active.size + bytes > SEGMENT_SIZE) roll();
+        Segment s = active;
+        ByteBuffer h = header(type, seq, n, data, version, true);
+        long at = s.size;
+        while (h.hasRemaining()) at += s.ch.write(h, at);
+        FileStore.write(s.ch, data, at);
+        Loc l = new Loc(s, s.size, head, data.size(), seq, version);
+        s.size += bytes;
+        s.minSeq = Math.min(s.minSeq, seq);
+        return l;
+    }
+
+    // Makes l (or, for a delete, nothing) the file called name, unless a newer record already is.
+    private void installLocked(String name, Loc l, long seq) {
+        Loc cur = index.get(name);
+        if (cur != null && cur.seq() > seq) return;
+        if (cur != null) cur.seg().live -= cur.bytes();
+        if (l != null) {
+            index.put(name, l);
+            l.seg().live += l.bytes();
+        } else {
+            index.remove(name);
+        }
+    }
+
+    private Segment pin(Segment s) {
+        s.pins++;
+        return s;
+    }
+
+    private void unpin(Segment s) {
+        mu.lock();
+        try {
+            if (--s.pins == 0 && s.deleted) {
+                if (mapped != null) mapped.invalidate(s);
+                try { s.ch.close(); } catch (IOException ignored) {}
+            }
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Appends a packed record, waits until it is as durable as the mode asks and then installs it.
+    private void commitRecord(byte type, String name, ByteString data, long version) throws IOException {
+        Loc l;
+        mu.lock();
+        try {
+            l = appendLocked(type, name, data, ++lastSeq, version);
+            pin(l.seg()).unsettled++;
+        } finally {
+            mu.unlock();
+        }
+        boolean synced = false;
+        try {
+            sync.inPlace(l.seg().ch, l.seg().path, false);
+            synced = true;
+        } finally {
+            mu.lock();
+            try {
+                if (synced) installLocked(name, type == PUT ? l : null, l.seq());
+                l.seg().unsettled--;
+            } finally {
+                mu.unlock();
+            }
+            unpin(l.seg());
+        }
+    }
+
+    private ByteString readData(Loc l, long pos, int len) throws IOException {
+        Segment s = l.seg();
+        long at = l.start() + l.header() + pos;
+        if (mapped != null && s.sealed && l.length() >= MappedFiles.MIN_MAPPED_FILE) return mapped.read(s, s.ch, s.size, at, len);
+        return FileStore.readRange(null, null, s.ch, s.size, at, len);
+    }
+
+    // ---- ExtentStore ----
+
+    @Override
+    public Reader open(Path real) throws IOException {
+        Loc l;
+        mu.lock();
+        try {
+            l = index.get(name(real));
+            if (l == null) throw new NoSuchFileException(real.toString());
+            pin(l.seg());
+        } finally {
+            mu.unlock();
+        }
+        return new Reader() {
+            private boolean closed = false;
+
+            @Override public long size() { return l.length(); }
+
+            @Override public long version() { return l.version(); }
+
+            @Override public ByteString read(long pos, int len) throws IOException { return readData(l, pos, len); }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                unpin(l.seg());
+            }
+        };
+    }
+
+    @Override
+    public Writer create(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+        return new SegmentWriter(real, inPlace, append, offset);
+    }
+
+    @Override
+    public boolean delete(Path real) throws IOException {
+        String name = name(real);
+        mu.lock();
+        try {
+            if (!index.containsKey(name)) return false;
+        } finally {
+            mu.unlock();
+        }
+        commitRecord(DELETE, name, ByteString.EMPTY, 0);
+        return true;
+    }
+
+    @Override
+    public List<String> list(Path d) throws IOException {
+        String rel = name(d);
+        String prefix = rel.isEmpty() ? "" : rel + "/";
+        List<String> names = new ArrayList<>();
+        mu.lock();
+        try {
+            String k = index.ceilingKey(prefix);
+            while (k != null && k.startsWith(prefix)) {
+                int slash = k.indexOf('/', prefix.length());
+                if (slash < 0) {
+                    names.add(k.substring(prefix.length()));
+                    k = index.higherKey(k);
+                } else {
+                    // Skip the subdirectory: '0' sorts right after '/'.
+                    k = index.ceilingKey(k.substring(0, slash) + '0');
+                }
+            }
+        } finally {
+            mu.unlock();
+        }
+        return names;
+    }
+
+    @Override
+    public boolean filesOnDisk() { return false; }
+
+    // ---- Compaction ----
+
+    private void compactLoop() {
+        while (true) {
+            try {
+                Thread.sleep(COMPACT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Segment> victims = new ArrayList<>();
+            mu.lock();
+            try {
+                for (Segment s : segments.values()) {
+                    if (s.sealed && !s.deleted && s.unsettled == 0 && s.live < s.size * COMPACT_LIVE_RATIO) victims.add(pin(s));
+                }
+            } finally {
+                mu.unlock();
+            }
+            for (Segment s : victims) {
+                try {
+                    compact(s);
+                } catch (IOException e) {
+                    System.err.println("Extent: compacting " + s.path + " failed: " + e.getMessage());
+                } finally {
+                    unpin(s);
+                }
+            }
+        }
+    }
+
+    // Copies what is still needed out of s, which the caller has pinned, then deletes it.
+    private void compact(Segment s) throws IOException {
+        Set<Segment> written = new HashSet<>();
+        long pos = 0;
+        Record r;
+        while (pos < s.size && (r = readRecord(s.ch, pos, s.size, false)) != null) {
+            boolean keep;
+            mu.lock();
+            try {
+                Loc cur = index.get(r.name());
+                if (r.type() != DELETE) {
+                    keep = cur != null && cur.seg() == s && cur.start() == r.start();
+                } else {
+                    keep = cur == null && olderElsewhere(s, r.seq());
+                    if (keep) written.add(pin(appendLocked(DELETE, r.name(), ByteString.EMPTY, r.seq(), 0).seg()));
+                }
+            } finally {
+                mu.unlock();
+            }
+            if (keep && r.type() != DELETE) {
+                // Only files in a segment of their own are larger, and those are live or all dead.
+                if (r.length() > PACK_LIMIT) break;
+                ByteString data = UnsafeByteOperations.unsafeWrap(readFully(s.ch, r.start() + r.header(), (int) r.length()));
+                mu.lock();
+                try {
+                    Loc cur = index.get(r.name());
+                    if (cur != null && cur.seg() == s && cur.start() == r.start()) {
+                        Loc l = appendLocked(PUT, r.name(), data, r.seq(), r.version());
+                        written.add(pin(l.seg()));
+                        installLocked(r.name(), l, r.seq());
+                    }
+                } finally {
+                    mu.unlock();
+                }
+            }
+            pos = r.end();
+        }
+        try {
+            for (Segment w : written) sync.inPlace(w.ch, w.path, false);
+        } finally {
+            for (Segment w : written) unpin(w);
+        }
+        mu.lock();
+        try {
+            if (s.live > 0) return;
+            s.deleted = true;
+            segments.remove(s.id);
+        } finally {
+            mu.unlock();
+        }
+        // Readers that pinned s read on through s.ch and their mappings of it.
+        if (mapped != null) mapped.invalidate(s);
+        Files.deleteIfExists(s.path);
+        sync.deleted(s.path);
+    }
+
+    // Whether a segment other than s may hold a record older than seq.
+    private boolean olderElsewhere(Segment s, long seq) {
+        for (Segment t : segments.values()) {
+            if (t != s && !t.deleted && t.minSeq < seq) return true;
+        }
+        return false;
+    }
+
+    // A write in progress. Content is built in memory until it outgrows PACK_LIMIT and in a
+    // file of its own after that; offset and append writes start from a copy of the current
+    // content. On commit a small file is appended to the active segment, and a large one's file
+    // is renamed in as a new segment.
+    private final class SegmentWriter implements Writer {
+        private final String name;
+        private final byte[] nameBytes;
+        // Header bytes ahead of the data in a spill file.
+        private final int head;
+        private byte[] mem = new byte[0];
+        private long size = 0, pos;
+        // Set once the content outgrew PACK_LIMIT.
+        private long spillId = -1;
+        private Path spillTmp;
+        private FileChannel spill;
+        private boolean committed = false;
+
+        SegmentWriter(Path real, boolean inPlace, boolean append, long offset) throws IOException {
+            this.name = name(real);
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (name.isEmpty() || nameBytes.length > MAX_NAME) throw new IOException("bad file name " + real);
+            this.head = headerSize(PUT, nameBytes.length);
+            if (Files.isDirectory(real)) throw new IOException(real + " is a directory");
+            if (real.getParent() != null && !Files.isDirectory(real.getParent())) Files.createDirectories(real.getParent());
+            if (inPlace) {
+                Loc base;
+                mu.lock();
+                try {
+                    base = index.get(name);
+                    if (base != null) pin(base.seg());
+                } finally {
+                    mu.unlock();
+                }
+                if (base != null) {
+                    try {
+                        long from = base.start() + base.header(), n = base.length();
+                        if (n <= PACK_LIMIT) {
+                            mem = readFully(base.seg().ch, from, (int) n).array();
+                        } else {
+                            spill();
+                            spill.position(head);
+                            for (long done = 0; done < n; ) done += base.seg().ch.transferTo(from + done, n - done, spill);
+                        }
+                        size = n;
+                    } catch (IOException e) {
+                        close();
+                        throw e;
+                    } finally {
+                        unpin(base.seg());
+                    }
+                }
+                pos = append ? size : offset;
+            }
+        }
+
+        private void spill() throws IOException {
+            mu.lock();
+            try {
+                spillId = nextSegment++;
+            } finally {
+                mu.unlock();
+            }
+            spillTmp = FileStore.tempFor(segmentPath(spillId));
+            spill = FileChannel.open(spillTmp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            FileStore.write(spill, UnsafeByteOperations.unsafeWrap(mem, 0, (int) size), head);
+            mem = null;
+        }
+
+        @Override
+        public void write(ByteString data) throws IOException {
+            long end = pos + data.size();
+            if (spill == null && end > PACK_LIMIT) spill();
+            if (spill == null) {
+                if (end > mem.length) mem = Arrays.copyOf(mem, (int) Math.min(PACK_LIMIT, Math.max(end, mem.length * 2L)));
+                data.copyTo(mem, (int) pos);
+            } else {
+                FileStore.write(spill, data, head + pos);
+            }
+            size = Math.max(size, end);
+            pos = end;
+        }
+
+        @Override
+        public long commit(long version) throws IOException {
+            if (spill == null) {
+                commitRecord(PUT, name, UnsafeByteOperations.unsafeWrap(mem, 0, (int) size), version);
+                committed = true;
+                return size;
+            }
+            long seq;
+            mu.lock();
+            try {
+                seq = ++lastSeq;
+            } finally {
+                mu.unlock();
+            }
+            ByteBuffer h = header(PUT, seq, nameBytes, ByteString.EMPTY, version, false);
+            h.putLong(HEADER - 8, size);
+            for (long at = 0; h.hasRemaining(); ) at += spill.write(h, at);
+            Path target = segmentPath(spillId);
+            sync.replace(spill, spillTmp, target);
+            Segment s = new Segment(spillId, target, spill, head + size);
+            s.minSeq = seq;
+            s.sealed = true;
+            mu.lock();
+            try {
+                segments.put(spillId, s);
+                installLocked(name, new Loc(s, 0, head, size, seq, version), seq);
+            } finally {
+                mu.unlock();
+            }
+            committed = true;
+            return size;
+        }
+
+        @Override
+        public void close() {
+            if (spill == null || committed) return;
+            try { spill.close(); } catch (IOException ignored) {}
+            try { Files.deleteIfExists(spillTmp); } catch (IOException ignored) {}
+        }
+    }
+}
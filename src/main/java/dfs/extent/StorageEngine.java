@@ -0,0 +1,6 @@
+package dfs.extent;
+
+// How the extent service stores file contents: FILES keeps each file as-is, BLOCKS splits
+// files into content-addressed blocks stored once however many files share them, SEGMENTS
+// packs files into large append-only segment files.
+public enum StorageEngine { FILES, BLOCKS, SEGMENTS }
@@ -0,0 +1,154 @@
+package dfs.lock;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import dfs.dfs.LockCacheServiceGrpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sends revoke/retry callbacks without blocking the caller. Calls to the same DFS server
+// are issued one at a time in submission order; calls to different servers run concurrently,
+// up to maxInFlight overall. Every call carries a deadline, so a hung client only holds up
+// its own queue.
+class CallbackDispatcher {
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    interface Call {
+        ListenableFuture<?> send(LockCacheServiceGrpc.LockCacheServiceFutureStub stub);
+    }
+
+    private static class Pending {
+        final Call call;
+        final Runnable onFailure;
+        Pending(Call call, Runnable onFailure) { this.call = call; this.onFailure = onFailure; }
+    }
+
+    private static class Dest {
+        final String key;
+        final String ownerId;
+        final ArrayDeque<Pending> q = new ArrayDeque<>();
+        boolean active = false;
+        Dest(String key, String ownerId) { this.key = key; this.ownerId = ownerId; }
+    }
+
+    private record Start(Dest dest, Pending p) {}
+
+    private final ClientChannelPool channels;
+    private final long timeoutMillis;
+    private final int maxInFlight;
+    private final Map<String, Dest> dests = new HashMap<>();
+    private final ArrayDeque<Dest> ready = new ArrayDeque<>();
+    private final ReentrantLock mu = new ReentrantLock();
+    private final ExecutorService completions = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "callback-completions");
+        t.setDaemon(true);
+        return t;
+    });
+    private int inFlight = 0;
+
+    CallbackDispatcher(ClientChannelPool channels) {
+        this(channels, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    CallbackDispatcher(ClientChannelPool channels, long timeoutMillis, int maxInFlight) {
+        this.channels = channels;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    void dispatch(String ownerId, Call call, Runnable onFailure) {
+        String key = ClientChannelPool.key(ownerId);
+        List<Start> toStart;
+        mu.lock();
+        try {
+            Dest d = dests.computeIfAbsent(key, k -> new Dest(k, ownerId));
+            d.q.addLast(new Pending(call, onFailure));
+            if (!d.active) {
+                d.active = true;
+                ready.addLast(d);
+            }
+            toStart = drain();
+        } finally {
+            mu.unlock();
+        }
+        toStart.forEach(this::start);
+    }
+
+    private List<Start> drain() {
+        List<Start> out = new ArrayList<>();
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            Dest d = ready.removeFirst();
+            inFlight++;
+            out.add(new Start(d, d.q.removeFirst()));
+        }
+        return out;
+    }
+
+    private void start(Start s) {
+        ListenableFuture<?> f;
+        try {
+            var stub = channels.stub(s.dest().ownerId).withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS);
+            f = s.p().call.send(stub);
+        } catch (RuntimeException e) {
+            completions.execute(() -> finished(s, false));
+            return;
+        }
+        f.addListener(() -> finished(s, succeeded(f)), completions);
+    }
+
+    private static boolean succeeded(ListenableFuture<?> f) {
+        try {
+            f.get();
+            return true;
+        } catch (ExecutionException | RuntimeException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void finished(Start s, boolean ok) {
+        Dest d = s.dest();
+        if (!ok) {
+            channels.invalidate(d.ownerId);
+            if (s.p().onFailure != null) {
+                try { s.p().onFailure.run(); } catch (RuntimeException ignored) {}
+            }
+        }
+        List<Start> toStart;
+        mu.lock();
+        try {
+            inFlight--;
+            if (!d.q.isEmpty()) {
+                ready.addLast(d);
+            } else {
+                d.active = false;
+                dests.remove(d.key);
+            }
+            toStart = drain();
+        } finally {
+            mu.unlock();
+        }
+        toStart.forEach(this::start);
+    }
+
+    void close() {
+        completions.shutdownNow();
+    }
+
+    int inFlight() {
+        mu.lock();
+        try { return inFlight; } finally { mu.unlock(); }
+    }
+}
@@ -0,0 +1,148 @@
+package dfs.lock;
+
+import dfs.dfs.LockCacheServiceGrpc;
+import dfs.transport.TransportConfig;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Channels to DFS servers (LockCacheService) keyed by the host:port part of the ownerId,
+// so revoke/retry callbacks reuse a warm HTTP/2 connection instead of dialing every time.
+class ClientChannelPool {
+
+    static final int DEFAULT_MAX_SIZE = 256;
+    static final long DEFAULT_IDLE_MILLIS = 60_000;
+
+    static class Slot {
+        final String key;
+        final ManagedChannel ch;
+        final LockCacheServiceGrpc.LockCacheServiceFutureStub stub;
+        volatile long lastUsed;
+
+        Slot(String key, ManagedChannel ch) {
+            this.key = key;
+            this.ch = ch;
+            this.stub = LockCacheServiceGrpc.newFutureStub(ch);
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final TransportConfig transport;
+    private final int maxSize;
+    private final long idleNanos;
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock mu = new ReentrantLock();
+    private final ScheduledExecutorService sweeper;
+
+    ClientChannelPool(TransportConfig transport) { this(transport, DEFAULT_MAX_SIZE, DEFAULT_IDLE_MILLIS); }
+
+    ClientChannelPool(TransportConfig transport, int maxSize, long idleMillis) {
+        this.transport = transport;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "channel-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1_000, idleMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static String key(String ownerId) {
+        String[] parts = ownerId.split(":");
+        return parts[0] + ":" + parts[1];
+    }
+
+    private static boolean healthy(ManagedChannel ch) {
+        if (ch.isShutdown()) return false;
+        ConnectivityState s = ch.getState(false);
+        return s != ConnectivityState.TRANSIENT_FAILURE && s != ConnectivityState.SHUTDOWN;
+    }
+
+    LockCacheServiceGrpc.LockCacheServiceFutureStub stub(String ownerId) {
+        String key = key(ownerId);
+        List<ManagedChannel> toClose = new ArrayList<>();
+        Slot slot;
+        mu.lock();
+        try {
+            slot = slots.get(key);
+            if (slot != null && !healthy(slot.ch)) {
+                slots.remove(key);
+                toClose.add(slot.ch);
+                slot = null;
+            }
+            if (slot == null) {
+                slot = new Slot(key, transport.channel(key));
+                slots.put(key, slot);
+                Iterator<Slot> it = slots.values().iterator();
+                while (slots.size() > maxSize && it.hasNext()) {
+                    Slot eldest = it.next();
+                    it.remove();
+                    toClose.add(eldest.ch);
+                }
+            }
+            slot.lastUsed = System.nanoTime();
+        } finally {
+            mu.unlock();
+        }
+        for (ManagedChannel ch : toClose) ch.shutdown();
+        return slot.stub;
+    }
+
+    // Drops the channel after a failed call; the next callback dials a fresh one.
+    void invalidate(String ownerId) {
+        Slot slot;
+        mu.lock();
+        try {
+            slot = slots.remove(key(ownerId));
+        } finally {
+            mu.unlock();
+        }
+        if (slot != null) slot.ch.shutdown();
+    }
+
+    void sweep() {
+        long now = System.nanoTime();
+        List<ManagedChannel> toClose = new ArrayList<>();
+        mu.lock();
+        try {
+            Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+            while (it.hasNext()) {
+                Slot slot = it.next().getValue();
+                if (now - slot.lastUsed > idleNanos || !healthy(slot.ch)) {
+                    it.remove();
+                    toClose.add(slot.ch);
+                }
+            }
+        } finally {
+            mu.unlock();
+        }
+        for (ManagedChannel ch : toClose) ch.shutdown();
+    }
+
+    int size() {
+        mu.lock();
+        try { return slots.size(); } finally { mu.unlock(); }
+    }
+
+    void close() {
+        sweeper.shutdownNow();
+        mu.lock();
+        try {
+            for (Slot slot : slots.values()) slot.ch.shutdownNow();
+            slots.clear();
+        } finally {
+            mu.unlock();
+        }
+    }
+}
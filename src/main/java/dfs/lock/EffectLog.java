@@ -0,0 +1,15 @@
+package dfs.lock;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+// Where LockServiceImpl records the effect of every table change before answering the caller:
+// a local write-ahead log (LockWal) or a replicated one (LockReplica). Records use the
+// LockWal record types and are appended while the row lock is held.
+interface EffectLog extends Closeable {
+
+    long append(byte type, String id, String owner, boolean shared, long seq);
+
+    // Runs onDurable once everything appended so far is safe, or onLost if it never will be.
+    void afterDurable(Runnable onDurable, Consumer<Throwable> onLost);
+}
@@ -0,0 +1,164 @@
+package dfs.lock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+// One lease per owner covering every lock it holds. A keep-alive only moves the deadline,
+// so renewal is O(1) no matter how many locks the owner has. Deadlines are checked by a
+// timer wheel: a lease sits in the slot of its (possibly stale) deadline and is re-slotted
+// when that slot comes round and the lease has been renewed in the meantime. A lease is marked
+// dead under its mu before it leaves the table, so nothing lands on it after its locks were
+// handed to onExpire.
+class LeaseTable {
+
+    static final long DEFAULT_TTL_MILLIS = 15_000;
+    static final long TICK_MILLIS = 100;
+    static final int WHEEL_SLOTS = 512;
+
+    static class Lease {
+        final String owner;
+        final long epoch;
+        final Set<String> locks = ConcurrentHashMap.newKeySet();
+        final ReentrantLock mu = new ReentrantLock();
+        volatile long deadline;
+        boolean dead = false;
+        Lease(String owner, long epoch, long deadline) {
+            this.owner = owner;
+            this.epoch = epoch;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long ttlMillis;
+    private final BiConsumer<String, Set<String>> onExpire;
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final List<Set<Lease>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private final ReentrantLock wheelMu = new ReentrantLock();
+    private final AtomicLong epochs = new AtomicLong(System.currentTimeMillis());
+    private long tick = 0;
+
+    LeaseTable(long ttlMillis, ScheduledExecutorService timers, BiConsumer<String, Set<String>> onExpire) {
+        this.ttlMillis = ttlMillis;
+        this.onExpire = onExpire;
+        for (int i = 0; i < WHEEL_SLOTS; i++) wheel.add(new HashSet<>());
+        timers.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    long ttlMillis() { return ttlMillis; }
+
+    private static long now() { return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()); }
+
+    private Lease lease(String owner) {
+        return leases.computeIfAbsent(owner, o -> {
+            Lease l = new Lease(o, epochs.incrementAndGet(), now() + ttlMillis);
+            schedule(l);
+            return l;
+        });
+    }
+
+    void track(String owner, String lockId) {
+        while (true) {
+            Lease l = lease(owner);
+            l.mu.lock();
+            try {
+                // If the lease expired under us, the id goes on the replacement lease instead.
+                if (!l.dead) {
+                    l.locks.add(lockId);
+                    return;
+                }
+            } finally {
+                l.mu.unlock();
+            }
+        }
+    }
+
+    // Makes sure owner has a lease, so that even an owner holding nothing expires once it stops
+    // renewing and whatever it queued is purged.
+    void watch(String owner) { lease(owner); }
+
+    void untrack(String owner, String lockId) {
+        Lease l = leases.get(owner);
+        if (l != null) l.locks.remove(lockId);
+    }
+
+    // Returns the lease epoch; a client that sees it change knows its earlier grants were reclaimed.
+    long renew(String owner) {
+        while (true) {
+            Lease l = lease(owner);
+            l.mu.lock();
+            try {
+                if (!l.dead) {
+                    l.deadline = now() + ttlMillis;
+                    return l.epoch;
+                }
+            } finally {
+                l.mu.unlock();
+            }
+        }
+    }
+
+    int size() { return leases.size(); }
+
+    // Forgets every lease without expiring it; entries still on the wheel are dead and skipped.
+    void reset() {
+        for (Lease l : leases.values()) {
+            l.mu.lock();
+            try {
+                l.dead = true;
+                leases.remove(l.owner, l);
+            } finally {
+                l.mu.unlock();
+            }
+        }
+    }
+
+    private void schedule(Lease l) {
+        long ticks = Math.max(1, (l.deadline - now() + TICK_MILLIS - 1) / TICK_MILLIS);
+        ticks = Math.min(ticks, WHEEL_SLOTS - 1);
+        wheelMu.lock();
+        try {
+            wheel.get((int) ((tick + ticks) % WHEEL_SLOTS)).add(l);
+        } finally {
+            wheelMu.unlock();
+        }
+    }
+
+    private void advance() {
+        List<Lease> due;
+        wheelMu.lock();
+        try {
+            Set<Lease> slot = wheel.get((int) (tick % WHEEL_SLOTS));
+            due = new ArrayList<>(slot);
+            slot.clear();
+            tick++;
+        } finally {
+            wheelMu.unlock();
+        }
+        for (Lease l : due) {
+            Set<String> locks;
+            l.mu.lock();
+            try {
+                if (l.dead) continue;
+                if (l.deadline > now()) {
+                    schedule(l);
+                    continue;
+                }
+                l.dead = true;
+                leases.remove(l.owner, l);
+                locks = Set.copyOf(l.locks);
+            } finally {
+                l.mu.unlock();
+            }
+            try { onExpire.accept(l.owner, locks); } catch (RuntimeException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package dfs.lock;
+
+import dfs.transport.TransportConfig;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Raft-style replication of the lock table's effect log (the records LockWal writes). The
+// leader executes requests on its own table and appends their effects; a caller is answered
+// once those entries are committed on a majority. Followers apply committed entries to their
+// tables, so any of them can take over. A new leader first commits a no-op, then applies
+// whatever it inherited, and only then starts serving.
+//
+// With a data directory, term, vote and log live in a ReplicaState: a vote is on disk before it
+// is granted, and a replica counts or acknowledges entries only once they are synced, so a
+// restarted replica remembers everything it took part in. Without one they are kept in memory
+// only, which is safe only as long as no replica restarts. Unlike full Raft the log is not
+// compacted.
+class LockReplica extends LockReplicationGrpc.LockReplicationImplBase implements EffectLog {
+
+    static final long HEARTBEAT_MILLIS = 50;
+    static final long ELECTION_MIN_MILLIS = 300, ELECTION_MAX_MILLIS = 600;
+    static final long RPC_TIMEOUT_MILLIS = 500;
+    static final int MAX_APPEND = 2048;
+    static final int NOOP = 0;
+
+    interface StateMachine {
+        void apply(LockWal.Rec rec);
+        // Drops the whole table; committed entries are applied again afterwards.
+        void reset();
+        // Called once this replica is leader and its table reflects everything committed.
+        void onLeader();
+    }
+
+    enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    private static class Peer {
+        final String addr;
+        final ManagedChannel ch;
+        final LockReplicationGrpc.LockReplicationBlockingStub stub;
+        final LockReplicationGrpc.LockReplicationStub async;
+        long nextIndex = 1, matchIndex = 0, lastSent = 0;
+
+        Peer(String addr, TransportConfig transport) {
+            this.addr = addr;
+            this.ch = transport.channel(addr);
+            this.stub = LockReplicationGrpc.newBlockingStub(ch);
+            this.async = LockReplicationGrpc.newStub(ch);
+        }
+    }
+
+    private record Waiting(Runnable onDurable, Consumer<Throwable> onLost) {}
+
+    private final String self;
+    private final List<Peer> peers = new ArrayList<>();
+    private final StateMachine sm;
+    private final ReplicaState state;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final Condition changed = mu.newCondition();
+    private final List<LockReplicationOuterClass.LogEntry> log = new ArrayList<>();
+    private final TreeMap<Long, List<Waiting>> waiting = new TreeMap<>();
+    private final List<Waiting> lost = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile Role role = Role.FOLLOWER;
+    private volatile boolean ready = false;
+    private volatile String leaderId;
+    private volatile boolean running = true;
+    private long currentTerm = 0;
+    private String votedFor;
+    private long commitIndex = 0, lastApplied = 0, noopIndex = 0;
+    private long written = 0, synced = 0, truncations = 0;  // Log entries in state, and durable there
+    private boolean resetNeeded = false;
+    private long electionDeadline;
+
+    // dir holds the replica's term, vote and log; null keeps them in memory. Channels to the
+    // peers are opened as transport says.
+    LockReplica(String self, List<String> peerAddrs, Path dir, TransportConfig transport, StateMachine sm) throws IOException {
+        this.self = self;
+        this.sm = sm;
+        this.state = dir == null ? null : new ReplicaState(dir, log::add);
+        if (state != null) {
+            currentTerm = state.term();
+            votedFor = state.votedFor();
+            written = synced = log.size();
+            System.out.printf("Lock replica %s restored term %d, %d log entries%n", self, currentTerm, log.size());
+        }
+        for (String a : peerAddrs) peers.add(new Peer(a, transport));
+        resetElectionDeadline();
+    }
+
+    void start() {
+        threads.add(new Thread(this::tickerLoop, "raft-ticker"));
+        threads.add(new Thread(this::applierLoop, "raft-applier"));
+        if (state != null) threads.add(new Thread(this::syncerLoop, "raft-syncer"));
+        for (Peer p : peers) threads.add(new Thread(() -> replicatorLoop(p), "raft-replicator-" + p.addr));
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    boolean serving() { return role == Role.LEADER && ready; }
+
+    String leaderHint() { return leaderId; }
+
+    StatusRuntimeException notLeader() {
+        Metadata md = new Metadata();
+        String leader = leaderId;
+        if (leader != null && !leader.equals(self)) md.put(LockServiceImpl.LEADER_HEADER, leader);
+        return Status.UNAVAILABLE.withDescription("not the lock leader").asRuntimeException(md);
+    }
+
+    private void resetElectionDeadline() {
+        long millis = ThreadLocalRandom.current().nextLong(ELECTION_MIN_MILLIS, ELECTION_MAX_MILLIS);
+        electionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private long lastTerm() { return log.isEmpty() ? 0 : log.get(log.size() - 1).getTerm(); }
+
+    private static LockWal.Rec rec(LockReplicationOuterClass.LogEntry e) {
+        return new LockWal.Rec((byte) e.getType(), e.getLockId(), e.getOwnerId(), e.getShared(), e.getSequence());
+    }
+
+    @Override
+    public long append(byte type, String id, String owner, boolean shared, long seq) {
+        mu.lock();
+        try {
+            if (role != Role.LEADER) return -1;
+            log.add(LockReplicationOuterClass.LogEntry.newBuilder().setTerm(currentTerm).setType(type)
+                    .setLockId(id).setOwnerId(owner).setShared(shared).setSequence(seq).build());
+            advanceCommit();
+            changed.signalAll();
+            return log.size();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public void afterDurable(Runnable onDurable, Consumer<Throwable> onLost) {
+        mu.lock();
+        try {
+            if (role != Role.LEADER) {
+                lost.add(new Waiting(onDurable, onLost));
+                changed.signalAll();
+                return;
+            }
+            long idx = log.size();
+            if (idx > lastApplied) {
+                waiting.computeIfAbsent(idx, k -> new ArrayList<>()).add(new Waiting(onDurable, onLost));
+                return;
+            }
+        } finally {
+            mu.unlock();
+        }
+        onDurable.run();
+    }
+
+    // Caller holds mu. Only entries of the current term are committed by counting replicas.
+    private void advanceCommit() {
+        for (long n = log.size(); n > commitIndex; n--) {
+            if (log.get((int) n - 1).getTerm() != currentTerm) break;
+            int acks = durable() >= n ? 1 : 0;
+            for (Peer p : peers) {
+                if (p.matchIndex >= n) acks++;
+            }
+            if (acks * 2 > peers.size() + 1) {
+                commitIndex = n;
+                changed.signalAll();
+                break;
+            }
+        }
+    }
+
+    // Caller holds mu. How much of the log is on disk here.
+    private long durable() { return state == null ? log.size() : synced; }
+
+    // Caller holds mu.
+    private void saveVote(long term, String vote) {
+        if (state != null) state.saveVote(term, vote);
+        currentTerm = term;
+        votedFor = vote;
+    }
+
+    // Caller holds mu. Writes the entries not yet in state; they still need a sync.
+    private void writeLog() {
+        if (state != null && written < log.size()) {
+            state.append(log.subList((int) written, log.size()));
+            written = log.size();
+        }
+    }
+
+    // Caller holds mu. Keeps the first n entries.
+    private void truncateLog(long n) {
+        log.subList((int) n, log.size()).clear();
+        if (state != null && written > n) {
+            state.truncate(n);
+            written = n;
+        }
+        synced = Math.min(synced, n);
+        truncations++;
+    }
+
+    // Caller holds mu.
+    private void becomeFollower(long term, String leader) {
+        boolean wasLeader = role == Role.LEADER;
+        if (term > currentTerm) saveVote(term, null);
+        role = Role.FOLLOWER;
+        leaderId = leader;
+        resetElectionDeadline();
+        if (wasLeader) {
+            // The table holds effects that may never commit; rebuild it from the committed log.
+            ready = false;
+            resetNeeded = true;
+            waiting.values().forEach(lost::addAll);
+            waiting.clear();
+            System.out.printf("Lock replica %s stepped down in term %d%n", self, currentTerm);
+        }
+        changed.signalAll();
+    }
+
+    // Caller holds mu.
+    private void becomeLeader() {
+        role = Role.LEADER;
+        leaderId = self;
+        ready = false;
+        log.add(LockReplicationOuterClass.LogEntry.newBuilder().setTerm(currentTerm).setType(NOOP).build());
+        noopIndex = log.size();
+        for (Peer p : peers) {
+            p.nextIndex = noopIndex;
+            p.matchIndex = 0;
+            p.lastSent = 0;
+        }
+        advanceCommit();
+        changed.signalAll();
+        System.out.printf("Lock replica %s is leader for term %d%n", self, currentTerm);
+    }
+
+    // Caller holds mu.
+    private void startElection() {
+        role = Role.CANDIDATE;
+        saveVote(currentTerm + 1, self);
+        leaderId = null;
+        resetElectionDeadline();
+        long term = currentTerm;
+        int[] votes = {1};
+        if (votes[0] * 2 > peers.size() + 1) {
+            becomeLeader();
+            return;
+        }
+        var req = LockReplicationOuterClass.VoteRequest.newBuilder().setTerm(term).setCandidateId(self)
+                .setLastLogIndex(log.size()).setLastLogTerm(lastTerm()).build();
+        for (Peer p : peers) {
+            p.async.withDeadlineAfter(RPC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).requestVote(req, new StreamObserver<>() {
+                @Override
+                public void onNext(LockReplicationOuterClass.VoteResponse resp) {
+                    mu.lock();
+                    try {
+                        if (resp.getTerm() > currentTerm) {
+                            becomeFollower(resp.getTerm(), null);
+                        } else if (role == Role.CANDIDATE && currentTerm == term && resp.getGranted()
+                                && ++votes[0] * 2 > peers.size() + 1) {
+                            becomeLeader();
+                        }
+                    } finally {
+                        mu.unlock();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+    }
+
+    @Override
+    public void requestVote(LockReplicationOuterClass.VoteRequest req,
+                            StreamObserver<LockReplicationOuterClass.VoteResponse> respObs) {
+        boolean granted;
+        long term;
+        mu.lock();
+        try {
+            if (req.getTerm() > currentTerm) becomeFollower(req.getTerm(), null);
+            boolean upToDate = req.getLastLogTerm() > lastTerm()
+                    || (req.getLastLogTerm() == lastTerm() && req.getLastLogIndex() >= log.size());
+            granted = req.getTerm() == currentTerm && upToDate
+                    && (votedFor == null || votedFor.equals(req.getCandidateId()));
+            if (granted) {
+                if (votedFor == null) saveVote(currentTerm, req.getCandidateId());
+                resetElectionDeadline();
+            }
+            term = currentTerm;
+        } finally {
+            mu.unlock();
+        }
+        respObs.onNext(LockReplicationOuterClass.VoteResponse.newBuilder().setTerm(term).setGranted(granted).build());
+        respObs.onCompleted();
+    }
+
+    // Entries are acknowledged only once synced; a newer leader truncating them meanwhile turns
+    // the answer into a refusal.
+    @Override
+    public void appendEntries(LockReplicationOuterClass.AppendEntriesRequest req,
+                              StreamObserver<LockReplicationOuterClass.AppendEntriesResponse> respObs) {
+        var resp = LockReplicationOuterClass.AppendEntriesResponse.newBuilder();
+        long toSync = -1, seen = 0;
+        mu.lock();
+        try {
+            if (req.getTerm() < currentTerm) {
+                resp.setSuccess(false).setMatchIndex(log.size());
+            } else {
+                if (req.getTerm() > currentTerm || role != Role.FOLLOWER) {
+                    becomeFollower(req.getTerm(), req.getLeaderId());
+                } else {
+                    leaderId = req.getLeaderId();
+                    resetElectionDeadline();
+                }
+                long prev = req.getPrevLogIndex();
+                if (prev > log.size()) {
+                    resp.setSuccess(false).setMatchIndex(log.size());
+                } else if (prev > 0 && log.get((int) prev - 1).getTerm() != req.getPrevLogTerm()) {
+                    // Conflicting suffix: it was never committed, drop it and let the leader back up.
+                    truncateLog(prev - 1);
+                    resp.setSuccess(false).setMatchIndex(prev - 1);
+                } else {
+                    long idx = prev;
+                    for (var e : req.getEntriesList()) {
+                        idx++;
+                        if (idx <= log.size()) {
+                            if (log.get((int) idx - 1).getTerm() == e.getTerm()) continue;
+                            truncateLog(idx - 1);
+                        }
+                        log.add(e);
+                    }
+                    writeLog();
+                    long newCommit = Math.min(req.getLeaderCommit(), idx);
+                    if (newCommit > commitIndex) {
+                        commitIndex = newCommit;
+                        changed.signalAll();
+                    }
+                    resp.setSuccess(true).setMatchIndex(idx);
+                    if (durable() < idx) {
+                        toSync = idx;
+                        seen = truncations;
+                    }
+                }
+            }
+            resp.setTerm(currentTerm);
+        } finally {
+            mu.unlock();
+        }
+        if (toSync >= 0) {
+            boolean ok = state.sync();
+            mu.lock();
+            try {
+                if (ok && truncations == seen) {
+                    synced = Math.max(synced, toSync);
+                } else {
+                    resp.setSuccess(false).setMatchIndex(Math.min(toSync, log.size()));
+                }
+                resp.setTerm(currentTerm);
+            } finally {
+                mu.unlock();
+            }
+        }
+        respObs.onNext(resp.build());
+        respObs.onCompleted();
+    }
+
+    // Leader side: writes out and syncs what append() added, so that this replica's own copy
+    // counts towards the majority; one sync covers everything appended meanwhile.
+    private void syncerLoop() {
+        while (running) {
+            long upTo, seen;
+            mu.lock();
+            try {
+                while (running && (role != Role.LEADER || synced >= log.size())) changed.awaitUninterruptibly();
+                if (!running) return;
+                writeLog();
+                upTo = written;
+                seen = truncations;
+            } finally {
+                mu.unlock();
+            }
+            if (!state.sync()) return;
+            mu.lock();
+            try {
+                if (truncations == seen) {
+                    synced = Math.max(synced, upTo);
+                    if (role == Role.LEADER) advanceCommit();
+                }
+            } finally {
+                mu.unlock();
+            }
+        }
+    }
+
+    private void tickerLoop() {
+        while (running) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mu.lock();
+            try {
+                if (role != Role.LEADER && System.nanoTime() > electionDeadline) startElection();
+            } finally {
+                mu.unlock();
+            }
+        }
+    }
+
+    // One request in flight per follower; entries appended meanwhile go out together in the next one.
+    private void replicatorLoop(Peer p) {
+        long heartbeat = TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+        while (running) {
+            LockReplicationOuterClass.AppendEntriesRequest req;
+            long term, prev;
+            mu.lock();
+            try {
+                while (running) {
+                    if (role == Role.LEADER) {
+                        long idle = System.nanoTime() - p.lastSent;
+                        if (p.nextIndex <= log.size() || idle >= heartbeat) break;
+                        changed.awaitNanos(heartbeat - idle);
+                    } else {
+                        changed.await();
+                    }
+                }
+                if (!running) return;
+                term = currentTerm;
+                prev = p.nextIndex - 1;
+                var b = LockReplicationOuterClass.AppendEntriesRequest.newBuilder()
+                        .setTerm(term).setLeaderId(self).setPrevLogIndex(prev)
+                        .setPrevLogTerm(prev > 0 ? log.get((int) prev - 1).getTerm() : 0)
+                        .setLeaderCommit(commitIndex)
+                        .addAllEntries(log.subList((int) prev, (int) Math.min(log.size(), prev + MAX_APPEND)));
+                req = b.build();
+                p.lastSent = System.nanoTime();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mu.unlock();
+            }
+
+            LockReplicationOuterClass.AppendEntriesResponse resp;
+            try {
+                resp = p.stub.withDeadlineAfter(RPC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).appendEntries(req);
+            } catch (StatusRuntimeException e) {
+                try {
+                    Thread.sleep(HEARTBEAT_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+
+            mu.lock();
+            try {
+                if (resp.getTerm() > currentTerm) {
+                    becomeFollower(resp.getTerm(), null);
+                } else if (role == Role.LEADER && currentTerm == term) {
+                    if (resp.getSuccess()) {
+                        p.matchIndex = Math.max(p.matchIndex, prev + req.getEntriesCount());
+                        p.nextIndex = p.matchIndex + 1;
+                        advanceCommit();
+                    } else {
+                        p.nextIndex = Math.max(1, Math.min(prev, resp.getMatchIndex() + 1));
+                    }
+                }
+            } finally {
+                mu.unlock();
+            }
+        }
+    }
+
+    // Applies committed entries, rebuilds the table after a step-down, and answers callers whose
+    // entries are now committed (or lost).
+    private void applierLoop() {
+        while (running) {
+            List<Waiting> failed, done = new ArrayList<>();
+            List<LockReplicationOuterClass.LogEntry> batch;
+            boolean reset;
+            long from, upTo, skipFrom;
+            mu.lock();
+            try {
+                while (running && lastApplied >= commitIndex && !resetNeeded && lost.isEmpty()
+                        && !(role == Role.LEADER && !ready && lastApplied >= noopIndex)) {
+                    changed.awaitUninterruptibly();
+                }
+                if (!running) return;
+                failed = new ArrayList<>(lost);
+                lost.clear();
+                reset = resetNeeded;
+                resetNeeded = false;
+                from = reset ? 1 : lastApplied + 1;
+                upTo = commitIndex;
+                batch = new ArrayList<>(log.subList((int) from - 1, (int) upTo));
+                // From the no-op on, this leader executed the entries itself.
+                skipFrom = role == Role.LEADER ? noopIndex : Long.MAX_VALUE;
+            } finally {
+                mu.unlock();
+            }
+
+            StatusRuntimeException gone = notLeader();
+            for (Waiting w : failed) {
+                try { w.onLost().accept(gone); } catch (RuntimeException ignored) {}
+            }
+            if (reset) sm.reset();
+            for (int i = 0; i < batch.size(); i++) {
+                var e = batch.get(i);
+                if (from + i < skipFrom && e.getType() != NOOP) sm.apply(rec(e));
+            }
+
+            boolean nowReady = false;
+            mu.lock();
+            try {
+                lastApplied = Math.max(lastApplied, upTo);
+                if (role == Role.LEADER) {
+                    if (!ready && lastApplied >= noopIndex) nowReady = true;
+                    var head = waiting.headMap(lastApplied, true);
+                    head.values().forEach(done::addAll);
+                    head.clear();
+                }
+            } finally {
+                mu.unlock();
+            }
+            if (nowReady) {
+                sm.onLeader();
+                ready = true;
+            }
+            for (Waiting w : done) {
+                try { w.onDurable().run(); } catch (RuntimeException ignored) {}
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread t : threads) t.interrupt();
+        mu.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            mu.unlock();
+        }
+        for (Peer p : peers) p.ch.shutdownNow();
+        if (state != null) state.close();
+    }
+}
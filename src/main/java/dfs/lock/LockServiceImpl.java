@@ -1,123 +1,726 @@
 package dfs.lock;
 
-import dfs.dfs.LockCacheServiceGrpc;
 import dfs.dfs.LockCacheServiceOuterClass;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 
 import dfs.lock.LockServiceGrpc;
 import dfs.lock.LockServiceOuterClass;
+import dfs.transport.TransportConfig;
+import io.grpc.BindableService;
+import io.grpc.Metadata;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.*;
+import java.util.function.Predicate;
 
 
 
 public class LockServiceImpl extends LockServiceGrpc.LockServiceImplBase {
 
+    static final long DEFAULT_WAIT_MILLIS = 10_000;
+    static final long SWEEP_MILLIS = 30_000;
+    static final int STRIPES = 1 << 12;
+
+    // Trailer on UNAVAILABLE from a replica that is not the leader: host:port of the one that is.
+    public static final Metadata.Key<String> LEADER_HEADER =
+            Metadata.Key.of("lock-leader", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final LockServiceOuterClass.AcquireResponse GRANTED =
+            LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(true).build();
+    private static final LockServiceOuterClass.AcquireResponse DENIED =
+            LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(false).build();
+
+    // seq is the highest sequence the owner sent for this row; a classic waiter is granted under it.
     static class Waiter {
-        final String ownerId;
-        Waiter(String o){ this.ownerId = o; }
+        final int owner;
+        final boolean shared;
+        long seq;
+        StreamObserver<LockServiceOuterClass.AcquireResponse> pending;
+        ScheduledFuture<?> timeout;
+        Waiter next;
+        Waiter(int owner, boolean shared) { this.owner = owner; this.shared = shared; }
     }
 
+    // Owners are OwnerIds handles. holder is the exclusive holder, shared the readers (null when
+    // there are none); the two are never both set. Waiters form an intrusive FIFO list from head.
+    // mu is one of the STRIPES locks, shared with every other row whose id hashes to it; a row
+    // only leaves the table under it, so whoever looked a row up under mu holds a live one.
     static class Row {
-        String holderOwner;
+        final ReentrantLock mu;
+        int holder = OwnerIds.NONE;
         long holderSeq = -1;
-        final Deque<Waiter> q = new ArrayDeque<>();
+        int[] shared;
+        Waiter head, tail;
         boolean revokeSent = false;
-        final Map<String, Long> lastSeqByOwner = new HashMap<>();
-        final ReentrantLock mu = new ReentrantLock();
+        int used;  // sweepGen of the last lockRow()
+
+        Row(ReentrantLock mu) { this.mu = mu; }
+
+        boolean isShared(int owner) {
+            if (shared != null) {
+                for (int o : shared) {
+                    if (o == owner) return true;
+                }
+            }
+            return false;
+        }
+
+        void addShared(int owner) {
+            if (isShared(owner)) return;
+            if (shared == null) {
+                shared = new int[] { owner };
+            } else {
+                shared = Arrays.copyOf(shared, shared.length + 1);
+                shared[shared.length - 1] = owner;
+            }
+        }
+
+        boolean removeShared(int owner) {
+            if (!isShared(owner)) return false;
+            if (shared.length == 1) {
+                shared = null;
+                return true;
+            }
+            int[] rest = new int[shared.length - 1];
+            int i = 0;
+            for (int o : shared) {
+                if (o != owner) rest[i++] = o;
+            }
+            shared = rest;
+            return true;
+        }
+
+        void addLast(Waiter w) {
+            if (tail == null) head = w; else tail.next = w;
+            tail = w;
+        }
+
+        Waiter pollFirst() {
+            Waiter w = head;
+            if (w != null) {
+                head = w.next;
+                if (head == null) tail = null;
+                w.next = null;
+            }
+            return w;
+        }
+
+        boolean removeIf(Predicate<Waiter> p) {
+            boolean removed = false;
+            Waiter prev = null;
+            for (Waiter w = head; w != null; ) {
+                Waiter next = w.next;
+                if (p.test(w)) {
+                    if (prev == null) head = next; else prev.next = next;
+                    if (tail == w) tail = prev;
+                    w.next = null;
+                    removed = true;
+                } else {
+                    prev = w;
+                }
+                w = next;
+            }
+            return removed;
+        }
     }
 
     private final ConcurrentMap<String, Row> table = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final OwnerIds owners = new OwnerIds();
     private final BlockingQueue<String> revokerQ = new LinkedBlockingQueue<>();
-    private final BlockingQueue<String> retrierQ = new LinkedBlockingQueue<>();
-    private final Thread revokerThread, retrierThread;
+    private final Thread revokerThread;
+    // Channels to DFS servers and to the other replicas, set up like the server's own (-Ddfs.lock.*).
+    private final TransportConfig transport = TransportConfig.load("lock", "default");
+    private final ClientChannelPool channels = new ClientChannelPool(transport);
+    private final CallbackDispatcher dispatcher = new CallbackDispatcher(channels);
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lock-timers");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LeaseTable leases = new LeaseTable(LeaseTable.DEFAULT_TTL_MILLIS, timers, this::reclaim);
+    private final EffectLog effects;
+    private final LockReplica replica;
+    // Replicated mode: handlers hold the read side, rebuilding the table after a step-down the write side.
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
     private volatile boolean running = true;
+    private volatile int sweepGen = 0;
+    private final AtomicLong sweptRows = new AtomicLong();
+
+    {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
 
     public LockServiceImpl() {
-        revokerThread = new Thread(this::revokerLoop, "revoker");
-        retrierThread = new Thread(this::retrierLoop, "retrier");
-        revokerThread.setDaemon(true);
-        retrierThread.setDaemon(true);
-        revokerThread.start();
-        retrierThread.start();
+        effects = null;
+        replica = null;
+        revokerThread = startBackground();
+    }
+
+    // With a WAL directory every grant, release and queued request is logged before the
+    // client hears about it, and the table is rebuilt from the directory on startup.
+    public LockServiceImpl(Path walDir) throws IOException {
+        long t0 = System.nanoTime();
+        effects = LockWal.open(walDir, this::readSnapshot, this::apply, this::writeSnapshot);
+        replica = null;
+        table.values().removeIf(LockServiceImpl::idle);
+        resume();
+        System.out.printf("Lock table restored: %d rows in %.1f ms%n", table.size(), (System.nanoTime() - t0) / 1e6);
+        revokerThread = startBackground();
     }
 
-    private Row r(String id) { return table.computeIfAbsent(id, k -> new Row()); }
+    // Replicated mode: self and peers are the host:port of the replicas of one lock group, each
+    // serving LockReplication next to LockService. Only the elected leader serves clients; the
+    // others answer UNAVAILABLE with the leader's address in the LEADER_HEADER trailer. stateDir
+    // keeps the replica's term, vote and log across restarts; null keeps them in memory only.
+    public LockServiceImpl(String self, List<String> peers, Path stateDir) throws IOException {
+        replica = new LockReplica(self, peers, stateDir, transport, new LockReplica.StateMachine() {
+            @Override
+            public void apply(LockWal.Rec rec) { LockServiceImpl.this.apply(rec); }
+
+            @Override
+            public void reset() { LockServiceImpl.this.reset(); }
+
+            @Override
+            public void onLeader() { resume(); }
+        });
+        effects = replica;
+        revokerThread = startBackground();
+        replica.start();
+    }
+
+    BindableService replication() { return replica; }
+
+    // Restored holders and waiters get a fresh lease: if their owner is gone too, the locks and
+    // the places in line come back after one TTL instead of staying stuck. Rows with waiters get
+    // their revoke sent again.
+    private void resume() {
+        for (var e : table.entrySet()) {
+            Row row = e.getValue();
+            row.mu.lock();
+            try {
+                if (row.holder != OwnerIds.NONE) leases.track(owners.name(row.holder), e.getKey());
+                if (row.shared != null) {
+                    for (int o : row.shared) leases.track(owners.name(o), e.getKey());
+                }
+                for (Waiter w = row.head; w != null; w = w.next) leases.watch(owners.name(w.owner));
+                if (row.head != null) requestRevoke(e.getKey(), row);
+            } finally {
+                row.mu.unlock();
+            }
+        }
+    }
+
+    private Thread startBackground() {
+        timers.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        Thread t = new Thread(this::revokerLoop, "revoker");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private ReentrantLock stripe(String id) {
+        int h = id.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private Row r(String id) { return table.computeIfAbsent(id, k -> new Row(stripe(k))); }
+
+    // Returns the row for id with row.mu held.
+    private Row lockRow(String id) {
+        ReentrantLock mu = stripe(id);
+        mu.lock();
+        Row row = r(id);
+        row.used = sweepGen;
+        return row;
+    }
+
+    // Retires rows that nobody holds or waits on and nobody touched since the previous sweep, so
+    // the table follows the active lock set instead of every id ever used. Busy rows are skipped.
+    void sweep() {
+        int gen = sweepGen++;
+        for (var e : table.entrySet()) {
+            Row row = e.getValue();
+            if (row.used >= gen || !row.mu.tryLock()) continue;
+            try {
+                if (row.used < gen && idle(row)) {
+                    table.remove(e.getKey(), row);
+                    sweptRows.incrementAndGet();
+                }
+            } finally {
+                row.mu.unlock();
+            }
+        }
+        recycleOwners(gen);
+    }
+
+    // Hands owner handles retired before the previous sweep to new owners, unless a row still
+    // refers to one: a request that interned it before the owner expired may have landed since.
+    private void recycleOwners(int gen) {
+        List<Integer> due = owners.retiredBefore(gen);
+        if (due.isEmpty()) return;
+        Set<Integer> used = new HashSet<>();
+        for (Row row : table.values()) {
+            row.mu.lock();
+            try {
+                for (int h : due) {
+                    if (refersTo(row, h)) used.add(h);
+                }
+            } finally {
+                row.mu.unlock();
+            }
+        }
+        for (int h : due) {
+            if (!used.contains(h)) owners.free(h);
+        }
+    }
+
+    @Override
+    public void stats(LockServiceOuterClass.StatsRequest req,
+                      StreamObserver<LockServiceOuterClass.StatsResponse> respObs) {
+        respObs.onNext(LockServiceOuterClass.StatsResponse.newBuilder()
+                .setRows(table.size())
+                .setSweptRows(sweptRows.get())
+                .setLeases(leases.size())
+                .setCallbacksInFlight(dispatcher.inFlight())
+                .build());
+        respObs.onCompleted();
+    }
 
     @Override
     public void acquire(LockServiceOuterClass.AcquireRequest req,
                         StreamObserver<LockServiceOuterClass.AcquireResponse> respObs) {
+        if (!enter(respObs)) return;
+        try {
+            boolean ok = acquireOne(req);
+            afterDurable(respObs, () -> reply(respObs, ok));
+        } finally {
+            exit();
+        }
+    }
+
+    // Grants or queues every lock in one call. acquireOne never waits and holds one row at a
+    // time, so the rows can be visited in request order.
+    @Override
+    public void batchAcquire(LockServiceOuterClass.BatchAcquireRequest req,
+                             StreamObserver<LockServiceOuterClass.BatchAcquireResponse> respObs) {
+        if (!enter(respObs)) return;
+        try {
+            int n = req.getRequestsCount();
+            boolean[] ok = new boolean[n];
+            for (int i = 0; i < n; i++) ok[i] = acquireOne(req.getRequests(i));
+
+            var b = LockServiceOuterClass.BatchAcquireResponse.newBuilder();
+            for (int i = 0; i < n; i++) {
+                b.addResponses(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(ok[i]));
+            }
+            var resp = b.build();
+            afterDurable(respObs, () -> {
+                respObs.onNext(resp);
+                respObs.onCompleted();
+            });
+        } finally {
+            exit();
+        }
+    }
+
+    private boolean acquireOne(LockServiceOuterClass.AcquireRequest req) {
         String id = req.getLockId();
-        String owner = req.getOwnerId();
+        int owner = owners.intern(req.getOwnerId());
         long seq = req.getSequence();
+        boolean shared = req.getMode() == LockServiceOuterClass.LockMode.SHARED;
 
-        Row row = r(id);
-        row.mu.lock();
+        Row row = lockRow(id);
         try {
-            row.lastSeqByOwner.put(owner, Math.max(seq, row.lastSeqByOwner.getOrDefault(owner, -1L)));
-            if (row.holderOwner == null) {
-                row.holderOwner = owner;
-                row.holderSeq = seq;
-                row.revokeSent = false;
-                respObs.onNext(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(true).build());
-                respObs.onCompleted();
-            } else if (row.holderOwner.equals(owner)) {
-                respObs.onNext(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(true).build());
-                respObs.onCompleted();
+            if (tryGrant(id, row, owner, seq, shared)) return true;
+            Waiter w = queued(row, owner);
+            if (w == null) {
+                w = new Waiter(owner, shared);
+                w.seq = seq;
+                row.addLast(w);
+                leases.watch(owners.name(owner));
+                log(LockWal.ENQUEUE, id, owner, shared, seq);
+            } else {
+                w.seq = Math.max(w.seq, seq);
+            }
+            requestRevoke(id, row);
+            return false;
+        } finally {
+            row.mu.unlock();
+        }
+    }
+
+    // Long-poll variant of acquire: the response is held back until the lock is granted
+    // (or waitMillis passes), so the caller needs neither a retry callback nor a second acquire.
+    @Override
+    public void acquireWait(LockServiceOuterClass.AcquireRequest req,
+                            StreamObserver<LockServiceOuterClass.AcquireResponse> respObs) {
+        String id = req.getLockId();
+        int owner = owners.intern(req.getOwnerId());
+        long seq = req.getSequence();
+        boolean shared = req.getMode() == LockServiceOuterClass.LockMode.SHARED;
+        long waitMillis = req.getWaitMillis() > 0 ? req.getWaitMillis() : DEFAULT_WAIT_MILLIS;
+
+        if (!enter(respObs)) return;
+        try {
+            acquireWaitOne(id, owner, seq, shared, waitMillis, respObs);
+        } finally {
+            exit();
+        }
+    }
+
+    private void acquireWaitOne(String id, int owner, long seq, boolean shared, long waitMillis,
+                                StreamObserver<LockServiceOuterClass.AcquireResponse> respObs) {
+        boolean granted = false;
+        Row row = lockRow(id);
+        try {
+            if (tryGrant(id, row, owner, seq, shared)) {
+                granted = true;
             } else {
-                row.q.addLast(new Waiter(owner));
-                if (!row.revokeSent) {
-                    row.revokeSent = true;
-                    revokerQ.offer(id);
+                // A batchAcquire may already have queued this owner; take over its place in line.
+                // A parked call does not survive a restart, so it is no longer logged as queued.
+                Waiter w = queued(row, owner);
+                if (w != null) log(LockWal.DEQUEUE, id, owner, w.shared, w.seq);
+                if (w == null || w.shared != shared) {
+                    if (w != null) remove(row, w);
+                    w = new Waiter(owner, shared);
+                    row.addLast(w);
+                }
+                w.seq = Math.max(w.seq, seq);
+                w.pending = respObs;
+                requestRevoke(id, row);
+                Waiter parked = w;
+                w.timeout = timers.schedule(() -> dropWaiter(id, parked, true), waitMillis, TimeUnit.MILLISECONDS);
+                if (respObs instanceof ServerCallStreamObserver<?> sco) {
+                    sco.setOnCancelHandler(() -> dropWaiter(id, parked, false));
                 }
-                respObs.onNext(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(false).build());
-                respObs.onCompleted();
             }
         } finally {
             row.mu.unlock();
         }
+        if (granted) afterDurable(respObs, () -> reply(respObs, true));
+    }
+
+    private static boolean holds(Row row, int owner, boolean shared) {
+        return row.holder == owner || (shared && row.isShared(owner));
+    }
+
+    private static boolean compatible(Row row, int owner, boolean shared) {
+        if (row.holder != OwnerIds.NONE && row.holder != owner) return false;
+        if (shared || row.shared == null) return true;
+        for (int o : row.shared) {
+            if (o != owner) return false;
+        }
+        return true;
+    }
+
+    private void grant(String id, Row row, int owner, long seq, boolean shared) {
+        if (row.holder == owner) return;
+        leases.track(owners.name(owner), id);
+        log(LockWal.GRANT, id, owner, shared, seq);
+        if (shared) {
+            row.addShared(owner);
+        } else {
+            row.removeShared(owner);
+            row.holder = owner;
+            row.holderSeq = seq;
+        }
+    }
+
+    private boolean drop(String id, Row row, int owner) {
+        boolean held = row.removeShared(owner);
+        if (row.holder == owner) {
+            row.holder = OwnerIds.NONE;
+            row.holderSeq = -1;
+            held = true;
+        }
+        if (held) {
+            leases.untrack(owners.name(owner), id);
+            log(LockWal.RELEASE, id, owner, false, 0);
+        }
+        return held;
+    }
+
+    // Caller holds row.mu. New requests only jump straight in when nobody is queued,
+    // so a stream of readers cannot starve a queued writer.
+    private boolean tryGrant(String id, Row row, int owner, long seq, boolean shared) {
+        if (holds(row, owner, shared)) return true;
+        if (row.head != null || !compatible(row, owner, shared)) return false;
+        grant(id, row, owner, seq, shared);
+        return true;
+    }
+
+    private void requestRevoke(String id, Row row) {
+        if (!row.revokeSent) {
+            row.revokeSent = true;
+            revokerQ.offer(id);
+        }
+    }
+
+    private static Waiter queued(Row row, int owner) {
+        for (Waiter w = row.head; w != null; w = w.next) {
+            if (w.pending == null && w.owner == owner) return w;
+        }
+        return null;
+    }
+
+    private static boolean remove(Row row, Waiter w) {
+        return row.removeIf(x -> x == w);
+    }
+
+    private void dropWaiter(String id, Waiter w, boolean reply) {
+        if (!tryEnter()) return;
+        try {
+            List<Waiter> notify;
+            Row row = lockRow(id);
+            try {
+                if (!remove(row, w)) return;
+                if (w.timeout != null) w.timeout.cancel(false);
+                if (reply) reply(w.pending, false);
+                notify = handOff(id, row);
+            } finally {
+                row.mu.unlock();
+            }
+            notify.forEach(n -> sendRetry(id, n));
+        } finally {
+            exit();
+        }
+    }
+
+    // Caller holds row.mu. If the waiter's call is already gone the grant is undone.
+    private void grantWaiting(String id, Row row, Waiter w) {
+        if (w.timeout != null) w.timeout.cancel(false);
+        grant(id, row, w.owner, w.seq, w.shared);
+        if (effects != null) {
+            var obs = w.pending;
+            effects.afterDurable(() -> {
+                if (!reply(obs, true) && tryEnter()) {
+                    try { releaseOne(id, w.owner); } finally { exit(); }
+                }
+            }, t -> fail(obs, t));
+        } else if (!reply(w.pending, true)) {
+            drop(id, row, w.owner);
+        }
+    }
+
+    private static boolean reply(StreamObserver<LockServiceOuterClass.AcquireResponse> obs, boolean ok) {
+        try {
+            obs.onNext(ok ? GRANTED : DENIED);
+            obs.onCompleted();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void fail(StreamObserver<?> obs, Throwable t) {
+        try { obs.onError(t); } catch (RuntimeException ignored) {}
+    }
+
+    private void log(byte type, String id, int owner, boolean shared, long seq) {
+        if (effects != null) effects.append(type, id, owners.name(owner), shared, seq);
+    }
+
+    private void afterDurable(StreamObserver<?> obs, Runnable r) {
+        if (effects != null) effects.afterDurable(r, t -> fail(obs, t));
+        else r.run();
+    }
+
+    // Only the leader of a replicated group touches the table on behalf of callers.
+    private boolean tryEnter() {
+        if (replica == null) return true;
+        gate.readLock().lock();
+        if (replica.serving()) return true;
+        gate.readLock().unlock();
+        return false;
+    }
+
+    private boolean enter(StreamObserver<?> obs) {
+        if (tryEnter()) return true;
+        obs.onError(replica.notLeader());
+        return false;
+    }
+
+    private void exit() {
+        if (replica != null) gate.readLock().unlock();
     }
 
     @Override
     public void release(LockServiceOuterClass.ReleaseRequest req,
                         StreamObserver<LockServiceOuterClass.ReleaseResponse> respObs) {
-        String id = req.getLockId();
-        String owner = req.getOwnerId();
+        if (!enter(respObs)) return;
+        try {
+            releaseOne(req.getLockId(), owners.intern(req.getOwnerId()));
+            afterDurable(respObs, () -> {
+                respObs.onNext(LockServiceOuterClass.ReleaseResponse.getDefaultInstance());
+                respObs.onCompleted();
+            });
+        } finally {
+            exit();
+        }
+    }
 
-        Row row = r(id);
-        row.mu.lock();
+    @Override
+    public void batchRelease(LockServiceOuterClass.BatchReleaseRequest req,
+                             StreamObserver<LockServiceOuterClass.BatchReleaseResponse> respObs) {
+        if (!enter(respObs)) return;
         try {
-            if (owner.equals(row.holderOwner)) {
-                row.holderOwner = null;
-                row.holderSeq = -1;
-                if (!row.q.isEmpty()) {
-                    retrierQ.offer(id);
+            for (var r : req.getRequestsList()) releaseOne(r.getLockId(), owners.intern(r.getOwnerId()));
+            afterDurable(respObs, () -> {
+                respObs.onNext(LockServiceOuterClass.BatchReleaseResponse.getDefaultInstance());
+                respObs.onCompleted();
+            });
+        } finally {
+            exit();
+        }
+    }
+
+    private void releaseOne(String id, int owner) {
+        List<Waiter> notify = List.of();
+        Row row = lockRow(id);
+        try {
+            if (drop(id, row, owner)) {
+                notify = handOff(id, row);
+            }
+        } finally {
+            row.mu.unlock();
+        }
+        notify.forEach(n -> sendRetry(id, n));
+    }
+
+    // Caller holds row.mu. Ownership goes straight to the head of the queue (and to the run
+    // of readers directly behind a reader at the head); everyone else stays queued. A parked
+    // acquireWait is answered here, classic waiters are returned so the caller can send each
+    // a single retry (their next acquire then finds them holding the lock).
+    private List<Waiter> handOff(String id, Row row) {
+        List<Waiter> notify = new ArrayList<>();
+        while (row.head != null) {
+            Waiter w = row.head;
+            if (!compatible(row, w.owner, w.shared)) break;
+            row.pollFirst();
+            if (w.pending != null) {
+                grantWaiting(id, row, w);
+            } else {
+                grant(id, row, w.owner, w.seq, w.shared);
+                notify.add(w);
+            }
+        }
+        row.revokeSent = row.head != null;
+        if (row.revokeSent) revokerQ.offer(id);
+        return notify;
+    }
+
+    // One stream per owner; every message renews all of that owner's locks at once.
+    @Override
+    public StreamObserver<LockServiceOuterClass.KeepAliveRequest> keepAlive(
+            StreamObserver<LockServiceOuterClass.KeepAliveResponse> respObs) {
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(LockServiceOuterClass.KeepAliveRequest req) {
+                if (replica != null && !replica.serving()) {
+                    fail(respObs, replica.notLeader());
+                    return;
                 }
+                long epoch = leases.renew(req.getOwnerId());
+                respObs.onNext(LockServiceOuterClass.KeepAliveResponse.newBuilder()
+                        .setLeaseMillis(leases.ttlMillis()).setEpoch(epoch).build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                respObs.onCompleted();
             }
-            respObs.onNext(LockServiceOuterClass.ReleaseResponse.newBuilder().build());
-            respObs.onCompleted();
+        };
+    }
+
+    // Called from the lease wheel once an owner stopped renewing: its grants and queued
+    // requests are dropped and the locks go to whoever is next in line. Requests it queued
+    // through batchAcquire on rows it holds nothing on are not on its lease, so the rest of the
+    // table is searched for them too. An owner left with nothing in the table (not even a
+    // parked acquireWait) has its handle retired.
+    private void reclaim(String ownerId, Set<String> ids) {
+        if (!tryEnter()) return;
+        try {
+            int owner = owners.intern(ownerId);
+            boolean referenced = false;
+            for (String id : ids) referenced |= purge(id, owner);
+            for (String id : table.keySet()) {
+                if (!ids.contains(id)) referenced |= purge(id, owner);
+            }
+            if (!referenced) owners.retire(owner, sweepGen);
+        } finally {
+            exit();
+        }
+    }
+
+    // Returns whether the row still refers to owner afterwards.
+    private boolean purge(String id, int owner) {
+        List<Waiter> notify = List.of();
+        boolean referenced;
+        Row row = lockRow(id);
+        try {
+            boolean queued = row.removeIf(w -> w.pending == null && w.owner == owner);
+            if (queued) log(LockWal.DEQUEUE, id, owner, false, 0);
+            if (drop(id, row, owner) || queued) {
+                notify = handOff(id, row);
+            }
+            referenced = refersTo(row, owner);
         } finally {
             row.mu.unlock();
         }
+        notify.forEach(n -> sendRetry(id, n));
+        return referenced;
+    }
+
+    private static boolean refersTo(Row row, int owner) {
+        if (row.holder == owner || row.isShared(owner)) return true;
+        for (Waiter w = row.head; w != null; w = w.next) {
+            if (w.owner == owner) return true;
+        }
+        return false;
+    }
+
+    private void sendRetry(String id, Waiter w) {
+        var req = LockCacheServiceOuterClass.RetryRequest.newBuilder()
+                .setLockId(id).setSequence(w.seq).build();
+        dispatcher.dispatch(owners.name(w.owner), stub -> stub.retry(req), null);
     }
 
     private void revokerLoop() {
         while (running) {
             try {
                 String id = revokerQ.take();
-                Row row = r(id);
-                String holder;
-                row.mu.lock();
-                try { holder = row.holderOwner; } finally { row.mu.unlock(); }
-                if (holder != null) {
-                    callClient(holder, stub -> {
-                        stub.revoke(LockCacheServiceOuterClass.RevokeRequest.newBuilder()
-                                .setLockId(id).build());
-                    });
+                List<String> targets = new ArrayList<>();
+                Row row = lockRow(id);
+                try {
+                    Waiter head = row.head;
+                    if (head != null) {
+                        if (row.holder != OwnerIds.NONE && row.holder != head.owner) {
+                            targets.add(owners.name(row.holder));
+                        }
+                        if (!head.shared && row.shared != null) {
+                            for (int o : row.shared) {
+                                if (o != head.owner) targets.add(owners.name(o));
+                            }
+                        }
+                    }
+                } finally {
+                    row.mu.unlock();
+                }
+                var req = LockCacheServiceOuterClass.RevokeRequest.newBuilder().setLockId(id).build();
+                for (String holder : targets) {
+                    dispatcher.dispatch(holder, stub -> stub.revoke(req), () -> revokeFailed(id));
                 }
             } catch (InterruptedException ie) {
             } catch (Exception e) {
@@ -125,51 +728,200 @@ public class LockServiceImpl extends LockServiceGrpc.LockServiceImplBase {
         }
     }
 
+    // Lets the next acquire on this row re-send the revoke instead of waiting forever.
+    private void revokeFailed(String id) {
+        Row row = lockRow(id);
+        try { row.revokeSent = false; } finally { row.mu.unlock(); }
+    }
 
-    private void retrierLoop() {
-        while (running) {
-            try {
-                String id = retrierQ.take();
-                Row row = r(id);
-                java.util.List<String> toNotify = new java.util.ArrayList<>();
+    private static boolean idle(Row row) {
+        return row.holder == OwnerIds.NONE && row.shared == null && row.head == null;
+    }
+
+    // Replays one WAL record onto the table. Must tolerate records the snapshot already
+    // reflects, so every case sets state rather than checking it.
+    private void apply(LockWal.Rec rec) {
+        Row row = lockRow(rec.id());
+        try {
+            applyLocked(row, rec);
+        } finally {
+            row.mu.unlock();
+        }
+    }
+
+    private void applyLocked(Row row, LockWal.Rec rec) {
+        int owner = owners.intern(rec.owner());
+        switch (rec.type()) {
+            case LockWal.GRANT -> {
+                row.removeIf(w -> w.owner == owner);
+                if (rec.shared()) {
+                    row.addShared(owner);
+                } else {
+                    row.removeShared(owner);
+                    row.holder = owner;
+                    row.holderSeq = rec.seq();
+                }
+            }
+            case LockWal.RELEASE -> {
+                row.removeShared(owner);
+                if (row.holder == owner) {
+                    row.holder = OwnerIds.NONE;
+                    row.holderSeq = -1;
+                }
+            }
+            case LockWal.ENQUEUE -> {
+                Waiter w = queued(row, owner);
+                if (w == null) {
+                    w = new Waiter(owner, rec.shared());
+                    row.addLast(w);
+                }
+                w.seq = Math.max(w.seq, rec.seq());
+            }
+            case LockWal.DEQUEUE -> row.removeIf(w -> w.owner == owner);
+            default -> throw new IllegalStateException("unknown WAL record " + rec.type());
+        }
+    }
+
+    // Replicated mode, after losing leadership: parked calls fail (their callers retry at the
+    // new leader) and the table is emptied so the committed log can be applied to it again.
+    private void reset() {
+        gate.writeLock().lock();
+        try {
+            for (Row row : table.values()) {
                 row.mu.lock();
                 try {
-                    while (!row.q.isEmpty() && row.holderOwner == null) {
-                        toNotify.add(row.q.removeFirst().ownerId);
+                    for (Waiter w = row.head; w != null; w = w.next) {
+                        if (w.pending == null) continue;
+                        if (w.timeout != null) w.timeout.cancel(false);
+                        fail(w.pending, replica.notLeader());
                     }
-                    row.revokeSent = false;
                 } finally {
                     row.mu.unlock();
                 }
-                for (String owner : toNotify) {
-                    long seq = row.lastSeqByOwner.getOrDefault(owner, 0L);
-                    callClient(owner, stub -> {
-                        stub.retry(LockCacheServiceOuterClass.RetryRequest.newBuilder()
-                                .setLockId(id).setSequence(seq).build());
-                    });
+            }
+            table.clear();
+            revokerQ.clear();
+            leases.reset();
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    // Idle rows are left out. Owner ids are written once and referenced by index afterwards,
+    // since a few owners usually hold most rows.
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        Map<String, Integer> dict = new HashMap<>();
+        for (var e : table.entrySet()) {
+            Row row = e.getValue();
+            row.mu.lock();
+            try {
+                if (idle(row)) continue;
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                writeOwner(out, dict, owners.name(row.holder));
+                out.writeLong(row.holderSeq);
+                out.writeInt(row.shared == null ? 0 : row.shared.length);
+                if (row.shared != null) {
+                    for (int o : row.shared) writeOwner(out, dict, owners.name(o));
+                }
+                int classic = 0;
+                for (Waiter w = row.head; w != null; w = w.next) {
+                    if (w.pending == null) classic++;
                 }
-            } catch (InterruptedException ie) {
-            } catch (Exception e) {
+                out.writeInt(classic);
+                for (Waiter w = row.head; w != null; w = w.next) {
+                    if (w.pending != null) continue;
+                    writeOwner(out, dict, owners.name(w.owner));
+                    out.writeBoolean(w.shared);
+                    out.writeLong(w.seq);
+                }
+            } finally {
+                row.mu.unlock();
             }
         }
+        out.writeBoolean(false);
     }
 
-    private void callClient(String ownerId, java.util.function.Consumer<LockCacheServiceGrpc.LockCacheServiceBlockingStub> call) {
-        String[] parts = ownerId.split(":");
-        String host = parts[0];
-        int port = Integer.parseInt(parts[1]);
-        ManagedChannel ch = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
-        try {
-            var stub = LockCacheServiceGrpc.newBlockingStub(ch);
-            call.accept(stub);
-        } finally {
-            ch.shutdownNow();
+    // -1 is null, an index equal to the dictionary size introduces a new owner.
+    private static void writeOwner(DataOutputStream out, Map<String, Integer> owners, String o) throws IOException {
+        if (o == null) {
+            out.writeInt(-1);
+            return;
         }
+        Integer i = owners.get(o);
+        if (i != null) {
+            out.writeInt(i);
+            return;
+        }
+        out.writeInt(owners.size());
+        out.writeUTF(o);
+        owners.put(o, owners.size());
+    }
+
+    private static String readOwner(DataInputStream in, List<String> owners) throws IOException {
+        int i = in.readInt();
+        if (i < 0) return null;
+        if (i == owners.size()) owners.add(in.readUTF());
+        return owners.get(i);
+    }
+
+    private void readSnapshot(DataInputStream in) throws IOException {
+        List<String> dict = new ArrayList<>();
+        while (in.readBoolean()) {
+            Row row = r(in.readUTF());
+            String holder = readOwner(in, dict);
+            row.holder = holder == null ? OwnerIds.NONE : owners.intern(holder);
+            row.holderSeq = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) row.addShared(owners.intern(readOwner(in, dict)));
+            for (int i = in.readInt(); i > 0; i--) {
+                Waiter w = new Waiter(owners.intern(readOwner(in, dict)), in.readBoolean());
+                w.seq = in.readLong();
+                row.addLast(w);
+            }
+        }
+    }
+
+    // WAL mode: folds the log into a fresh snapshot now and waits until it is written.
+    void snapshot() throws InterruptedException {
+        ((LockWal) effects).snapshot();
+    }
+
+    // The rows that are not idle as text, one line each in id order: holders with their
+    // sequence, readers, and the queue from its head.
+    String rows() {
+        Map<String, String> out = new TreeMap<>();
+        for (var e : table.entrySet()) {
+            Row row = e.getValue();
+            row.mu.lock();
+            try {
+                if (idle(row)) continue;
+                var sb = new StringBuilder(e.getKey())
+                        .append(" holder=").append(owners.name(row.holder)).append('@').append(row.holderSeq);
+                if (row.shared != null) {
+                    List<String> readers = new ArrayList<>();
+                    for (int o : row.shared) readers.add(owners.name(o));
+                    Collections.sort(readers);
+                    sb.append(" shared=").append(readers);
+                }
+                for (Waiter w = row.head; w != null; w = w.next) {
+                    sb.append(" queued=").append(owners.name(w.owner)).append(w.shared ? "/shared@" : "@").append(w.seq);
+                }
+                out.put(e.getKey(), sb.toString());
+            } finally {
+                row.mu.unlock();
+            }
+        }
+        return String.join("\n", out.values());
     }
 
     public void stopBackground() {
         running = false;
         revokerThread.interrupt();
-        retrierThread.interrupt();
+        timers.shutdownNow();
+        dispatcher.close();
+        channels.close();
+        if (effects != null) {
+            try { effects.close(); } catch (IOException ignored) {}
+        }
     }
 }
@@ -1,21 +1,47 @@
 package dfs.lock;
 
+import dfs.transport.TransportConfig;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
 public class LockServiceServer {
 
     private final int port;
+    private final Path dataDir;
+    private final List<String> replicas;
     private Server server;
     private LockServiceImpl impl;
 
-    public LockServiceServer(int port) { this.port = port; }
+    public LockServiceServer(int port) { this(port, (Path) null, null); }
+
+    public LockServiceServer(int port, Path walDir) { this(port, walDir, null); }
+
+    // replicas lists this replica's own host:port first, then its peers in the group. Term, vote
+    // and log are kept in memory, so a replica started this way must not be restarted.
+    public LockServiceServer(int port, List<String> replicas) { this(port, (Path) null, replicas); }
+
+    // As above, with the replica's term, vote and log kept in stateDir across restarts.
+    public LockServiceServer(int port, List<String> replicas, Path stateDir) { this(port, stateDir, replicas); }
+
+    private LockServiceServer(int port, Path dataDir, List<String> replicas) {
+        this.port = port;
+        this.dataDir = dataDir;
+        this.replicas = replicas;
+    }
 
     public void start() throws Exception {
-        impl = new LockServiceImpl();
-        server = ServerBuilder.forPort(port)
-                .addService(impl)
+        var sb = TransportConfig.load("lock", "default").server(port);
+        if (replicas != null) {
+            impl = new LockServiceImpl(replicas.get(0), replicas.subList(1, replicas.size()), dataDir);
+            sb.addService(impl.replication());
+        } else {
+            impl = dataDir == null ? new LockServiceImpl() : new LockServiceImpl(dataDir);
+        }
+        server = sb.addService(impl)
                 .build()
                 .start();
         System.out.printf("Lock Service started on port %d%n", port);
@@ -26,13 +52,28 @@ public class LockServiceServer {
         }));
     }
 
+    public void stopNow() {
+        if (server != null) server.shutdownNow();
+        if (impl != null) impl.stopBackground();
+    }
+
     public void blockUntilShutdown() throws InterruptedException {
         if (server != null) server.awaitTermination();
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 1) { System.exit(1); }
-        var srv = new LockServiceServer(Integer.parseInt(args[0]));
+        boolean replicated = args.length > 1 && args[1].equals("--replicas");
+        if (args.length < 1 || (replicated && args.length < 4)) {
+            System.err.println("Usage: java dfs.lock.LockServiceServer <port> [walDir | --replicas self,peer,... stateDir]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        LockServiceServer srv;
+        if (replicated) {
+            srv = new LockServiceServer(port, Arrays.asList(args[2].split(",")), Path.of(args[3]));
+        } else {
+            srv = new LockServiceServer(port, args.length > 1 ? Path.of(args[1]) : null);
+        }
         srv.start();
         srv.blockUntilShutdown();
     }
@@ -0,0 +1,342 @@
+package dfs.lock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only log of lock table changes plus periodic snapshots, under one data directory:
+//
+//   snapshot.bin     table state, tagged with the first log generation not folded into it
+//   wal-<gen>.log    records framed as [int length][payload][int crc32]
+//
+// Appends only serialize into a memory buffer; a flusher thread writes and fsyncs whatever
+// accumulated since its last pass, so concurrent requests share one fsync (group commit).
+// Callers hold their response back with afterDurable().
+//
+// Replay is idempotent per row: a snapshot may already contain some changes from the log
+// generation that follows it, and applying them again converges to the same state.
+class LockWal implements EffectLog {
+
+    static final byte GRANT = 1, RELEASE = 2, ENQUEUE = 3, DEQUEUE = 4;
+    static final long SNAPSHOT_EVERY = 1_000_000;
+    private static final int SNAPSHOT_MAGIC = 0x4c4b534e;
+
+    record Rec(byte type, String id, String owner, boolean shared, long seq) {}
+
+    interface SnapshotWriter { void write(DataOutputStream out) throws IOException; }
+    interface SnapshotReader { void read(DataInputStream in) throws IOException; }
+    interface FrameReader { void read(byte[] payload) throws IOException; }
+
+    private final Path dir;
+    private final SnapshotWriter snapshotWriter;
+    private final ReentrantLock mu = new ReentrantLock();
+    private final Condition flushNeeded = mu.newCondition();
+    private final Condition snapshotState = mu.newCondition();
+    private final TreeMap<Long, List<Runnable>> waiting = new TreeMap<>();
+    private final Thread flusher, snapshotter;
+    private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private DataOutputStream bufOut = new DataOutputStream(buf);
+    private FileChannel log;
+    private long gen;
+    private long appendedLsn = 0, durableLsn = 0, sinceSnapshot = 0;
+    private boolean rotateRequested = false, snapshotRequested = false, closed = false;
+    private long rotatedTo = -1;
+    private long snapshotsStarted = 0, snapshotsDone = 0;  // passes, written or failed
+
+    private LockWal(Path dir, long gen, SnapshotWriter snapshotWriter) throws IOException {
+        this.dir = dir;
+        this.gen = gen;
+        this.snapshotWriter = snapshotWriter;
+        this.log = openLog(gen);
+        this.flusher = new Thread(this::flusherLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.snapshotter = new Thread(this::snapshotLoop, "wal-snapshotter");
+        this.snapshotter.setDaemon(true);
+    }
+
+    // Loads the latest snapshot, replays every later log generation and opens a fresh one.
+    static LockWal open(Path dir, SnapshotReader reader, Consumer<Rec> apply, SnapshotWriter writer) throws IOException {
+        Files.createDirectories(dir);
+        long t0 = System.nanoTime();
+        long firstGen = 0;
+        Path snap = dir.resolve("snapshot.bin");
+        if (Files.exists(snap)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snap), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("bad snapshot " + snap);
+                firstGen = in.readLong();
+                reader.read(in);
+            }
+        }
+        long tSnap = System.nanoTime();
+
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                gens.add(Long.parseLong(n.substring(4, n.length() - 4)));
+            }
+        }
+        Collections.sort(gens);
+        long records = 0, nextGen = firstGen;
+        for (long g : gens) {
+            if (g < firstGen) continue;
+            records += replay(dir.resolve(logName(g)), apply);
+            nextGen = g + 1;
+        }
+        System.out.printf("Lock WAL %s: snapshot %.1f ms, %d log records %.1f ms%n", dir,
+                (tSnap - t0) / 1e6, records, (System.nanoTime() - tSnap) / 1e6);
+
+        LockWal wal = new LockWal(dir, nextGen, writer);
+        wal.sinceSnapshot = records;
+        wal.flusher.start();
+        wal.snapshotter.start();
+        return wal;
+    }
+
+    private static String logName(long gen) { return "wal-" + gen + ".log"; }
+
+    private FileChannel openLog(long g) throws IOException {
+        return FileChannel.open(dir.resolve(logName(g)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static long replay(Path p, Consumer<Rec> apply) throws IOException {
+        return readFrames(p, payload -> {
+            DataInputStream r = new DataInputStream(new ByteArrayInputStream(payload));
+            apply.accept(new Rec(r.readByte(), r.readUTF(), r.readUTF(), r.readBoolean(), r.readLong()));
+        });
+    }
+
+    // Hands r every frame of p up to the end or the first torn/corrupt one, which is cut off;
+    // returns the number of frames read.
+    static long readFrames(Path p, FrameReader r) throws IOException {
+        long n = 0, good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 16))) {
+            while (true) {
+                int len;
+                try { len = in.readInt(); } catch (EOFException e) { break; }
+                if (len <= 0 || len > (1 << 20)) break;
+                byte[] payload = new byte[len];
+                int crc;
+                try {
+                    in.readFully(payload);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 c = new CRC32();
+                c.update(payload);
+                if ((int) c.getValue() != crc) break;
+                r.read(payload);
+                good += frameSize(payload);
+                n++;
+            }
+        }
+        if (good < Files.size(p)) {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) { ch.truncate(good); }
+        }
+        return n;
+    }
+
+    static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 c = new CRC32();
+        c.update(payload);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) c.getValue());
+    }
+
+    static long frameSize(byte[] payload) { return 8 + payload.length; }
+
+    // Caller normally holds the row lock, so records of one row reach the log in the order applied.
+    @Override
+    public long append(byte type, String id, String owner, boolean shared, long seq) {
+        mu.lock();
+        try {
+            ByteArrayOutputStream pb = new ByteArrayOutputStream(32 + id.length() + owner.length());
+            DataOutputStream p = new DataOutputStream(pb);
+            p.writeByte(type);
+            p.writeUTF(id);
+            p.writeUTF(owner);
+            p.writeBoolean(shared);
+            p.writeLong(seq);
+            writeFrame(bufOut, pb.toByteArray());
+            appendedLsn++;
+            if (++sinceSnapshot >= SNAPSHOT_EVERY) requestSnapshot();
+            flushNeeded.signal();
+            return appendedLsn;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Runs r once everything appended so far is on disk (immediately if it already is). A failed
+    // write stops the process, so onLost is never called.
+    @Override
+    public void afterDurable(Runnable r, Consumer<Throwable> onLost) {
+        mu.lock();
+        try {
+            if (appendedLsn > durableLsn) {
+                waiting.computeIfAbsent(appendedLsn, k -> new ArrayList<>()).add(r);
+                return;
+            }
+        } finally {
+            mu.unlock();
+        }
+        r.run();
+    }
+
+    private void requestSnapshot() {
+        mu.lock();
+        try {
+            snapshotRequested = true;
+            snapshotState.signalAll();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Starts a snapshot now, without waiting for SNAPSHOT_EVERY appends, and returns once it
+    // has been written (or has failed).
+    void snapshot() throws InterruptedException {
+        mu.lock();
+        try {
+            long pass = snapshotsStarted + 1;
+            snapshotRequested = true;
+            snapshotState.signalAll();
+            while (snapshotsDone < pass && !closed) snapshotState.await();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    private void flusherLoop() {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            boolean rotate;
+            mu.lock();
+            try {
+                while (buf.size() == 0 && !rotateRequested && !closed) flushNeeded.awaitUninterruptibly();
+                if (closed && buf.size() == 0) return;
+                batch = buf.toByteArray();
+                buf = new ByteArrayOutputStream(Math.max(4096, batch.length));
+                bufOut = new DataOutputStream(buf);
+                upTo = appendedLsn;
+                rotate = rotateRequested;
+                rotateRequested = false;
+            } finally {
+                mu.unlock();
+            }
+
+            try {
+                if (batch.length > 0) {
+                    ByteBuffer bb = ByteBuffer.wrap(batch);
+                    while (bb.hasRemaining()) log.write(bb);
+                    log.force(false);
+                }
+                if (rotate) {
+                    log.close();
+                    log = openLog(gen + 1);
+                }
+            } catch (IOException e) {
+                System.err.println("FATAL: lock WAL write failed: " + e.getMessage());
+                System.exit(1);
+            }
+
+            List<Runnable> ready = new ArrayList<>();
+            mu.lock();
+            try {
+                durableLsn = upTo;
+                if (rotate) {
+                    gen++;
+                    rotatedTo = gen;
+                    snapshotState.signalAll();
+                }
+                var head = waiting.headMap(upTo, true);
+                head.values().forEach(ready::addAll);
+                head.clear();
+            } finally {
+                mu.unlock();
+            }
+            for (Runnable r : ready) {
+                try { r.run(); } catch (RuntimeException ignored) {}
+            }
+        }
+    }
+
+    // Switches appends to a new log generation, dumps the table, then drops the logs the
+    // snapshot now covers.
+    private void snapshotLoop() {
+        while (true) {
+            long snapGen;
+            mu.lock();
+            try {
+                while (!snapshotRequested && !closed) snapshotState.awaitUninterruptibly();
+                if (closed) return;
+                snapshotRequested = false;
+                snapshotsStarted++;
+                sinceSnapshot = 0;
+                rotatedTo = -1;
+                rotateRequested = true;
+                flushNeeded.signal();
+                while (rotatedTo < 0 && !closed) snapshotState.awaitUninterruptibly();
+                if (closed) return;
+                snapGen = rotatedTo;
+            } finally {
+                mu.unlock();
+            }
+
+            try {
+                long t0 = System.nanoTime();
+                Path tmp = dir.resolve("snapshot.tmp");
+                try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeLong(snapGen);
+                    snapshotWriter.write(out);
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) { d.force(true); }
+                catch (IOException ignored) {}
+                for (long g = snapGen - 1; g >= 0; g--) {
+                    if (!Files.deleteIfExists(dir.resolve(logName(g)))) break;
+                }
+                System.out.printf("Lock WAL snapshot gen %d written in %.1f ms%n", snapGen, (System.nanoTime() - t0) / 1e6);
+            } catch (IOException e) {
+                System.err.println("Lock WAL snapshot failed: " + e.getMessage());
+            }
+            mu.lock();
+            try {
+                snapshotsDone++;
+                snapshotState.signalAll();
+            } finally {
+                mu.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mu.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+            snapshotState.signalAll();
+        } finally {
+            mu.unlock();
+        }
+        try { flusher.join(2_000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        log.close();
+    }
+}
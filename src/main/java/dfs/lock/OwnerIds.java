@@ -0,0 +1,97 @@
+package dfs.lock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Interns owner ids to small int handles, so a lock row stores an int per owner instead of a
+// String and the maps keyed by it. An owner whose lease expired with nothing left in the table
+// has its handle retired: the owner gets it back if it shows up again, and otherwise it goes to
+// a new owner once a later sweep found no row still referring to it.
+class OwnerIds {
+
+    static final int NONE = -1;
+
+    private record Retired(int handle, long gen) {}
+
+    private final ConcurrentMap<String, Integer> handles = new ConcurrentHashMap<>();
+    private final ReentrantLock mu = new ReentrantLock();
+    private final Map<String, Retired> retired = new HashMap<>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private volatile String[] names = new String[16];
+    private int count = 0;
+
+    int intern(String owner) {
+        Integer h = handles.get(owner);
+        if (h != null) return h;
+        mu.lock();
+        try {
+            h = handles.get(owner);
+            if (h != null) return h;
+            Retired r = retired.remove(owner);
+            if (r != null) {
+                h = r.handle;
+            } else if (!free.isEmpty()) {
+                h = free.pop();
+            } else {
+                if (count == names.length) names = Arrays.copyOf(names, count * 2);
+                h = count++;
+            }
+            names[h] = owner;
+            handles.put(owner, h);
+            return h;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    String name(int h) { return h == NONE ? null : names[h]; }
+
+    int size() { return handles.size(); }
+
+    // The owner of h expired holding nothing; gen is the caller's clock for retiredBefore.
+    void retire(int h, long gen) {
+        mu.lock();
+        try {
+            String owner = names[h];
+            if (handles.remove(owner, h)) retired.put(owner, new Retired(h, gen));
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    // Handles retired before gen and not claimed back since.
+    List<Integer> retiredBefore(long gen) {
+        List<Integer> out = new ArrayList<>();
+        mu.lock();
+        try {
+            for (Retired r : retired.values()) {
+                if (r.gen < gen) out.add(r.handle);
+            }
+        } finally {
+            mu.unlock();
+        }
+        return out;
+    }
+
+    // Makes a retired h available to new owners; the caller made sure nothing refers to it.
+    void free(int h) {
+        mu.lock();
+        try {
+            String owner = names[h];
+            Retired r = owner == null ? null : retired.get(owner);
+            if (r == null || r.handle != h) return;
+            retired.remove(owner);
+            names[h] = null;
+            free.push(h);
+        } finally {
+            mu.unlock();
+        }
+    }
+}
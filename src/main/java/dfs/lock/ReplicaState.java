@@ -0,0 +1,148 @@
+package dfs.lock;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// What a LockReplica must not forget across a restart, under one data directory:
+//
+//   vote.bin   current term and the candidate voted for in it, replaced as a whole
+//   log.bin    the replicated log, LogEntry protos framed as in LockWal
+//
+// A vote is on disk once saveVote returns. Log writes go to the page cache and only become
+// durable with the next sync(), so one fsync covers every entry written before it. Like the
+// in-memory log the file is never compacted. A failed write stops the process, as in LockWal.
+class ReplicaState {
+
+    private final Path dir;
+    private final FileChannel log;
+    private final List<Long> ends = new ArrayList<>();  // File offset just past each entry
+    private long term = 0;
+    private String votedFor;
+
+    // Hands the log found on disk to onEntry, oldest entry first.
+    ReplicaState(Path dir, Consumer<LockReplicationOuterClass.LogEntry> onEntry) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Path vote = dir.resolve("vote.bin");
+        if (Files.exists(vote)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(vote))) {
+                term = in.readLong();
+                votedFor = in.readBoolean() ? in.readUTF() : null;
+            }
+        }
+        Path p = dir.resolve("log.bin");
+        if (Files.exists(p)) {
+            long[] end = {0};
+            LockWal.readFrames(p, payload -> {
+                try {
+                    onEntry.accept(LockReplicationOuterClass.LogEntry.parseFrom(payload));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IOException("bad entry in " + p, e);
+                }
+                end[0] += LockWal.frameSize(payload);
+                ends.add(end[0]);
+            });
+        }
+        log = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.position(end());
+    }
+
+    long term() { return term; }
+
+    String votedFor() { return votedFor; }
+
+    void saveVote(long term, String votedFor) {
+        try {
+            Path tmp = dir.resolve("vote.tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(b);
+                out.writeLong(term);
+                out.writeBoolean(votedFor != null);
+                if (votedFor != null) out.writeUTF(votedFor);
+                write(ch, b.toByteArray());
+                ch.force(false);
+            }
+            Files.move(tmp, dir.resolve("vote.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) { d.force(true); }
+            this.term = term;
+            this.votedFor = votedFor;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Writes entries after the ones already in the file.
+    void append(List<LockReplicationOuterClass.LogEntry> more) {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            long end = end();
+            for (var e : more) {
+                byte[] payload = e.toByteArray();
+                LockWal.writeFrame(out, payload);
+                end += LockWal.frameSize(payload);
+                ends.add(end);
+            }
+            write(log, b.toByteArray());
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Keeps the first n entries.
+    void truncate(long n) {
+        try {
+            ends.subList((int) n, ends.size()).clear();
+            log.truncate(end());
+            log.position(end());
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Makes everything written so far durable; false if the state was closed meanwhile.
+    boolean sync() {
+        try {
+            log.force(false);
+            return true;
+        } catch (ClosedChannelException e) {
+            return false;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    void close() {
+        try { log.close(); } catch (IOException ignored) {}
+    }
+
+    private long end() { return ends.isEmpty() ? 0 : ends.get(ends.size() - 1); }
+
+    private static void write(FileChannel ch, byte[] data) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining()) ch.write(bb);
+    }
+
+    private static void fail(IOException e) {
+        if (e instanceof ClosedChannelException) return;  // Shutting down
+        System.err.println("FATAL: lock replica state write failed: " + e.getMessage());
+        System.exit(1);
+    }
+}
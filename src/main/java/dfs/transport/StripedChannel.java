@@ -0,0 +1,56 @@
+package dfs.transport;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Several channels to the same server behind one: each new call goes to the next of them.
+final class StripedChannel extends ManagedChannel {
+
+    private final ManagedChannel[] channels;
+    private final AtomicInteger next = new AtomicInteger();
+
+    StripedChannel(ManagedChannel[] channels) { this.channels = channels; }
+
+    @Override
+    public <Q, R> ClientCall<Q, R> newCall(MethodDescriptor<Q, R> method, CallOptions options) {
+        return channels[Math.floorMod(next.getAndIncrement(), channels.length)].newCall(method, options);
+    }
+
+    @Override
+    public String authority() { return channels[0].authority(); }
+
+    @Override
+    public ManagedChannel shutdown() {
+        for (ManagedChannel ch : channels) ch.shutdown();
+        return this;
+    }
+
+    @Override
+    public ManagedChannel shutdownNow() {
+        for (ManagedChannel ch : channels) ch.shutdownNow();
+        return this;
+    }
+
+    @Override
+    public boolean isShutdown() { return channels[0].isShutdown(); }
+
+    @Override
+    public boolean isTerminated() {
+        for (ManagedChannel ch : channels) if (!ch.isTerminated()) return false;
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ManagedChannel ch : channels) {
+            if (!ch.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+package dfs.transport;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// How a server and the channels it opens use the network. Settings come from system properties
+// so that the lock, extent and DFS servers are tuned alike without growing their positional
+// command lines: -Ddfs.<service>.<key>=<value>, falling back to -Ddfs.<key>=<value>, where
+// service is lock, extent or dfs. Anything unset keeps gRPC's default.
+//
+//   executor        "default" (gRPC's cached pool), "virtual", or a thread count for a fixed pool
+//   epoll           true or false; unset lets gRPC pick, which is epoll wherever it is available
+//   eventLoops      Netty worker threads of this service's own event loop group
+//   maxInboundMB    largest message accepted, by the server and by its channels (gRPC: 4; < 2048)
+//   flowWindowKB    initial HTTP/2 flow-control window, still auto-tuned from there (gRPC: 1024)
+//   keepAliveSec    ping idle connections this often, and let peers do the same
+//   extentChannels  connections a DFS node stripes its extent calls over (1)
+public final class TransportConfig {
+
+    private final String service;
+    private final String executor;
+    private final Boolean epoll;
+    private final int eventLoops;
+    private final int maxInboundBytes;
+    private final int flowWindowBytes;
+    private final long keepAliveSec;
+    private final int extentChannels;
+    private EventLoopGroup clientGroup;
+
+    private TransportConfig(String service, String defaultExecutor) {
+        this.service = service;
+        this.executor = get("executor", defaultExecutor);
+        String e = get("epoll", null);
+        this.epoll = e == null ? null : Boolean.parseBoolean(e);
+        this.eventLoops = Integer.parseInt(get("eventLoops", "0"));
+        this.maxInboundBytes = bytes("maxInboundMB", 20);
+        this.flowWindowBytes = bytes("flowWindowKB", 10);
+        this.keepAliveSec = Long.parseLong(get("keepAliveSec", "0"));
+        this.extentChannels = Math.max(1, Integer.parseInt(get("extentChannels", "1")));
+    }
+
+    // The settings of service; defaultExecutor applies if neither property names one.
+    public static TransportConfig load(String service, String defaultExecutor) {
+        return new TransportConfig(service, defaultExecutor);
+    }
+
+    private String get(String key, String def) {
+        String v = System.getProperty("dfs." + service + "." + key);
+        if (v == null) v = System.getProperty("dfs." + key);
+        return v == null ? def : v.trim();
+    }
+
+    // A size setting in units of 1 << shift bytes, which must come to less than 2 GiB.
+    private int bytes(String key, int shift) {
+        long v = Long.parseLong(get(key, "0"));
+        if (v < 0 || v > Integer.MAX_VALUE >> shift) {
+            throw new IllegalArgumentException(service + " " + key + "=" + v + " is out of range 0.." + (Integer.MAX_VALUE >> shift));
+        }
+        return (int) v << shift;
+    }
+
+    public int extentChannels() { return extentChannels; }
+
+    public ServerBuilder<?> server(int port) {
+        var b = NettyServerBuilder.forPort(port);
+        switch (executor) {
+            case "default" -> { }
+            case "virtual" -> b.executor(Executors.newVirtualThreadPerTaskExecutor());
+            default -> b.executor(fixedPool(Integer.parseInt(executor)));
+        }
+        if (epoll != null || eventLoops > 0) {
+            boolean ep = useEpoll();
+            b.channelType(ep ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                    .bossEventLoopGroup(group(ep, 1, service + "-boss"))
+                    .workerEventLoopGroup(group(ep, eventLoops, service + "-worker"));
+        }
+        if (maxInboundBytes > 0) b.maxInboundMessageSize(maxInboundBytes);
+        if (flowWindowBytes > 0) b.initialFlowControlWindow(flowWindowBytes);
+        if (keepAliveSec > 0) {
+            b.keepAliveTime(keepAliveSec, TimeUnit.SECONDS)
+                    .permitKeepAliveTime(keepAliveSec, TimeUnit.SECONDS)
+                    .permitKeepAliveWithoutCalls(true);
+        }
+        return b;
+    }
+
+    // A plaintext channel to host:port.
+    public ManagedChannel channel(String hostPort) {
+        String[] hp = hostPort.split(":", 2);
+        var b = NettyChannelBuilder.forAddress(hp[0], Integer.parseInt(hp[1])).usePlaintext();
+        if (epoll != null || eventLoops > 0) {
+            boolean ep = useEpoll();
+            b.channelType(ep ? EpollSocketChannel.class : NioSocketChannel.class).eventLoopGroup(clientGroup(ep));
+        }
+        if (maxInboundBytes > 0) b.maxInboundMessageSize(maxInboundBytes);
+        if (flowWindowBytes > 0) b.initialFlowControlWindow(flowWindowBytes);
+        if (keepAliveSec > 0) b.keepAliveTime(keepAliveSec, TimeUnit.SECONDS).keepAliveWithoutCalls(true);
+        return b.build();
+    }
+
+    // n channels to host:port used in turn, one per call, so that calls are spread over n
+    // connections (and their flow-control windows and event loops) instead of sharing one.
+    public ManagedChannel channels(String hostPort, int n) {
+        if (n == 1) return channel(hostPort);
+        ManagedChannel[] chs = new ManagedChannel[n];
+        for (int i = 0; i < n; i++) chs[i] = channel(hostPort);
+        return new StripedChannel(chs);
+    }
+
+    private boolean useEpoll() {
+        return !Boolean.FALSE.equals(epoll) && Epoll.isAvailable();
+    }
+
+    private synchronized EventLoopGroup clientGroup(boolean ep) {
+        if (clientGroup == null) clientGroup = group(ep, eventLoops, service + "-client");
+        return clientGroup;
+    }
+
+    // Daemon threads, like gRPC's own groups, so that nobody has to shut them down.
+    private static EventLoopGroup group(boolean ep, int threads, String name) {
+        ThreadFactory tf = new DefaultThreadFactory(name, true);
+        return ep ? new EpollEventLoopGroup(threads, tf) : new NioEventLoopGroup(threads, tf);
+    }
+
+    private Executor fixedPool(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, service + "-executor-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,40 @@
+package dfs;
+
+import io.grpc.HandlerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+// Helpers shared by the tests that run servers in-process on localhost.
+public final class TestSupport {
+
+    public static final long AWAIT_MILLIS = 20_000;
+
+    private TestSupport() { }
+
+    // Polls cond until it holds, failing with what if it does not within AWAIT_MILLIS.
+    public static void await(BooleanSupplier cond, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_MILLIS);
+        while (!cond.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail(what);
+            Thread.sleep(20);
+        }
+    }
+
+    // A server for the services registry finds, on port (0: any free one, see Server.getPort).
+    // Services can be added to a MutableHandlerRegistry once the port is known.
+    public static Server serve(int port, HandlerRegistry registry) throws IOException {
+        return ServerBuilder.forPort(port).fallbackHandlerRegistry(registry).build().start();
+    }
+
+    public static ManagedChannel channel(int port) {
+        return ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+    }
+}
@@ -0,0 +1,215 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+import dfs.TestSupport;
+import dfs.extent.Durability;
+import dfs.extent.ExtentServiceGrpc;
+import dfs.extent.ExtentServiceOuterClass;
+import dfs.extent.ExtentServiceServer;
+import dfs.extent.StorageEngine;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static dfs.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+// A DFS node over two extent servers that mirror every file, run in-process on localhost ports
+// so that one of them can be stopped and started again under it.
+class ExtentRingTest {
+
+    @TempDir
+    Path tmp;
+
+    private final int[] ports = new int[2];
+    private final ExtentServiceServer[] extents = new ExtentServiceServer[2];
+    private FakeLockService locks;
+    private LockClient lockClient;
+    private ExtentRing ring;
+    private Server dfs;
+    private ManagedChannel channel;
+    private DfsServiceGrpc.DfsServiceBlockingStub client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        List<ExtentRing.Node> nodes = new ArrayList<>();
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < extents.length; i++) {
+            startExtent(i);
+            ports[i] = extents[i].getPort();
+            var ch = TestSupport.channel(ports[i]);
+            channels.add(ch);
+            nodes.add(new ExtentRing.Node("127.0.0.1:" + ports[i], ExtentServiceGrpc.newBlockingStub(ch), ExtentServiceGrpc.newStub(ch)));
+        }
+        ring = new ExtentRing(nodes, channels, 2, 0);
+        locks = new FakeLockService();
+        lockClient = new LockClient(locks.stub(), "127.0.0.1:1:test");
+        dfs = ServerBuilder.forPort(0).addService(new DfsServiceImpl(ring, lockClient, null, 0, 0)).build().start();
+        channel = TestSupport.channel(dfs.getPort());
+        client = DfsServiceGrpc.newBlockingStub(channel).withDeadlineAfter(30, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        channel.shutdownNow();
+        dfs.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        lockClient.stop();
+        locks.close();
+        ring.shutdown();
+        for (var e : extents) if (e != null) e.stop();
+    }
+
+    // Port 0 the first time; a restart takes the port it had, which the ring's channel points at.
+    private void startExtent(int i) throws Exception {
+        extents[i] = new ExtentServiceServer(ports[i], tmp.resolve("extent-" + i).toString(), 0, Durability.GROUP, StorageEngine.FILES);
+        extents[i].start();
+    }
+
+    private void stopExtent(int i) {
+        extents[i].stop();
+        extents[i] = null;
+    }
+
+    private boolean put(String name, String data) {
+        return client.put(DfsServiceOuterClass.PutRequest.newBuilder()
+                .setFileName(name).setFileData(ByteString.copyFromUtf8(data)).build()).getSuccess();
+    }
+
+    // Puts data in chunks of step bytes through putStream; the response's success, or null if the call failed.
+    private Boolean putStream(String name, byte[] data, int step) throws Exception {
+        var done = new CompletableFuture<DfsServiceOuterClass.PutResponse>();
+        var call = DfsServiceGrpc.newStub(channel).putStream(new StreamObserver<>() {
+            private DfsServiceOuterClass.PutResponse resp;
+
+            @Override public void onNext(DfsServiceOuterClass.PutResponse r) { resp = r; }
+            @Override public void onError(Throwable t) { done.completeExceptionally(t); }
+            @Override public void onCompleted() { done.complete(resp); }
+        });
+        for (int off = 0; off < data.length; off += step) {
+            var b = DfsServiceOuterClass.PutChunk.newBuilder().setData(ByteString.copyFrom(data, off, Math.min(step, data.length - off)));
+            if (off == 0) b.setFileName(name);
+            call.onNext(b.build());
+        }
+        call.onCompleted();
+        try {
+            return done.get(30, TimeUnit.SECONDS).getSuccess();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private String get(String name) {
+        var r = client.get(DfsServiceOuterClass.GetRequest.newBuilder().setFileName(name).build());
+        return r.hasFileData() ? r.getFileData().toStringUtf8() : null;
+    }
+
+
+    @Test
+    void replicaThatMissedAWriteIsRepaired() throws Exception {
+        assertTrue(put("/f", "v1"));
+        stopExtent(1);
+        assertFalse(put("/f", "v2"), "a write one replica missed must not report success");
+        assertEquals(List.of(ring.nodes().get(1)), List.copyOf(ring.dirty("/f")));
+        assertEquals("v2", get("/f"), "reads must skip the dirty replica");
+        assertTrue(client.mkdir(DfsServiceOuterClass.MkdirRequest.newBuilder().setDirectoryName("/d/").build()).getSuccess(),
+                "mkdir must succeed on the nodes that are up");
+
+        startExtent(1);
+        await(() -> ring.dirty("/f").isEmpty(), "the dirty replica was never repaired");
+        stopExtent(0);
+        assertEquals("v2", get("/f"), "the repaired replica must hold the newest write");
+    }
+
+    @Test
+    void deleteMissedByAReplicaIsRepaired() throws Exception {
+        assertTrue(put("/f", "v1"));
+        stopExtent(1);
+        assertTrue(client.delete(DfsServiceOuterClass.DeleteRequest.newBuilder().setFileName("/f").build()).getSuccess());
+        assertNull(get("/f"));
+
+        startExtent(1);
+        await(() -> ring.dirty("/f").isEmpty(), "the dirty replica was never repaired");
+        stopExtent(0);
+        assertNull(get("/f"), "the deleted file came back from the replica that missed the delete");
+    }
+
+    @Test
+    void streamedPutReachesEveryReplica() throws Exception {
+        byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        assertEquals(Boolean.TRUE, putStream("/s", data, 64 << 10));
+        for (int i = 0; i < extents.length; i++) {
+            var r = ring.nodes().get(i).blocking.get(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName("/s").build());
+            assertArrayEquals(data, r.getFileData().toByteArray(), "replica " + i);
+        }
+
+        stopExtent(1);
+        assertNotEquals(Boolean.TRUE, putStream("/s", new byte[10], 4), "a streamed put one replica missed must not report success");
+        assertTrue(ring.dirty("/s").contains(ring.nodes().get(1)));
+        startExtent(1);
+        await(() -> ring.dirty("/s").isEmpty(), "the dirty replica was never repaired");
+        assertTrue(put("/s", "v2"), "the failed streamed put left the file locked");
+    }
+
+    // Files an older ring left on the first node go where a ring of three, one copy each,
+    // places them; reads find them before and after.
+    @Test
+    void rebalanceMovesFilesWhereTheRingPlacesThem() throws Exception {
+        var third = new ExtentServiceServer(0, tmp.resolve("extent-2").toString());
+        third.start();
+        var ch = TestSupport.channel(third.getPort());
+        List<ExtentRing.Node> nodes = new ArrayList<>(ring.nodes());
+        nodes.add(new ExtentRing.Node("127.0.0.1:" + third.getPort(), ExtentServiceGrpc.newBlockingStub(ch), ExtentServiceGrpc.newStub(ch)));
+        var wider = new ExtentRing(nodes, List.of(ch), 1, 0);
+        var lc = new LockClient(locks.stub(), "127.0.0.1:2:test");
+        var node = ServerBuilder.forPort(0).addService(new DfsServiceImpl(wider, lc, null, 0, 0)).build().start();
+        var nodeChannel = TestSupport.channel(node.getPort());
+        try {
+            var c = DfsServiceGrpc.newBlockingStub(nodeChannel).withDeadlineAfter(30, TimeUnit.SECONDS);
+            int files = 20;
+            for (int i = 0; i < files; i++) {
+                assertTrue(nodes.get(0).blocking.put(ExtentServiceOuterClass.PutRequest.newBuilder()
+                        .setFileName("/g" + i).setFileData(ByteString.copyFromUtf8("v" + i)).build()).getSuccess());
+            }
+            String[] before = new String[files];
+            for (int i = 0; i < files; i++) {
+                var r = c.get(DfsServiceOuterClass.GetRequest.newBuilder().setFileName("/g" + i).build());
+                before[i] = r.hasFileData() ? r.getFileData().toStringUtf8() : null;
+            }
+
+            long moved = c.rebalance(DfsServiceOuterClass.RebalanceRequest.newBuilder().build()).getFilesMoved();
+            assertTrue(moved > 0, "nothing was moved");
+            for (int i = 0; i < files; i++) {
+                String name = "/g" + i;
+                assertEquals("v" + i, before[i], "a file was not found where the older ring put it");
+                var r = c.get(DfsServiceOuterClass.GetRequest.newBuilder().setFileName(name).build());
+                assertEquals("v" + i, r.getFileData().toStringUtf8());
+                var at = wider.replicas(name).get(0);
+                for (var n : nodes) {
+                    boolean there = n.blocking.stat(ExtentServiceOuterClass.StatRequest.newBuilder().setFileName(name).build()).getExists();
+                    assertEquals(n == at, there, name + " on " + n);
+                }
+            }
+            assertEquals(0, c.rebalance(DfsServiceOuterClass.RebalanceRequest.newBuilder().build()).getFilesMoved());
+        } finally {
+            nodeChannel.shutdownNow();
+            node.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            lc.stop();
+            wider.shutdown();
+            third.stop();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package dfs.dfs;
+
+import dfs.TestSupport;
+import dfs.lock.LockServiceGrpc;
+import dfs.lock.LockServiceOuterClass;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A lock service that grants every request at once and answers keep-alives with a short lease
+// until told to go quiet, so a test can let a client's lease lapse without waiting out the
+// real one.
+class FakeLockService extends LockServiceGrpc.LockServiceImplBase implements AutoCloseable {
+
+    static final long LEASE_MILLIS = 1_000;
+
+    volatile boolean answering = true;
+    volatile long epoch = 1;
+    final AtomicInteger released = new AtomicInteger();
+    final AtomicInteger acquires = new AtomicInteger();  // acquire and acquireWait calls
+    final AtomicInteger batches = new AtomicInteger();   // batchAcquire calls
+    final AtomicInteger batched = new AtomicInteger();   // ids asked for through batchAcquire
+
+    private final Server server;
+    private final ManagedChannel channel;
+
+    FakeLockService() throws IOException {
+        server = ServerBuilder.forPort(0).addService(this).build().start();
+        channel = TestSupport.channel(server.getPort());
+    }
+
+    LockServiceGrpc.LockServiceBlockingStub stub() { return LockServiceGrpc.newBlockingStub(channel); }
+
+    @Override
+    public void acquire(LockServiceOuterClass.AcquireRequest req, StreamObserver<LockServiceOuterClass.AcquireResponse> out) {
+        acquires.incrementAndGet();
+        out.onNext(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(true).build());
+        out.onCompleted();
+    }
+
+    @Override
+    public void acquireWait(LockServiceOuterClass.AcquireRequest req, StreamObserver<LockServiceOuterClass.AcquireResponse> out) {
+        acquire(req, out);
+    }
+
+    @Override
+    public void batchAcquire(LockServiceOuterClass.BatchAcquireRequest req, StreamObserver<LockServiceOuterClass.BatchAcquireResponse> out) {
+        batches.incrementAndGet();
+        batched.addAndGet(req.getRequestsCount());
+        var b = LockServiceOuterClass.BatchAcquireResponse.newBuilder();
+        for (int i = 0; i < req.getRequestsCount(); i++) b.addResponses(LockServiceOuterClass.AcquireResponse.newBuilder().setSuccess(true));
+        out.onNext(b.build());
+        out.onCompleted();
+    }
+
+    @Override
+    public void release(LockServiceOuterClass.ReleaseRequest req, StreamObserver<LockServiceOuterClass.ReleaseResponse> out) {
+        released.incrementAndGet();
+        out.onNext(LockServiceOuterClass.ReleaseResponse.getDefaultInstance());
+        out.onCompleted();
+    }
+
+    @Override
+    public void batchRelease(LockServiceOuterClass.BatchReleaseRequest req, StreamObserver<LockServiceOuterClass.BatchReleaseResponse> out) {
+        released.addAndGet(req.getRequestsCount());
+        out.onNext(LockServiceOuterClass.BatchReleaseResponse.getDefaultInstance());
+        out.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<LockServiceOuterClass.KeepAliveRequest> keepAlive(StreamObserver<LockServiceOuterClass.KeepAliveResponse> out) {
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(LockServiceOuterClass.KeepAliveRequest req) {
+                if (!answering) return;
+                synchronized (out) {
+                    out.onNext(LockServiceOuterClass.KeepAliveResponse.newBuilder().setLeaseMillis(LEASE_MILLIS).setEpoch(epoch).build());
+                }
+            }
+
+            @Override public void onError(Throwable t) { }
+
+            @Override public void onCompleted() { out.onCompleted(); }
+        };
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,96 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+import dfs.extent.Durability;
+import dfs.extent.ExtentServiceImpl;
+import dfs.extent.StorageEngine;
+import dfs.lock.LockServiceServer;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Get latencies of two DFS nodes over three mirrored in-process extent servers, one node with
+// hedged reads off and one with them on:
+//
+//   java -cp <test classes>:<classes>:<deps> dfs.dfs.HedgedReadBench [pauseFraction] [rounds]
+//
+// Each extent server holds up that fraction (default 0.03) of its gets for 40 ms. Each round
+// runs 3000 uncached gets of 50 small files through either node and reports the percentiles and
+// how many extent gets a read cost.
+public class HedgedReadBench {
+
+    static final long PAUSE_MILLIS = 40;
+    static final int FILES = 50, READS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        double pause = args.length > 0 ? Double.parseDouble(args[0]) : 0.03;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int base = 20000 + new Random().nextInt(20000);
+        AtomicLong gets = new AtomicLong();
+        ServerInterceptor slow = new ServerInterceptor() {
+            @Override
+            public <Q, R> ServerCall.Listener<Q> interceptCall(ServerCall<Q, R> call, Metadata headers, ServerCallHandler<Q, R> next) {
+                if (call.getMethodDescriptor().getBareMethodName().equals("get")) {
+                    gets.incrementAndGet();
+                    if (ThreadLocalRandom.current().nextDouble() < pause) {
+                        try {
+                            Thread.sleep(PAUSE_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                return next.startCall(call, headers);
+            }
+        };
+        new LockServiceServer(base).start();
+        List<String> addrs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Path root = Files.createTempDirectory("hedge-bench");
+            var impl = new ExtentServiceImpl(root, null, 0, Durability.GROUP, StorageEngine.FILES);
+            ServerBuilder.forPort(base + 1 + i).addService(ServerInterceptors.intercept(impl, slow)).build().start();
+            addrs.add("127.0.0.1:" + (base + 1 + i));
+        }
+        String lock = "127.0.0.1:" + base;
+        System.setProperty("dfs.hedgePercentile", "0");
+        new DfsServiceServer(base + 10, String.join(",", addrs), lock, 0, 3).start();
+        System.setProperty("dfs.hedgePercentile", String.valueOf(ExtentRing.DEFAULT_HEDGE_PERCENTILE));
+        new DfsServiceServer(base + 11, String.join(",", addrs), lock, 0, 3).start();
+        var off = DfsServiceGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", base + 10).usePlaintext().build());
+        var on = DfsServiceGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", base + 11).usePlaintext().build());
+        on.mkdir(DfsServiceOuterClass.MkdirRequest.newBuilder().setDirectoryName("/h/").build());
+        for (int i = 0; i < FILES; i++) {
+            on.put(DfsServiceOuterClass.PutRequest.newBuilder().setFileName("/h/f" + i).setFileData(ByteString.copyFromUtf8("v" + i)).build());
+        }
+        for (int round = 0; round < rounds; round++) {
+            for (var node : List.of(off, on)) {
+                long[] lat = new long[READS];
+                gets.set(0);
+                for (int i = 0; i < READS; i++) {
+                    long t0 = System.nanoTime();
+                    var r = node.get(DfsServiceOuterClass.GetRequest.newBuilder().setFileName("/h/f" + (i % FILES)).build());
+                    lat[i] = System.nanoTime() - t0;
+                    if (!r.getFileData().toStringUtf8().equals("v" + (i % FILES))) throw new AssertionError("wrong content of /h/f" + (i % FILES));
+                }
+                Arrays.sort(lat);
+                System.out.printf("hedging %-3s p50 %.2f p99 %.2f p99.9 %.2f max %.2f ms, %.3f extent gets/read%n",
+                        node == on ? "on" : "off", lat[READS / 2] / 1e6, lat[READS * 99 / 100] / 1e6,
+                        lat[READS * 999 / 1000] / 1e6, lat[READS - 1] / 1e6, gets.get() / (double) READS);
+            }
+        }
+        System.exit(0);
+    }
+}
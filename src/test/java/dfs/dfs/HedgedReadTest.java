@@ -0,0 +1,78 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+import dfs.TestSupport;
+import dfs.extent.ExtentServiceGrpc;
+import dfs.extent.ExtentServiceOuterClass;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ExtentRing.hedged over extent servers whose gets answer at once or never.
+class HedgedReadTest {
+
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void tearDown() {
+        channels.forEach(ManagedChannel::shutdownNow);
+        servers.forEach(Server::shutdownNow);
+        timers.shutdownNow();
+    }
+
+    // An extent server whose get answers with its name, or never if stuck.
+    private ExtentRing.Node node(String name, boolean stuck) throws Exception {
+        servers.add(ServerBuilder.forPort(0).addService(new ExtentServiceGrpc.ExtentServiceImplBase() {
+            @Override
+            public void get(ExtentServiceOuterClass.GetRequest req, StreamObserver<ExtentServiceOuterClass.GetResponse> out) {
+                if (stuck) return;
+                out.onNext(ExtentServiceOuterClass.GetResponse.newBuilder().setFileData(ByteString.copyFromUtf8(name)).build());
+                out.onCompleted();
+            }
+        }).build().start());
+        var ch = TestSupport.channel(servers.get(servers.size() - 1).getPort());
+        channels.add(ch);
+        return new ExtentRing.Node(name, ExtentServiceGrpc.newBlockingStub(ch), ExtentServiceGrpc.newStub(ch));
+    }
+
+    private static String read(ExtentRing ring, List<ExtentRing.Node> order) {
+        var req = ExtentServiceOuterClass.GetRequest.newBuilder().setFileName("/f").build();
+        return ring.<ExtentServiceOuterClass.GetResponse>hedged(order, (n, o) -> n.async.get(req, o)).getFileData().toStringUtf8();
+    }
+
+    @Test
+    void stuckReplicaIsHedged() throws Exception {
+        var nodes = List.of(node("a", true), node("b", false));
+        var ring = new ExtentRing(nodes, List.of(), 2, ExtentRing.DEFAULT_HEDGE_PERCENTILE);
+        assertEquals("b", read(ring, nodes));
+    }
+
+    @Test
+    void readGivesUpAtTheDeadline() throws Exception {
+        var nodes = List.of(node("a", true), node("b", true));
+        var ring = new ExtentRing(nodes, List.of(), 2, ExtentRing.DEFAULT_HEDGE_PERCENTILE);
+        var ctx = Context.current().withDeadlineAfter(300, TimeUnit.MILLISECONDS, timers);
+        long t0 = System.nanoTime();
+        var e = assertThrows(StatusRuntimeException.class, () -> ctx.call((Callable<String>) () -> read(ring, nodes)));
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, e.getStatus().getCode());
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(5), "the read outlived its deadline");
+        ctx.cancel(null);
+    }
+}
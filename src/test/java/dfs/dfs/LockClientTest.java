@@ -0,0 +1,116 @@
+package dfs.dfs;
+
+import dfs.TestSupport;
+import dfs.lock.LockServiceOuterClass.LockMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dfs.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LockClientTest {
+
+    private FakeLockService locks;
+    private LockClient client;
+    private final Set<String> released = ConcurrentHashMap.newKeySet();
+    private final Set<String> lost = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger refusals = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        locks = new FakeLockService();
+        client = new LockClient(locks.stub(), "127.0.0.1:1:test");
+        client.beforeRelease((id, lapsed) -> {
+            if (lapsed) lost.add(id);
+            if (refusals.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) return CompletableFuture.completedFuture(false);
+            released.add(id);
+            return CompletableFuture.completedFuture(true);
+        });
+        // The first answered keep-alive brings the fake's short lease.
+        Thread.sleep(FakeLockService.LEASE_MILLIS / 2);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.stop();
+        locks.close();
+    }
+
+
+    @Test
+    void unansweredKeepAlivesDropCachedGrants() throws Exception {
+        client.acquire("a");
+        client.release("a");
+        assertTrue(client.leaseFresh("a"));
+        assertTrue(client.tryAcquireCached("a"));
+        client.release("a");
+
+        locks.answering = false;
+        await(() -> !client.leaseFresh("a"), "the lease never went stale");
+        await(() -> released.contains("a"), "the stale grant was never handed back");
+        assertTrue(lost.contains("a"), "the release hook was not told the grant was lost");
+        assertFalse(client.tryAcquireCached("a"));
+
+        locks.answering = true;
+        await(() -> client.leaseFresh("a"), "the lease never came back");
+    }
+
+    @Test
+    void refusedReleaseKeepsTheGrant() throws Exception {
+        client.acquire("a");
+        client.release("a");
+        refusals.set(2);
+        client.onRevoke("a");
+        await(() -> locks.released.get() > 0, "the grant was never handed back");
+        assertEquals(0, refusals.get(), "the grant went back before the hook let it go");
+        Thread.sleep(4 * LockClient.RPC_RETRY_BACKOFF_MILLIS);
+        assertEquals(1, locks.released.get(), "the grant went back more than once");
+        assertFalse(lost.contains("a"));
+    }
+
+    @Test
+    void loneMissGoesStraightToAcquireWait() throws Exception {
+        client.acquire("a");
+        assertEquals(1, locks.acquires.get());
+        assertEquals(0, locks.batches.get());
+    }
+
+    @Test
+    void acquireAllFetchesMissesInOneBatch() throws Exception {
+        client.acquireAll(List.of("c", "a", "b"), LockMode.EXCLUSIVE);
+        assertEquals(1, locks.batches.get());
+        assertEquals(3, locks.batched.get());
+        assertEquals(0, locks.acquires.get(), "a prefetched grant was asked for again");
+        client.releaseAll(List.of("a", "b", "c"));
+    }
+
+    @Test
+    void concurrentMissesShareOneBatch() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        // While a batch is in flight the other misses queue up behind it.
+        client.batching.lock();
+        try {
+            for (int i = 0; i < 4; i++) {
+                String id = "m" + i;
+                threads.add(Thread.ofVirtual().start(() -> client.acquire(id)));
+            }
+            await(() -> client.misses.size() == 4, "the misses never queued up");
+        } finally {
+            client.batching.unlock();
+        }
+        client.acquire("m4");
+        for (var t : threads) t.join(TestSupport.AWAIT_MILLIS);
+        threads.forEach(t -> assertFalse(t.isAlive(), "a queued miss was never answered"));
+        assertEquals(1, locks.batches.get());
+        assertEquals(5, locks.batched.get());
+        assertEquals(0, locks.acquires.get());
+    }
+}
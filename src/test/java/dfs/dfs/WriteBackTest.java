@@ -0,0 +1,118 @@
+package dfs.dfs;
+
+import com.google.protobuf.ByteString;
+import dfs.TestSupport;
+import dfs.extent.ExtentServiceGrpc;
+import dfs.extent.ExtentServiceOuterClass;
+import dfs.extent.ExtentServiceServer;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static dfs.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+// A DFS node buffering whole-file writes under grants from FakeLockService, over one extent server.
+class WriteBackTest {
+
+    @TempDir
+    Path tmp;
+
+    private ExtentServiceServer extent;
+    private ManagedChannel extentChannel;
+    private ExtentServiceGrpc.ExtentServiceBlockingStub extentStub;
+    private FakeLockService locks;
+    private LockClient lockClient;
+    private DfsServiceImpl impl;
+    private Server dfs;
+    private ManagedChannel channel;
+    private DfsServiceGrpc.DfsServiceBlockingStub client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        extent = new ExtentServiceServer(0, tmp.toString());
+        extent.start();
+        extentChannel = TestSupport.channel(extent.getPort());
+        extentStub = ExtentServiceGrpc.newBlockingStub(extentChannel);
+        var ring = ExtentRing.single(extentStub, ExtentServiceGrpc.newStub(extentChannel));
+        locks = new FakeLockService();
+        lockClient = new LockClient(locks.stub(), "127.0.0.1:1:test");
+        // The first answered keep-alive brings the fake's short lease.
+        Thread.sleep(FakeLockService.LEASE_MILLIS / 2);
+        impl = new DfsServiceImpl(ring, lockClient, null, 1 << 20, 1 << 20);
+        dfs = ServerBuilder.forPort(0).addService(impl).build().start();
+        channel = TestSupport.channel(dfs.getPort());
+        client = DfsServiceGrpc.newBlockingStub(channel).withDeadlineAfter(30, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        channel.shutdownNow();
+        dfs.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        lockClient.stop();
+        locks.close();
+        extentChannel.shutdownNow();
+        extent.stop();
+    }
+
+    private void put(String name, String data) {
+        assertTrue(client.put(DfsServiceOuterClass.PutRequest.newBuilder()
+                .setFileName(name).setFileData(ByteString.copyFromUtf8(data)).build()).getSuccess());
+    }
+
+    private String onExtent(String name) {
+        var r = extentStub.get(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName(name).build());
+        return r.hasFileData() ? r.getFileData().toStringUtf8() : null;
+    }
+
+
+    @Test
+    void revokedGrantWritesBufferedContentOut() throws Exception {
+        put("/f", "v1");
+        put("/f", "v2");
+        assertEquals("v1", onExtent("/f"), "the second write should have been buffered");
+        lockClient.onRevoke("/f");
+        await(() -> "v2".equals(onExtent("/f")), "the buffered write never reached the extent service");
+    }
+
+    @Test
+    void lapsedLeaseDropsBufferedContent() throws Exception {
+        put("/f", "v1");
+        put("/f", "v2");
+        locks.answering = false;
+        await(() -> !lockClient.leaseFresh("/f"), "the lease never went stale");
+        await(() -> locks.released.get() > 0, "the lapsed grant was never handed back");
+        assertEquals("v1", onExtent("/f"), "content buffered under a lapsed lease was written out");
+    }
+
+    @Test
+    void staleLeaseWritesThrough() throws Exception {
+        put("/f", "v1");
+        locks.answering = false;
+        await(() -> !lockClient.leaseFresh("/f"), "the lease never went stale");
+        put("/f", "v2");
+        assertEquals("v2", onExtent("/f"), "a write under a stale lease was buffered");
+    }
+
+    @Test
+    void flushAllSkipsFilesWhoseLockIsBusy() throws Exception {
+        put("/f", "v1");
+        put("/f", "v2");
+        lockClient.acquire("/f");
+        try {
+            impl.flushAll();
+            assertEquals("v1", onExtent("/f"), "content was written out under a lock held by someone else");
+        } finally {
+            lockClient.release("/f");
+        }
+        impl.flushAll();
+        assertEquals("v2", onExtent("/f"));
+    }
+}
@@ -0,0 +1,71 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtentServiceImplTest {
+
+    @TempDir
+    Path root;
+
+    private static <T> StreamObserver<T> observer(CompletableFuture<T> out) {
+        return new StreamObserver<>() {
+            @Override public void onNext(T r) { out.complete(r); }
+            @Override public void onError(Throwable t) { out.completeExceptionally(t); }
+            @Override public void onCompleted() { }
+        };
+    }
+
+    private static ExtentServiceOuterClass.StatResponse stat(ExtentServiceImpl impl, String name) throws Exception {
+        var out = new CompletableFuture<ExtentServiceOuterClass.StatResponse>();
+        impl.stat(ExtentServiceOuterClass.StatRequest.newBuilder().setFileName(name).build(), observer(out));
+        return out.get(5, TimeUnit.SECONDS);
+    }
+
+    private static ExtentServiceOuterClass.GetResponse get(ExtentServiceImpl impl, long offset, long length) throws Exception {
+        var out = new CompletableFuture<ExtentServiceOuterClass.GetResponse>();
+        impl.get(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName("/big").setOffset(offset).setLength(length).build(), observer(out));
+        return out.get(5, TimeUnit.SECONDS);
+    }
+
+    // A range over 2 GB cannot go in one response: get must say so rather than answer as if
+    // there were no such file.
+    @Test
+    void getOfARangeTooLargeIsOutOfRange() throws Exception {
+        try (var f = new RandomAccessFile(root.resolve("big").toFile(), "rw")) {
+            f.setLength(3L << 30);
+        }
+        var impl = new ExtentServiceImpl(root, null, 0, Durability.NONE, StorageEngine.FILES);
+        var e = assertThrows(ExecutionException.class, () -> get(impl, 0, 0));
+        assertEquals(Status.Code.OUT_OF_RANGE, Status.fromThrowable(e.getCause()).getCode());
+        var tail = get(impl, (3L << 30) - 10, 100);
+        assertEquals(10, tail.getFileData().size());
+        assertEquals(3L << 30, tail.getFileSize());
+    }
+
+    @Test
+    void statTellsAMissingFileFromOneThatExists() throws Exception {
+        var impl = new ExtentServiceImpl(root, null, 0, Durability.NONE, StorageEngine.FILES);
+        var put = new CompletableFuture<ExtentServiceOuterClass.PutResponse>();
+        impl.put(ExtentServiceOuterClass.PutRequest.newBuilder().setFileName("/f")
+                .setFileData(ByteString.copyFromUtf8("abc")).setVersion(42).build(), observer(put));
+        assertTrue(put.get(5, TimeUnit.SECONDS).getSuccess());
+
+        var st = stat(impl, "/f");
+        assertTrue(st.getExists());
+        assertEquals(3, st.getFileSize());
+        assertEquals(42, st.getVersion());
+        assertFalse(stat(impl, "/missing").getExists());
+    }
+}
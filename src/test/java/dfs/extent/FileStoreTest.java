@@ -0,0 +1,82 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileStoreTest {
+
+    @TempDir
+    Path root;
+
+    private static byte[] bytes(int n, long seed) {
+        byte[] b = new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static void replace(FileStore store, Path real, byte[] data) throws IOException {
+        try (var w = store.create(real, false, false, 0)) {
+            w.write(ByteString.copyFrom(data));
+            w.commit(System.currentTimeMillis());
+        }
+    }
+
+    private static byte[] readAll(ExtentStore.Reader r, int step) throws IOException {
+        ByteString out = ByteString.EMPTY;
+        for (long pos = 0; pos < r.size(); pos += step) {
+            out = out.concat(r.read(pos, (int) Math.min(step, r.size() - pos)));
+        }
+        return out.toByteArray();
+    }
+
+    // A reader keeps reading the file it opened, through the mapping, while a shorter file
+    // replaces it under the same path.
+    @Test
+    void readerSeesItsOwnFileAcrossReplace() throws IOException {
+        int region = MappedFiles.REGION_SIZE;
+        FileStore store = new FileStore(new MappedFiles(256L << 20), new FileSync(Durability.NONE));
+        Path real = root.resolve("f");
+        byte[] a = bytes(2 * region + 4096, 1), b = bytes(256 * 1024, 2);
+        Files.write(real, a);
+
+        try (var old = store.open(real)) {
+            assertArrayEquals(java.util.Arrays.copyOf(a, 4096), old.read(0, 4096).toByteArray());
+            replace(store, real, b);
+            try (var now = store.open(real)) {
+                assertEquals(b.length, now.size());
+                assertArrayEquals(b, readAll(now, 64 * 1024));
+            }
+            // Regions of the old file not mapped before the replace are mapped from its own channel.
+            assertArrayEquals(a, readAll(old, region / 2));
+        }
+    }
+
+    @Test
+    void appendGrowsMappedFile() throws IOException {
+        FileStore store = new FileStore(new MappedFiles(256L << 20), new FileSync(Durability.NONE));
+        Path real = root.resolve("g");
+        byte[] a = bytes(128 * 1024, 3), more = bytes(64 * 1024, 4);
+        Files.write(real, a);
+        try (var r = store.open(real)) {
+            assertArrayEquals(a, readAll(r, 32 * 1024));
+        }
+        try (var w = store.create(real, true, true, 0)) {
+            w.write(ByteString.copyFrom(more));
+            w.commit(1_000_000);
+        }
+        try (var r = store.open(real)) {
+            assertEquals(1_000_000, r.version());
+            byte[] all = readAll(r, 32 * 1024);
+            assertEquals(a.length + more.length, all.length);
+            assertArrayEquals(more, java.util.Arrays.copyOfRange(all, a.length, all.length));
+        }
+    }
+}
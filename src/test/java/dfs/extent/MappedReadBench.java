@@ -0,0 +1,69 @@
+package dfs.extent;
+
+import io.grpc.ManagedChannelBuilder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Read throughput of an in-process extent server, through file mappings or the heap path:
+//
+//   java -Xmx512m -cp <test classes>:<classes>:<deps> dfs.extent.MappedReadBench <mapCacheMB>
+//
+// 0 MB reads into the heap. Each round runs 4 threads x 200 gets of 1 MiB files, then streams a
+// 256 MiB file twice, and reports both rates and the GC collections it caused.
+public class MappedReadBench {
+
+    public static void main(String[] args) throws Exception {
+        long cache = Long.parseLong(args.length > 0 ? args[0] : "1024") << 20;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int port = 20000 + new Random().nextInt(20000);
+        Path root = Files.createTempDirectory("mapped-bench");
+        byte[] one = new byte[1 << 20];
+        new Random(1).nextBytes(one);
+        for (int i = 0; i < 64; i++) Files.write(root.resolve("f" + i), one);
+        try (var out = Files.newOutputStream(root.resolve("big"))) {
+            for (int i = 0; i < 256; i++) out.write(one);
+        }
+        var srv = new ExtentServiceServer(port, root.toString(), cache);
+        srv.start();
+        var ch = ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().maxInboundMessageSize(64 << 20).build();
+        var stub = ExtentServiceGrpc.newBlockingStub(ch);
+        var gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        for (int round = 0; round < rounds; round++) {
+            long gc0 = gcs.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+            int threads = 4, per = 200;
+            var pool = Executors.newFixedThreadPool(threads);
+            long t0 = System.nanoTime();
+            List<Future<?>> fs = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int tt = t;
+                fs.add(pool.submit(() -> {
+                    for (int i = 0; i < per; i++) {
+                        stub.get(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName("f" + ((tt * per + i) % 64)).build());
+                    }
+                }));
+            }
+            for (var f : fs) f.get();
+            double getSecs = (System.nanoTime() - t0) / 1e9;
+            pool.shutdown();
+            long t1 = System.nanoTime(), n = 0;
+            for (int k = 0; k < 2; k++) {
+                var it = stub.getStream(ExtentServiceOuterClass.GetRequest.newBuilder().setFileName("big").build());
+                while (it.hasNext()) n += it.next().getData().size();
+            }
+            double streamSecs = (System.nanoTime() - t1) / 1e9;
+            long gc1 = gcs.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+            System.out.printf("round %d mapCache=%dMB  get 1MiB %.0f MB/s  getStream 256MiB %.0f MB/s  gc %d collections%n",
+                    round, cache >> 20, threads * per / getSecs, n / 1e6 / streamSecs, gc1 - gc0);
+        }
+        ch.shutdownNow();
+        System.exit(0);
+    }
+}
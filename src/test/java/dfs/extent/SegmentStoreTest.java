@@ -0,0 +1,80 @@
+package dfs.extent;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+
+    @TempDir
+    Path root;
+
+    private static byte[] bytes(int n, long seed) {
+        byte[] b = new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static void put(SegmentStore store, Path real, byte[] data, long version) throws IOException {
+        try (var w = store.create(real, false, false, 0)) {
+            w.write(ByteString.copyFrom(data));
+            w.commit(version);
+        }
+    }
+
+    // A large file sits in a segment of its own; once overwritten that segment is all dead and
+    // compacted away, while a reader that opened the old content keeps reading it.
+    @Test
+    void readerOutlivesCompactedSegment() throws Exception {
+        SegmentStore store = new SegmentStore(root, new MappedFiles(64L << 20), new FileSync(Durability.NONE));
+        Path real = root.resolve("big");
+        byte[] a = bytes(4 * SegmentStore.PACK_LIMIT, 1), b = bytes(3 * SegmentStore.PACK_LIMIT, 2);
+        put(store, real, a, 1);
+        Path seg = root.resolve(SegmentStore.SEGMENTS_DIR).resolve(String.format("%016x", 1));
+        assertTrue(Files.exists(seg));
+
+        try (var old = store.open(real)) {
+            put(store, real, b, 2);
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (Files.exists(seg) && System.nanoTime() < deadline) Thread.sleep(100);
+            assertFalse(Files.exists(seg), "the dead segment was never compacted");
+            assertArrayEquals(a, old.read(0, a.length).toByteArray());
+        }
+        try (var now = store.open(real)) {
+            assertEquals(2, now.version());
+            assertArrayEquals(b, now.read(0, b.length).toByteArray());
+        }
+    }
+
+    // Versions of packed and spilled files come back from the segments on restart.
+    @Test
+    void versionsSurviveRecovery() throws IOException {
+        SegmentStore store = new SegmentStore(root, null, new FileSync(Durability.NONE));
+        put(store, root.resolve("small"), bytes(100, 4), 7);
+        put(store, root.resolve("big"), bytes(2 * SegmentStore.PACK_LIMIT, 5), 8);
+        SegmentStore again = new SegmentStore(root, null, new FileSync(Durability.NONE));
+        try (var r = again.open(root.resolve("small"))) {
+            assertEquals(7, r.version());
+        }
+        try (var r = again.open(root.resolve("big"))) {
+            assertEquals(8, r.version());
+            assertEquals(2 * SegmentStore.PACK_LIMIT, r.size());
+        }
+    }
+
+    @Test
+    void recoveryRemovesSpillTemps() throws IOException {
+        Path dir = Files.createDirectories(root.resolve(SegmentStore.SEGMENTS_DIR));
+        Path tmp = FileStore.tempFor(dir.resolve(String.format("%016x", 7)));
+        Files.write(tmp, bytes(1024, 3));
+        new SegmentStore(root, null, new FileSync(Durability.NONE));
+        assertFalse(Files.exists(tmp));
+    }
+}
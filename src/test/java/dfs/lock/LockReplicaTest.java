@@ -0,0 +1,168 @@
+package dfs.lock;
+
+import dfs.TestSupport;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.util.MutableHandlerRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A three-replica lock group run in-process, each replica with its own state directory.
+class LockReplicaTest {
+
+    static final long TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path tmp;
+
+    private final int[] ports = new int[3];
+    private final Server[] servers = new Server[3];
+    private final LockServiceImpl[] impls = new LockServiceImpl[3];
+    private final List<ManagedChannel> channels = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (int i = 0; i < servers.length; i++) stop(i);
+        channels.forEach(ManagedChannel::shutdownNow);
+    }
+
+    // Binds every replica's port first, since each must know all of them to start.
+    private void startGroup() throws Exception {
+        var registries = new MutableHandlerRegistry[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            registries[i] = new MutableHandlerRegistry();
+            servers[i] = TestSupport.serve(0, registries[i]);
+            ports[i] = servers[i].getPort();
+        }
+        for (int i = 0; i < servers.length; i++) startReplica(i, registries[i]);
+    }
+
+    // Restarts replica i on the port it had.
+    private void start(int i) throws Exception {
+        var registry = new MutableHandlerRegistry();
+        servers[i] = TestSupport.serve(ports[i], registry);
+        startReplica(i, registry);
+    }
+
+    private void startReplica(int i, MutableHandlerRegistry registry) throws Exception {
+        List<String> peers = new ArrayList<>();
+        for (int j = 0; j < ports.length; j++) {
+            if (j != i) peers.add(addr(j));
+        }
+        impls[i] = new LockServiceImpl(addr(i), peers, tmp.resolve("replica-" + i));
+        registry.addService(impls[i]);
+        registry.addService(impls[i].replication());
+    }
+
+    private void stop(int i) throws InterruptedException {
+        if (servers[i] == null) return;
+        servers[i].shutdownNow();
+        impls[i].stopBackground();
+        servers[i].awaitTermination();
+        servers[i] = null;
+        impls[i] = null;
+    }
+
+    private String addr(int i) { return "127.0.0.1:" + ports[i]; }
+
+    private LockServiceGrpc.LockServiceBlockingStub stub(int i) {
+        ManagedChannel ch = TestSupport.channel(ports[i]);
+        channels.add(ch);
+        return LockServiceGrpc.newBlockingStub(ch);
+    }
+
+    // Runs f on whichever running replica serves it, waiting out an election; returns that replica.
+    private <T> int onLeader(Function<LockServiceGrpc.LockServiceBlockingStub, T> f, List<T> out) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < servers.length; i++) {
+                if (servers[i] == null) continue;
+                try {
+                    out.add(f.apply(stub(i).withDeadlineAfter(1, TimeUnit.SECONDS)));
+                    return i;
+                } catch (StatusRuntimeException e) {
+                    // Not the leader, or not serving yet.
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("no leader within " + TIMEOUT_MILLIS + " ms");
+    }
+
+    private static LockServiceOuterClass.AcquireRequest acquire(String id, String owner, long seq) {
+        return LockServiceOuterClass.AcquireRequest.newBuilder().setLockId(id).setOwnerId(owner).setSequence(seq).build();
+    }
+
+    private boolean acquireOnLeader(String id, String owner, long seq, int[] leader) throws InterruptedException {
+        List<Boolean> ok = new ArrayList<>();
+        int at = onLeader(s -> s.acquire(acquire(id, owner, seq)).getSuccess(), ok);
+        if (leader != null) leader[0] = at;
+        return ok.get(0);
+    }
+
+    @Test
+    void grantSurvivesLeaderFailover() throws Exception {
+        startGroup();
+        int[] leader = {-1};
+        assertTrue(acquireOnLeader("x", "127.0.0.1:1:a", 1, leader));
+        stop(leader[0]);
+        assertFalse(acquireOnLeader("x", "127.0.0.1:1:b", 1, null), "a new leader must still see a's grant");
+    }
+
+    @Test
+    void restartedGroupKeepsCommittedGrants() throws Exception {
+        startGroup();
+        assertTrue(acquireOnLeader("x", "127.0.0.1:1:a", 1, null));
+        for (int i = 0; i < servers.length; i++) stop(i);
+        for (int i = 0; i < servers.length; i++) start(i);
+        assertFalse(acquireOnLeader("x", "127.0.0.1:1:b", 1, null), "a's grant must survive a full restart");
+        assertTrue(acquireOnLeader("y", "127.0.0.1:1:b", 2, null));
+    }
+
+    @Test
+    void restartedReplicaRejoinsWithItsLog() throws Exception {
+        startGroup();
+        int[] leader = {-1};
+        assertTrue(acquireOnLeader("x", "127.0.0.1:1:a", 1, leader));
+        // Restart both followers: between them they hold a majority that must still know the grant
+        // once the old leader is gone.
+        int f1 = (leader[0] + 1) % 3, f2 = (leader[0] + 2) % 3;
+        stop(f1);
+        stop(f2);
+        start(f1);
+        start(f2);
+        stop(leader[0]);
+        assertFalse(acquireOnLeader("x", "127.0.0.1:1:b", 1, null), "the restarted majority forgot a's grant");
+    }
+
+    @Test
+    void stateSurvivesReopen() throws IOException {
+        Path dir = tmp.resolve("state");
+        var e = LockReplicationOuterClass.LogEntry.newBuilder().setTerm(3).setType(LockWal.GRANT).setLockId("x").setOwnerId("a");
+        ReplicaState s = new ReplicaState(dir, x -> fail("fresh state has no log"));
+        s.saveVote(3, "peer");
+        s.append(List.of(e.setSequence(1).build(), e.setSequence(2).build(), e.setSequence(3).build()));
+        s.truncate(2);
+        s.append(List.of(e.setSequence(4).build()));
+        assertTrue(s.sync());
+        s.close();
+
+        List<Long> seqs = new ArrayList<>();
+        ReplicaState r = new ReplicaState(dir, x -> seqs.add(x.getSequence()));
+        r.close();
+        assertEquals(3, r.term());
+        assertEquals("peer", r.votedFor());
+        assertEquals(List.of(1L, 2L, 4L), seqs);
+    }
+}
@@ -0,0 +1,191 @@
+package dfs.lock;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static dfs.lock.LockServiceOuterClass.LockMode.SHARED;
+import static org.junit.jupiter.api.Assertions.*;
+
+// LockServiceImpl driven directly, without a server in front. Owners are host:port:name with
+// nobody listening, so the revokes and retries the service sends them go nowhere.
+class LockServiceImplTest {
+
+    private LockServiceImpl locks;
+
+    @BeforeEach
+    void setUp() {
+        locks = new LockServiceImpl();
+    }
+
+    @AfterEach
+    void tearDown() {
+        locks.stopBackground();
+    }
+
+    // Captures the single response of a unary call.
+    static class Reply<T> implements StreamObserver<T> {
+        final CompletableFuture<T> value = new CompletableFuture<>();
+
+        @Override public void onNext(T v) { value.complete(v); }
+
+        @Override public void onError(Throwable t) { value.completeExceptionally(t); }
+
+        @Override public void onCompleted() { }
+
+        boolean done() { return value.isDone(); }
+
+        T get() throws Exception { return value.get(5, TimeUnit.SECONDS); }
+    }
+
+    static String owner(String name) { return "127.0.0.1:1:" + name; }
+
+    static LockServiceOuterClass.AcquireRequest req(String id, String owner, LockServiceOuterClass.LockMode mode) {
+        return LockServiceOuterClass.AcquireRequest.newBuilder()
+                .setLockId(id).setOwnerId(owner(owner)).setMode(mode).build();
+    }
+
+    static LockServiceOuterClass.AcquireRequest req(String id, String owner) {
+        return req(id, owner, LockServiceOuterClass.LockMode.EXCLUSIVE);
+    }
+
+    private boolean acquire(LockServiceOuterClass.AcquireRequest req) throws Exception {
+        var r = new Reply<LockServiceOuterClass.AcquireResponse>();
+        locks.acquire(req, r);
+        return r.get().getSuccess();
+    }
+
+    private Reply<LockServiceOuterClass.AcquireResponse> acquireWait(LockServiceOuterClass.AcquireRequest req) {
+        var r = new Reply<LockServiceOuterClass.AcquireResponse>();
+        locks.acquireWait(req, r);
+        return r;
+    }
+
+    private boolean[] batchAcquire(String owner, String... ids) throws Exception {
+        var b = LockServiceOuterClass.BatchAcquireRequest.newBuilder();
+        for (String id : ids) b.addRequests(req(id, owner));
+        var r = new Reply<LockServiceOuterClass.BatchAcquireResponse>();
+        locks.batchAcquire(b.build(), r);
+        var resp = r.get();
+        boolean[] ok = new boolean[resp.getResponsesCount()];
+        for (int i = 0; i < ok.length; i++) ok[i] = resp.getResponses(i).getSuccess();
+        return ok;
+    }
+
+    private void batchRelease(String owner, String... ids) throws Exception {
+        var b = LockServiceOuterClass.BatchReleaseRequest.newBuilder();
+        for (String id : ids) b.addRequests(LockServiceOuterClass.ReleaseRequest.newBuilder().setLockId(id).setOwnerId(owner(owner)));
+        var r = new Reply<LockServiceOuterClass.BatchReleaseResponse>();
+        locks.batchRelease(b.build(), r);
+        r.get();
+    }
+
+    private void release(String id, String owner) throws Exception {
+        var r = new Reply<LockServiceOuterClass.ReleaseResponse>();
+        locks.release(LockServiceOuterClass.ReleaseRequest.newBuilder().setLockId(id).setOwnerId(owner(owner)).build(), r);
+        r.get();
+    }
+
+
+    @Test
+    void acquireWaitOnAFreeLockAnswersAtOnce() throws Exception {
+        var a = acquireWait(req("/l", "a"));
+        assertTrue(a.done());
+        assertTrue(a.get().getSuccess());
+        assertFalse(acquire(req("/l", "b")), "the lock went to a second owner");
+    }
+
+    @Test
+    void acquireWaitParksUntilTheHolderReleases() throws Exception {
+        assertTrue(acquire(req("/l", "a")));
+        var b = acquireWait(req("/l", "b"));
+        Thread.sleep(200);
+        assertFalse(b.done(), "acquireWait answered while the lock was held");
+        release("/l", "a");
+        assertTrue(b.get().getSuccess());
+        assertFalse(acquire(req("/l", "a")), "the release did not hand the lock to the parked call");
+    }
+
+    @Test
+    void acquireWaitGivesUpAfterWaitMillis() throws Exception {
+        assertTrue(acquire(req("/l", "a")));
+        long t0 = System.nanoTime();
+        var b = acquireWait(req("/l", "b").toBuilder().setWaitMillis(300).build());
+        assertFalse(b.get().getSuccess());
+        assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(300), "acquireWait gave up early");
+        release("/l", "a");
+        assertTrue(acquire(req("/l", "c")), "the timed-out call kept its place in line");
+    }
+
+    @Test
+    void releaseHandsTheLockToWaitersInArrivalOrder() throws Exception {
+        assertTrue(acquire(req("/l", "a")));
+        var b = acquireWait(req("/l", "b"));
+        var c = acquireWait(req("/l", "c"));
+        assertFalse(acquire(req("/l", "d")));
+        release("/l", "a");
+        assertTrue(b.get().getSuccess());
+        assertFalse(c.done(), "a release woke more than the head of the queue");
+        release("/l", "b");
+        assertTrue(c.get().getSuccess());
+        assertFalse(acquire(req("/l", "d")), "d was granted while c held the lock");
+        release("/l", "c");
+        assertTrue(acquire(req("/l", "d")), "the queued classic waiter was not handed the lock");
+        assertFalse(acquire(req("/l", "e")));
+    }
+
+    @Test
+    void sharedHoldersDoNotExcludeEachOther() throws Exception {
+        assertTrue(acquire(req("/l", "a", SHARED)));
+        assertTrue(acquire(req("/l", "b", SHARED)));
+        assertTrue(acquireWait(req("/l", "c", SHARED)).get().getSuccess());
+    }
+
+    @Test
+    void sharedHoldersExcludeAWriterUntilAllRelease() throws Exception {
+        assertTrue(acquire(req("/l", "a", SHARED)));
+        assertTrue(acquire(req("/l", "b", SHARED)));
+        var c = acquireWait(req("/l", "c"));
+        assertFalse(c.done(), "an exclusive request was granted next to readers");
+        assertFalse(acquire(req("/l", "d", SHARED)), "a reader jumped ahead of the queued writer");
+        release("/l", "a");
+        assertFalse(c.done(), "the writer was granted while a reader still held the lock");
+        release("/l", "b");
+        assertTrue(c.get().getSuccess());
+        release("/l", "c");
+        assertTrue(acquire(req("/l", "d", SHARED)), "the reader queued behind the writer was not handed the lock");
+    }
+
+    @Test
+    void writerExcludesReaders() throws Exception {
+        assertTrue(acquire(req("/l", "a")));
+        assertFalse(acquire(req("/l", "b", SHARED)));
+        var c = acquireWait(req("/l", "c", SHARED));
+        release("/l", "a");
+        assertTrue(c.get().getSuccess());
+        assertTrue(acquire(req("/l", "b", SHARED)), "the run of readers at the head was not granted together");
+    }
+
+    // Not all-or-nothing: each id is granted or queued on its own, as a single acquire would be.
+    @Test
+    void batchAcquireGrantsFreeIdsAndQueuesTheRest() throws Exception {
+        assertTrue(acquire(req("/b", "a")));
+        assertArrayEquals(new boolean[] { true, false, true }, batchAcquire("b", "/a", "/b", "/c"));
+        assertFalse(acquire(req("/a", "c")), "a granted id of a partly granted batch was not kept");
+        release("/b", "a");
+        assertTrue(acquire(req("/b", "b")), "the queued id was not handed over on release");
+    }
+
+    @Test
+    void batchReleaseReleasesEveryId() throws Exception {
+        assertArrayEquals(new boolean[] { true, true }, batchAcquire("a", "/a", "/b"));
+        var b = acquireWait(req("/b", "b"));
+        batchRelease("a", "/a", "/b", "/never-held");
+        assertTrue(b.get().getSuccess());
+        assertArrayEquals(new boolean[] { true, false }, batchAcquire("c", "/a", "/b"));
+    }
+}
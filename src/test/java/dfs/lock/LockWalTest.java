@@ -0,0 +1,79 @@
+package dfs.lock;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static dfs.lock.LockServiceImplTest.owner;
+import static dfs.lock.LockServiceImplTest.req;
+import static dfs.lock.LockServiceOuterClass.LockMode.SHARED;
+import static org.junit.jupiter.api.Assertions.*;
+
+// A LockServiceImpl over a WAL directory, restarted on the same directory: the table it rebuilds
+// must be the one it had, from the log alone and from a snapshot plus the log written after it.
+class LockWalTest {
+
+    @TempDir
+    Path tmp;
+
+    private LockServiceImpl locks;
+
+    @AfterEach
+    void tearDown() {
+        if (locks != null) locks.stopBackground();
+    }
+
+    private LockServiceImpl restart() throws Exception {
+        locks.stopBackground();
+        locks = new LockServiceImpl(tmp);
+        return locks;
+    }
+
+    private boolean acquire(String id, String owner, long seq, boolean shared) throws Exception {
+        var r = new LockServiceImplTest.Reply<LockServiceOuterClass.AcquireResponse>();
+        var req = shared ? req(id, owner, SHARED) : req(id, owner);
+        locks.acquire(req.toBuilder().setSequence(seq).build(), r);
+        return r.get().getSuccess();
+    }
+
+    private void release(String id, String owner) throws Exception {
+        var r = new LockServiceImplTest.Reply<LockServiceOuterClass.ReleaseResponse>();
+        locks.release(LockServiceOuterClass.ReleaseRequest.newBuilder().setLockId(id).setOwnerId(owner(owner)).build(), r);
+        r.get();
+    }
+
+
+    @Test
+    void restartRebuildsTheTableBeforeAndAfterASnapshot() throws Exception {
+        locks = new LockServiceImpl(tmp);
+        assertTrue(acquire("/a", "a", 1, false));
+        assertTrue(acquire("/b", "a", 2, false));
+        assertTrue(acquire("/c", "b", 3, true));
+        assertTrue(acquire("/c", "c", 4, true));
+        assertFalse(acquire("/a", "b", 5, false));
+        assertFalse(acquire("/a", "c", 6, true));
+        assertFalse(acquire("/c", "d", 7, false));
+        release("/b", "a");
+        String before = locks.rows();
+        assertEquals(2, before.lines().count(), before);
+        assertEquals(before, restart().rows(), "the table replayed from the log differs");
+
+        locks.snapshot();
+        assertTrue(Files.exists(tmp.resolve("snapshot.bin")));
+        assertEquals(before, restart().rows(), "the table read from the snapshot differs");
+
+        release("/a", "a");
+        release("/c", "b");
+        assertTrue(acquire("/d", "d", 8, false));
+        locks.snapshot();
+        release("/c", "c");
+        String after = locks.rows();
+        assertNotEquals(before, after);
+        assertEquals(after, restart().rows(), "the table read from the snapshot and the log after it differs");
+        assertTrue(acquire("/a", "b", 5, false), "the holder the release handed /a to lost it");
+        assertFalse(acquire("/a", "e", 9, false));
+    }
+}
@@ -0,0 +1,35 @@
+package dfs.lock;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OwnerIdsTest {
+
+    @Test
+    void retiredOwnerGetsItsHandleBack() {
+        OwnerIds ids = new OwnerIds();
+        int a = ids.intern("a");
+        ids.retire(a, 1);
+        assertEquals(0, ids.size());
+        assertEquals(a, ids.intern("a"));
+        assertEquals(List.of(), ids.retiredBefore(5));
+    }
+
+    @Test
+    void freedHandleGoesToNewOwner() {
+        OwnerIds ids = new OwnerIds();
+        int a = ids.intern("a");
+        int b = ids.intern("b");
+        ids.retire(a, 1);
+        assertEquals(List.of(), ids.retiredBefore(1));
+        assertEquals(List.of(a), ids.retiredBefore(2));
+        ids.free(a);
+        assertEquals(a, ids.intern("c"));
+        assertEquals("c", ids.name(a));
+        assertEquals("b", ids.name(b));
+        assertNotEquals(a, ids.intern("a"));
+    }
+}
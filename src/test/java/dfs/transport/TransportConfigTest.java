@@ -0,0 +1,28 @@
+package dfs.transport;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransportConfigTest {
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("dfs.test.maxInboundMB");
+        System.clearProperty("dfs.test.flowWindowKB");
+    }
+
+    @Test
+    void sizesThatOverflowAnIntAreRejected() {
+        System.setProperty("dfs.test.maxInboundMB", "2047");
+        TransportConfig.load("test", "default").channel("127.0.0.1:1").shutdownNow();
+        System.setProperty("dfs.test.maxInboundMB", "2048");
+        assertThrows(IllegalArgumentException.class, () -> TransportConfig.load("test", "default"));
+        System.setProperty("dfs.test.maxInboundMB", "-1");
+        assertThrows(IllegalArgumentException.class, () -> TransportConfig.load("test", "default"));
+        System.clearProperty("dfs.test.maxInboundMB");
+        System.setProperty("dfs.test.flowWindowKB", String.valueOf(2L << 20));
+        assertThrows(IllegalArgumentException.class, () -> TransportConfig.load("test", "default"));
+    }
+}